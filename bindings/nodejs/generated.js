@@ -326,7 +326,7 @@ if (!nativeBinding) {
   throw new Error(`Failed to load native binding`)
 }
 
-const { ValueOptions, Client, Connection, ConnectionInfo, Schema, RowIterator, RowIteratorExt, RowOrStats, Row, ServerStats } = nativeBinding
+const { ValueOptions, Client, Connection, ConnectionInfo, Schema, RowIterator, LazyRowIterator, RowIteratorExt, RowOrStats, Row, LazyRow, ServerStats } = nativeBinding
 
 module.exports.ValueOptions = ValueOptions
 module.exports.Client = Client
@@ -334,7 +334,9 @@ module.exports.Connection = Connection
 module.exports.ConnectionInfo = ConnectionInfo
 module.exports.Schema = Schema
 module.exports.RowIterator = RowIterator
+module.exports.LazyRowIterator = LazyRowIterator
 module.exports.RowIteratorExt = RowIteratorExt
 module.exports.RowOrStats = RowOrStats
 module.exports.Row = Row
+module.exports.LazyRow = LazyRow
 module.exports.ServerStats = ServerStats
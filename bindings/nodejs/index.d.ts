@@ -50,6 +50,11 @@ export declare class Connection {
   queryAll(sql: string, params?: Params | undefined | null): Promise<Array<Row>>
   /** Execute a SQL query, and return all rows. */
   queryIter(sql: string, params?: Params | undefined | null): Promise<RowIterator>
+  /**
+   * Execute a SQL query, and return all rows with the columns decoded on
+   * first access.
+   */
+  queryIterLazy(sql: string, params?: Params | undefined | null): Promise<LazyRowIterator>
   /** Execute a SQL query, and return all rows with schema and stats. */
   queryIterExt(sql: string, params?: Params | undefined | null): Promise<RowIteratorExt>
   /**
@@ -91,6 +96,21 @@ export declare class RowIterator {
    */
   stream(): import('stream').Readable
 }
+export declare class LazyRowIterator {
+  /** Get Schema for rows. */
+  schema(): Schema
+  close(): void
+  /**
+   * Fetch next row.
+   * Returns `None` if there are no more rows.
+   */
+  next(): Promise<Error | LazyRow | null>
+  /**
+   * Return a Readable Stream for the query result.
+   * Should be used with `ObjectMode` set to `true`.
+   */
+  stream(): import('stream').Readable
+}
 export declare class RowIteratorExt {
   schema(): Schema
   close(): void
@@ -110,6 +130,16 @@ export declare class Row {
   values(): Array<any>
   data(): Record<string, any>
 }
+/** A row decoding each column on first access. */
+export declare class LazyRow {
+  setOpts(opts: ValueOptions): void
+  /** Value of the column at `index`, decoded on the first call. */
+  get(index: number): any
+  /** Value of the column named `name`, decoded on the first call. */
+  getByName(name: string): any
+  /** Decode all the columns. */
+  toRow(): Row
+}
 export declare class ServerStats {
   get totalRows(): bigint
   get totalBytes(): bigint
@@ -119,4 +149,10 @@ export declare class ServerStats {
   get writeBytes(): bigint
   get spillFileNums(): bigint
   get runningTimeMs(): number
+  get clientQueryStartMs(): number
+  get clientSchemaMs(): number
+  get clientFirstRowMs(): number
+  get clientPageWaitMs(): number
+  get clientDecodeMs(): number
+  get clientReceivedBytes(): bigint
 }
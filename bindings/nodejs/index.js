@@ -18,7 +18,7 @@
 
 const { Readable } = require("node:stream");
 
-const { Client, RowIterator } = require("./generated.js");
+const { Client, RowIterator, LazyRowIterator } = require("./generated.js");
 
 class RowsStream extends Readable {
   constructor(reader, options) {
@@ -38,7 +38,7 @@ class RowsStream extends Readable {
   }
 }
 
-RowIterator.prototype[Symbol.asyncIterator] = async function* () {
+async function* iterate() {
   while (true) {
     const item = await this.next();
     if (item === null) {
@@ -46,10 +46,15 @@ RowIterator.prototype[Symbol.asyncIterator] = async function* () {
     }
     yield item;
   }
-};
+}
 
-RowIterator.prototype.stream = function () {
+function stream() {
   return new RowsStream(this);
-};
+}
+
+for (const Iterator of [RowIterator, LazyRowIterator]) {
+  Iterator.prototype[Symbol.asyncIterator] = iterate;
+  Iterator.prototype.stream = stream;
+}
 
 module.exports.Client = Client;
@@ -180,6 +180,27 @@ impl Connection {
         ))
     }
 
+    /// Execute a SQL query, and return all rows with the columns decoded on
+    /// first access.
+    #[napi]
+    pub async fn query_iter_lazy(
+        &self,
+        sql: String,
+        params: Option<Params>,
+    ) -> Result<LazyRowIterator> {
+        let iterator = if let Some(p) = params {
+            self.inner.query(&sql).bind(p).iter_lazy().await
+        } else {
+            self.inner.query_iter_lazy(&sql).await
+        };
+        let iterator = iterator.map_err(format_napi_error)?;
+        Ok(LazyRowIterator::new(
+            iterator,
+            self.opts.clone(),
+            self.inner.clone(),
+        ))
+    }
+
     /// Execute a SQL query, and return all rows with schema and stats.
     #[napi]
     pub async fn query_iter_ext(
@@ -509,6 +530,56 @@ impl RowIterator {
     }
 }
 
+#[napi]
+pub struct LazyRowIterator {
+    inner: databend_driver::LazyRowIterator,
+    opts: ValueOptions,
+    _conn: Arc<databend_driver::Connection>,
+}
+
+impl LazyRowIterator {
+    pub fn new(
+        inner: databend_driver::LazyRowIterator,
+        opts: ValueOptions,
+        _conn: Arc<databend_driver::Connection>,
+    ) -> Self {
+        Self { inner, opts, _conn }
+    }
+}
+
+#[napi]
+impl LazyRowIterator {
+    /// Get Schema for rows.
+    #[napi]
+    pub fn schema(&self) -> Schema {
+        Schema(self.inner.schema().clone())
+    }
+
+    #[napi]
+    #[allow(clippy::missing_safety_doc)]
+    pub unsafe fn close(&mut self) {
+        self.inner.close()
+    }
+
+    /// Fetch next row.
+    /// Returns `None` if there are no more rows.
+    #[napi]
+    #[allow(clippy::missing_safety_doc)]
+    pub async unsafe fn next(&mut self) -> Option<Result<LazyRow>> {
+        self.inner.next().await.map(|row| {
+            row.map(|r| LazyRow::new(r, self.opts.clone()))
+                .map_err(format_napi_error)
+        })
+    }
+
+    /// Return a Readable Stream for the query result.
+    /// Should be used with `ObjectMode` set to `true`.
+    #[napi(ts_return_type = "import('stream').Readable")]
+    pub fn stream(&self) {
+        unreachable!()
+    }
+}
+
 #[napi]
 pub struct RowIteratorExt {
     inner: databend_driver::RowStatsIterator,
@@ -628,6 +699,48 @@ impl Row {
     }
 }
 
+/// A row decoding each column on first access.
+#[napi]
+pub struct LazyRow {
+    inner: databend_driver::LazyRow,
+    opts: ValueOptions,
+}
+
+impl LazyRow {
+    pub fn new(inner: databend_driver::LazyRow, opts: ValueOptions) -> Self {
+        Self { inner, opts }
+    }
+}
+
+#[napi]
+impl LazyRow {
+    #[napi]
+    pub fn set_opts(&mut self, opts: ValueOptions) {
+        self.opts = opts;
+    }
+
+    /// Value of the column at `index`, decoded on the first call.
+    #[napi]
+    pub fn get(&self, index: u32) -> Result<Value<'_>> {
+        let value = self.inner.get(index as usize).map_err(format_napi_error)?;
+        Ok(Value::new(value, &self.opts))
+    }
+
+    /// Value of the column named `name`, decoded on the first call.
+    #[napi]
+    pub fn get_by_name(&self, name: String) -> Result<Value<'_>> {
+        let value = self.inner.get_by_name(&name).map_err(format_napi_error)?;
+        Ok(Value::new(value, &self.opts))
+    }
+
+    /// Decode all the columns.
+    #[napi]
+    pub fn to_row(&self) -> Result<Row> {
+        let row = self.inner.clone().into_row().map_err(format_napi_error)?;
+        Ok(Row::new(row, self.opts.clone()))
+    }
+}
+
 #[napi]
 #[derive(Clone)]
 pub struct ServerStats(databend_driver::ServerStats);
@@ -673,6 +786,36 @@ impl ServerStats {
     pub fn running_time_ms(&self) -> f64 {
         self.0.running_time_ms
     }
+
+    #[napi(getter)]
+    pub fn client_query_start_ms(&self) -> f64 {
+        self.0.client.query_start_ms
+    }
+
+    #[napi(getter)]
+    pub fn client_schema_ms(&self) -> f64 {
+        self.0.client.schema_ms
+    }
+
+    #[napi(getter)]
+    pub fn client_first_row_ms(&self) -> f64 {
+        self.0.client.first_row_ms
+    }
+
+    #[napi(getter)]
+    pub fn client_page_wait_ms(&self) -> f64 {
+        self.0.client.page_wait_ms
+    }
+
+    #[napi(getter)]
+    pub fn client_decode_ms(&self) -> f64 {
+        self.0.client.decode_ms
+    }
+
+    #[napi(getter)]
+    pub fn client_received_bytes(&self) -> usize {
+        self.0.client.received_bytes
+    }
 }
 
 fn format_napi_error(err: databend_driver::Error) -> Error {
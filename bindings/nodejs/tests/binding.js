@@ -324,6 +324,23 @@ Then("Select numbers should iterate all rows", async function () {
     const expected = [0, 1, 2, 3, 4];
     assert.deepEqual(ret, expected);
   }
+
+  // lazy rows decoding the columns on access
+  {
+    let rows = await this.conn.queryIterLazy("SELECT number AS n, number * 2 AS m FROM numbers(5)");
+    let ret = [];
+    for await (const row of rows) {
+      ret.push([row.getByName("m"), row.toRow().values()[0]]);
+    }
+    const expected = [
+      [0, 0],
+      [2, 1],
+      [4, 2],
+      [6, 3],
+      [8, 4],
+    ];
+    assert.deepEqual(ret, expected);
+  }
 });
 
 When("Create a test table", async function () {
@@ -49,6 +49,8 @@ __all__ = [
     "Field",
     "Row",
     "RowIterator",
+    "LazyRow",
+    "LazyRowIterator",
     "ServerStats",
     # Local embedded mode
     "LocalConnection",
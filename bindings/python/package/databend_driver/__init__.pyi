@@ -44,6 +44,18 @@ class ServerStats:
     def write_bytes(self) -> int: ...
     @property
     def running_time_ms(self) -> float: ...
+    @property
+    def client_query_start_ms(self) -> float: ...
+    @property
+    def client_schema_ms(self) -> float: ...
+    @property
+    def client_first_row_ms(self) -> float: ...
+    @property
+    def client_page_wait_ms(self) -> float: ...
+    @property
+    def client_decode_ms(self) -> float: ...
+    @property
+    def client_received_bytes(self) -> int: ...
 
 class ConnectionInfo:
     @property
@@ -84,6 +96,20 @@ class RowIterator:
     def __aiter__(self) -> RowIterator: ...
     async def __anext__(self) -> Row: ...
 
+class LazyRow:
+    def values(self) -> tuple: ...
+    def to_row(self) -> Row: ...
+    def __len__(self) -> int: ...
+    def __getitem__(self, key: int | str) -> Any: ...
+
+class LazyRowIterator:
+    def schema(self) -> Schema: ...
+    def close(self) -> None: ...
+    def __iter__(self) -> LazyRowIterator: ...
+    def __next__(self) -> LazyRow: ...
+    def __aiter__(self) -> LazyRowIterator: ...
+    async def __anext__(self) -> LazyRow: ...
+
 class AsyncDatabendConnection:
     async def info(self) -> ConnectionInfo: ...
     async def version(self) -> str: ...
@@ -95,6 +121,7 @@ class AsyncDatabendConnection:
     async def query_row(self, sql: str, params: Any = None) -> Row: ...
     async def query_all(self, sql: str, params: Any = None) -> list[Row]: ...
     async def query_iter(self, sql: str, params: Any = None) -> RowIterator: ...
+    async def query_iter_lazy(self, sql: str, params: Any = None) -> LazyRowIterator: ...
     async def stream_load(self, sql: str, data: list[list[str]]) -> ServerStats: ...
     async def load_file(
         self, sql: str, file: str, format_option: dict, copy_options: dict = None
@@ -115,6 +142,7 @@ class BlockingDatabendConnection:
     def query_row(self, sql: str, params: Any = None) -> Row: ...
     def query_all(self, sql: str, params: Any = None) -> list[Row]: ...
     def query_iter(self, sql: str, params: Any = None) -> RowIterator: ...
+    def query_iter_lazy(self, sql: str, params: Any = None) -> LazyRowIterator: ...
     def stream_load(self, sql: str, data: list[list[str]]) -> ServerStats: ...
     def load_file(
         self, sql: str, file: str, format_option: dict, copy_options: dict = None
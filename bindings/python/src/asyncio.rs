@@ -17,7 +17,7 @@ use std::str::FromStr;
 use std::sync::Arc;
 
 use crate::{
-    types::{ConnectionInfo, DriverError, Row, RowIterator, ServerStats, VERSION},
+    types::{ConnectionInfo, DriverError, LazyRowIterator, Row, RowIterator, ServerStats, VERSION},
     utils::to_sql_params,
 };
 use databend_driver::LoadMethod;
@@ -198,6 +198,30 @@ impl AsyncDatabendConnection {
         })
     }
 
+    #[pyo3(signature = (sql, params=None))]
+    pub fn query_iter_lazy<'p>(
+        &'p self,
+        py: Python<'p>,
+        sql: String,
+        params: Option<Bound<'p, PyAny>>,
+    ) -> PyResult<Bound<'p, PyAny>> {
+        let this = self.0.clone();
+        let params = to_sql_params(params);
+
+        future_into_py(py, async move {
+            let streamer = if params.is_empty() {
+                this.query_iter_lazy(&sql).await.map_err(DriverError::new)?
+            } else {
+                this.query(&sql)
+                    .bind(params)
+                    .iter_lazy()
+                    .await
+                    .map_err(DriverError::new)?
+            };
+            Ok(LazyRowIterator::new(streamer))
+        })
+    }
+
     #[pyo3(signature = (sql, data, method=None))]
     pub fn stream_load<'p>(
         &'p self,
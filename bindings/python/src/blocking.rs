@@ -17,7 +17,9 @@ use std::path::Path;
 use std::str::FromStr;
 use std::sync::Arc;
 
-use crate::types::{ConnectionInfo, DriverError, Row, RowIterator, ServerStats, VERSION};
+use crate::types::{
+    ConnectionInfo, DriverError, LazyRowIterator, Row, RowIterator, ServerStats, VERSION,
+};
 use crate::utils::{options_as_ref, to_sql_params, wait_for_future};
 use databend_driver::{LoadMethod, SchemaRef};
 use pyo3::exceptions::{PyAttributeError, PyException, PyStopIteration};
@@ -171,6 +173,29 @@ impl BlockingDatabendConnection {
         Ok(RowIterator::new(it))
     }
 
+    #[pyo3(signature = (sql, params=None))]
+    pub fn query_iter_lazy(
+        &self,
+        py: Python,
+        sql: String,
+        params: Option<Bound<PyAny>>,
+    ) -> PyResult<LazyRowIterator> {
+        let this = self.0.clone();
+        let params = to_sql_params(params);
+        let it = wait_for_future(py, async {
+            if params.is_empty() {
+                this.query_iter_lazy(&sql).await.map_err(DriverError::new)
+            } else {
+                this.query(&sql)
+                    .bind(params)
+                    .iter_lazy()
+                    .await
+                    .map_err(DriverError::new)
+            }
+        })?;
+        Ok(LazyRowIterator::new(it))
+    }
+
     #[pyo3(signature = (sql, data, method=None))]
     pub fn stream_load(
         &self,
@@ -22,7 +22,9 @@ use pyo3::prelude::*;
 
 use crate::asyncio::{AsyncDatabendClient, AsyncDatabendConnection};
 use crate::blocking::{BlockingDatabendClient, BlockingDatabendConnection, BlockingDatabendCursor};
-use crate::types::{ConnectionInfo, Field, Row, RowIterator, Schema, ServerStats};
+use crate::types::{
+    ConnectionInfo, Field, LazyRow, LazyRowIterator, Row, RowIterator, Schema, ServerStats,
+};
 
 #[pymodule]
 fn _databend_driver(py: Python, m: &Bound<'_, PyModule>) -> PyResult<()> {
@@ -36,6 +38,8 @@ fn _databend_driver(py: Python, m: &Bound<'_, PyModule>) -> PyResult<()> {
     m.add_class::<Row>()?;
     m.add_class::<Field>()?;
     m.add_class::<RowIterator>()?;
+    m.add_class::<LazyRow>()?;
+    m.add_class::<LazyRowIterator>()?;
     m.add_class::<ServerStats>()?;
 
     env_logger::Builder::from_env(env_logger::Env::default().default_filter_or("warn"))
@@ -343,6 +343,126 @@ impl RowIterator {
     }
 }
 
+/// A row decoding each column on first access.
+#[pyclass(module = "databend_driver")]
+pub struct LazyRow(databend_driver::LazyRow);
+
+impl LazyRow {
+    pub fn new(row: databend_driver::LazyRow) -> Self {
+        LazyRow(row)
+    }
+
+    fn get_by_index(&self, idx: usize) -> PyResult<Value> {
+        let val = self
+            .0
+            .get(idx)
+            .map_err(|e| PyException::new_err(format!("{e}")))?;
+        Ok(Value(val.clone()))
+    }
+
+    fn get_by_field(&self, field: &str) -> PyResult<Value> {
+        let val = self
+            .0
+            .get_by_name(field)
+            .map_err(|e| PyException::new_err(format!("{e}")))?;
+        Ok(Value(val.clone()))
+    }
+}
+
+#[pymethods]
+impl LazyRow {
+    pub fn values<'p>(&'p self, py: Python<'p>) -> PyResult<Bound<'p, PyTuple>> {
+        let vals = (0..self.0.len())
+            .map(|idx| self.get_by_index(idx))
+            .collect::<PyResult<Vec<_>>>()?;
+        let tuple = PyTuple::new(py, vals)?;
+        Ok(tuple)
+    }
+
+    pub fn to_row(&self) -> PyResult<Row> {
+        let row = self
+            .0
+            .clone()
+            .into_row()
+            .map_err(|e| PyException::new_err(format!("{e}")))?;
+        Ok(Row::new(row))
+    }
+
+    pub fn __len__(&self) -> usize {
+        self.0.len()
+    }
+
+    pub fn __getitem__<'p>(&'p self, key: Bound<'p, PyAny>) -> PyResult<Value> {
+        if let Ok(idx) = key.extract::<usize>() {
+            self.get_by_index(idx)
+        } else if let Ok(field) = key.extract::<String>() {
+            self.get_by_field(&field)
+        } else {
+            Err(PyAttributeError::new_err(
+                "key must be an integer or a string",
+            ))
+        }
+    }
+}
+
+#[pyclass(module = "databend_driver")]
+pub struct LazyRowIterator(Arc<Mutex<databend_driver::LazyRowIterator>>);
+
+impl LazyRowIterator {
+    pub fn new(streamer: databend_driver::LazyRowIterator) -> Self {
+        LazyRowIterator(Arc::new(Mutex::new(streamer)))
+    }
+}
+
+#[pymethods]
+impl LazyRowIterator {
+    pub fn schema(&self, py: Python) -> PyResult<Schema> {
+        let streamer = self.0.clone();
+        let ret = wait_for_future(py, async move { streamer.lock().await.schema() });
+        Ok(Schema::new(ret))
+    }
+
+    pub fn close(&self, py: Python) -> PyResult<()> {
+        let streamer = self.0.clone();
+        wait_for_future(py, async move {
+            streamer.lock().await.close();
+        });
+        Ok(())
+    }
+
+    fn __iter__(slf: PyRef<'_, Self>) -> PyRef<'_, Self> {
+        slf
+    }
+    fn __next__(&self, py: Python) -> PyResult<LazyRow> {
+        let streamer = self.0.clone();
+        wait_for_future(py, async move {
+            match streamer.lock().await.next().await {
+                Some(val) => match val {
+                    Err(e) => Err(PyException::new_err(format!("{e}"))),
+                    Ok(ret) => Ok(LazyRow::new(ret)),
+                },
+                None => Err(PyStopIteration::new_err("Rows exhausted")),
+            }
+        })
+    }
+
+    fn __aiter__(slf: PyRef<'_, Self>) -> PyRef<'_, Self> {
+        slf
+    }
+    fn __anext__<'p>(&'p self, py: Python<'p>) -> PyResult<Bound<'p, PyAny>> {
+        let streamer = self.0.clone();
+        future_into_py(py, async move {
+            match streamer.lock().await.next().await {
+                Some(val) => match val {
+                    Err(e) => Err(PyException::new_err(format!("{e}"))),
+                    Ok(ret) => Ok(LazyRow::new(ret)),
+                },
+                None => Err(PyStopAsyncIteration::new_err("The iterator is exhausted")),
+            }
+        })
+    }
+}
+
 #[derive(Default)]
 #[pyclass(module = "databend_driver")]
 pub struct Schema(databend_driver::SchemaRef);
@@ -457,6 +577,30 @@ impl ServerStats {
     pub fn running_time_ms(&self) -> f64 {
         self.0.running_time_ms
     }
+    #[getter]
+    pub fn client_query_start_ms(&self) -> f64 {
+        self.0.client.query_start_ms
+    }
+    #[getter]
+    pub fn client_schema_ms(&self) -> f64 {
+        self.0.client.schema_ms
+    }
+    #[getter]
+    pub fn client_first_row_ms(&self) -> f64 {
+        self.0.client.first_row_ms
+    }
+    #[getter]
+    pub fn client_page_wait_ms(&self) -> f64 {
+        self.0.client.page_wait_ms
+    }
+    #[getter]
+    pub fn client_decode_ms(&self) -> f64 {
+        self.0.client.decode_ms
+    }
+    #[getter]
+    pub fn client_received_bytes(&self) -> usize {
+        self.0.client.received_bytes
+    }
 }
 
 pub struct DriverError(databend_driver::Error);
@@ -175,6 +175,13 @@ async def _(context):
     expected = [0, 1, 2, 3, 4]
     assert ret == expected, f"ret: {ret}"
 
+    rows = await context.conn.query_iter_lazy(
+        "SELECT number AS n, number * 2 AS m FROM numbers(5)"
+    )
+    ret = [(row["m"], row.to_row().values()[0]) for row in rows]
+    expected = [(0, 0), (2, 1), (4, 2), (6, 3), (8, 4)]
+    assert ret == expected, f"ret: {ret}"
+
 
 @then("Insert and Select should be equal")
 async def _(context):
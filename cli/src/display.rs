@@ -338,6 +338,7 @@ impl FormatDisplay<'_> {
 
         if let Some(ref mut stats) = self.stats {
             stats.normalize();
+            let client = stats.client.clone();
 
             let (rows, mut rows_str, kind, total_rows, total_bytes) = match self.kind {
                 QueryKind::Graphical => (self.rows_count, "rows", "graphical", 0, 0),
@@ -393,6 +394,17 @@ impl FormatDisplay<'_> {
                 rows_speed_str,
                 HumanBytes((total_bytes as f64 / self.running_secs()) as u64),
             );
+            if matches!(self.kind, QueryKind::Query) && client.schema_ms > 0.0 {
+                eprintln!(
+                    "Client: query start {:.3} sec, schema {:.3} sec, first row {:.3} sec, page wait {:.3} sec, decode {:.3} sec, received {}",
+                    client.query_start_ms / 1000.0,
+                    client.schema_ms / 1000.0,
+                    client.first_row_ms / 1000.0,
+                    client.page_wait_ms / 1000.0,
+                    client.decode_ms / 1000.0,
+                    HumanBytes(client.received_bytes as u64),
+                );
+            }
             eprintln!();
         }
     }
@@ -0,0 +1,359 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::mem;
+use std::pin::Pin;
+use std::task::{ready, Context, Poll};
+
+use arrow_array::RecordBatch;
+use arrow_buffer::Buffer;
+use arrow_ipc::reader::StreamDecoder;
+use bytes::Bytes;
+use tokio_stream::{Stream, StreamExt};
+
+use crate::compression::BodyReader;
+use crate::error::{Error, Result};
+use crate::metrics::RequestMetrics;
+
+const RESPONSE_HEADER_KEY: &str = "response_header";
+
+type ByteStream = Pin<Box<dyn Stream<Item = reqwest::Result<Bytes>> + Send>>;
+
+/// Called with the rows and the in-memory bytes of the batches of a page once
+/// its body is read.
+type PageObserver = Box<dyn FnOnce(usize, usize) + Send>;
+
+/// Decodes an arrow IPC stream chunk by chunk as the response body arrives,
+/// handing out each batch as soon as it is complete.
+pub(crate) struct ArrowStreamDecoder {
+    decoder: StreamDecoder,
+    buffer: Buffer,
+}
+
+impl ArrowStreamDecoder {
+    pub(crate) fn new() -> Self {
+        Self {
+            decoder: StreamDecoder::new(),
+            buffer: Buffer::from(Bytes::new()),
+        }
+    }
+
+    /// Queue a chunk of the body, its batches are taken with `next_batch`.
+    pub(crate) fn push(&mut self, chunk: Bytes) {
+        self.buffer = if self.buffer.is_empty() {
+            Buffer::from(chunk)
+        } else {
+            Buffer::from([self.buffer.as_slice(), &chunk].concat())
+        };
+    }
+
+    /// Decodes the queued chunks up to the next complete batch, `None` if more
+    /// of the body is needed.
+    pub(crate) fn next_batch(&mut self) -> Result<Option<RecordBatch>> {
+        while !self.buffer.is_empty() {
+            let batch = self
+                .decoder
+                .decode(&mut self.buffer)
+                .map_err(|e| Error::Decode(format!("failed to decode arrow batch: {e}")))?;
+            if batch.is_some() {
+                return Ok(batch);
+            }
+        }
+        Ok(None)
+    }
+
+    /// Returns the JSON `response_header` carried in the schema metadata,
+    /// `None` until the schema is decoded.
+    pub(crate) fn response_header(&self) -> Result<Option<Bytes>> {
+        let Some(schema) = self.decoder.schema() else {
+            return Ok(None);
+        };
+        match schema.metadata.get(RESPONSE_HEADER_KEY) {
+            Some(header) => Ok(Some(Bytes::copy_from_slice(header.as_bytes()))),
+            None => Err(Error::Decode(
+                "missing response_header metadata in arrow payload".to_string(),
+            )),
+        }
+    }
+
+    /// Checks that the stream is complete once the body is read, returning the
+    /// `response_header`.
+    pub(crate) fn finish(&mut self) -> Result<Bytes> {
+        self.decoder
+            .finish()
+            .map_err(|e| Error::Decode(format!("failed to decode arrow stream: {e}")))?;
+        self.response_header()?.ok_or_else(|| {
+            Error::Decode("failed to decode arrow stream: missing schema".to_string())
+        })
+    }
+}
+
+/// The batches of an arrow page, decoded one at a time as the body after the
+/// schema arrives. Each batch comes with the bytes received for it.
+pub struct BatchStream {
+    body: ByteStream,
+    reader: BodyReader,
+    decoder: ArrowStreamDecoder,
+    metrics: &'static RequestMetrics,
+    /// Decoded along with the schema.
+    first: Option<RecordBatch>,
+    /// Received since the last batch.
+    received_bytes: u64,
+    rows: usize,
+    bytes: usize,
+    observer: Option<PageObserver>,
+    ended: bool,
+    done: bool,
+}
+
+impl BatchStream {
+    /// Reads the body up to the schema, returning its `response_header` and
+    /// the stream of the batches after it. Transport errors until then are
+    /// returned in the inner result so the caller can retry.
+    pub(crate) async fn read_header(
+        mut body: ByteStream,
+        mut reader: BodyReader,
+        metrics: &'static RequestMetrics,
+        received_bytes: &mut u64,
+    ) -> Result<std::result::Result<(Bytes, Self), reqwest::Error>> {
+        let mut decoder = ArrowStreamDecoder::new();
+        let mut ended = false;
+        let (header, first) = loop {
+            match body.next().await {
+                Some(Ok(chunk)) => {
+                    *received_bytes += chunk.len() as u64;
+                    decoder.push(reader.push(chunk)?);
+                }
+                Some(Err(err)) => return Ok(Err(err)),
+                None => {
+                    decoder.push(reader.finish()?);
+                    ended = true;
+                }
+            }
+            let first = decoder.next_batch()?;
+            if let Some(header) = decoder.response_header()? {
+                break (header, first);
+            }
+            if ended {
+                break (decoder.finish()?, first);
+            }
+        };
+        let batches = Self {
+            body,
+            reader,
+            decoder,
+            metrics,
+            first,
+            received_bytes: 0,
+            rows: 0,
+            bytes: 0,
+            observer: None,
+            ended,
+            done: false,
+        };
+        Ok(Ok((header, batches)))
+    }
+
+    /// Call `observer` with the rows and bytes of the batches once all are read.
+    pub(crate) fn observe(
+        mut self,
+        observer: impl FnOnce(usize, usize) + Send + 'static,
+    ) -> Self {
+        self.observer = Some(Box::new(observer));
+        self
+    }
+
+    fn poll_batch(&mut self, cx: &mut Context<'_>) -> Poll<Result<Option<RecordBatch>>> {
+        loop {
+            if let Some(batch) = self.first.take() {
+                return Poll::Ready(Ok(Some(batch)));
+            }
+            if let Some(batch) = self.decoder.next_batch()? {
+                return Poll::Ready(Ok(Some(batch)));
+            }
+            if self.ended {
+                self.decoder.finish()?;
+                return Poll::Ready(Ok(None));
+            }
+            match ready!(self.body.as_mut().poll_next(cx)) {
+                Some(chunk) => {
+                    let chunk = chunk?;
+                    self.received_bytes += chunk.len() as u64;
+                    self.metrics.received(chunk.len() as u64);
+                    self.decoder.push(self.reader.push(chunk)?);
+                }
+                None => {
+                    self.decoder.push(self.reader.finish()?);
+                    self.ended = true;
+                }
+            }
+        }
+    }
+}
+
+impl Stream for BatchStream {
+    type Item = Result<(RecordBatch, u64)>;
+
+    fn poll_next(self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        let this = self.get_mut();
+        if this.done {
+            return Poll::Ready(None);
+        }
+        match ready!(this.poll_batch(cx)) {
+            Ok(Some(batch)) => {
+                this.rows += batch.num_rows();
+                this.bytes += batch.get_array_memory_size();
+                let received_bytes = mem::take(&mut this.received_bytes);
+                Poll::Ready(Some(Ok((batch, received_bytes))))
+            }
+            Ok(None) => {
+                this.done = true;
+                if let Some(observer) = this.observer.take() {
+                    observer(this.rows, this.bytes);
+                }
+                Poll::Ready(None)
+            }
+            Err(e) => {
+                this.done = true;
+                Poll::Ready(Some(Err(e)))
+            }
+        }
+    }
+}
+
+#[cfg(test)]
+pub(crate) mod tests {
+    use super::*;
+    use crate::compression::TransferCounter;
+    use crate::error::RequestKind;
+    use crate::metrics::request_metrics;
+    use arrow_array::Int32Array;
+    use arrow_ipc::writer::StreamWriter;
+    use arrow_schema::{DataType, Field, Schema};
+    use reqwest::header::HeaderMap;
+    use std::collections::HashMap;
+    use std::sync::Arc;
+
+    fn encode(metadata: HashMap<String, String>, batches: usize) -> Vec<u8> {
+        let schema = Arc::new(
+            Schema::new(vec![Field::new("a", DataType::Int32, false)]).with_metadata(metadata),
+        );
+        let mut buf = vec![];
+        let mut writer = StreamWriter::try_new(&mut buf, &schema).unwrap();
+        for i in 0..batches {
+            let array = Int32Array::from(vec![i as i32; 100]);
+            let batch = RecordBatch::try_new(schema.clone(), vec![Arc::new(array)]).unwrap();
+            writer.write(&batch).unwrap();
+        }
+        writer.finish().unwrap();
+        drop(writer);
+        buf
+    }
+
+    /// An arrow page of `batches` batches of 100 rows, with `header` as its
+    /// `response_header`.
+    pub(crate) fn encode_page(header: &str, batches: usize) -> Vec<u8> {
+        encode(
+            HashMap::from([(RESPONSE_HEADER_KEY.to_string(), header.to_string())]),
+            batches,
+        )
+    }
+
+    /// Streams `payload` as a response body in chunks of `chunk_size` bytes.
+    pub(crate) async fn read_page(
+        payload: &[u8],
+        chunk_size: usize,
+    ) -> Result<(Bytes, BatchStream)> {
+        let chunks: Vec<_> = payload
+            .chunks(chunk_size)
+            .map(|chunk| Ok::<_, reqwest::Error>(Bytes::copy_from_slice(chunk)))
+            .collect();
+        let reader = BodyReader::new(&HeaderMap::new(), Arc::new(TransferCounter::default()))?;
+        let metrics = request_metrics(&RequestKind::QueryPage);
+        let mut received_bytes = 0;
+        let result = BatchStream::read_header(
+            Box::pin(tokio_stream::iter(chunks)),
+            reader,
+            metrics,
+            &mut received_bytes,
+        )
+        .await?;
+        Ok(result.unwrap())
+    }
+
+    #[tokio::test]
+    async fn decode_in_small_chunks() -> Result<()> {
+        let header = r#"{"id":"q1"}"#;
+        let payload = encode_page(header, 3);
+        let (json, batches) = read_page(&payload, 7).await?;
+        assert_eq!(json.as_ref(), header.as_bytes());
+        let batches: Vec<_> = batches.collect::<Result<_>>().await?;
+        assert_eq!(batches.len(), 3);
+        assert!(batches.iter().all(|(b, _)| b.num_rows() == 100));
+        // every byte of the body after the schema is accounted to a batch
+        // but the end of stream marker
+        let received: u64 = batches.iter().map(|(_, n)| n).sum();
+        assert!(received > 0 && received < payload.len() as u64);
+        Ok(())
+    }
+
+    #[tokio::test]
+    async fn decode_one_batch_at_a_time() -> Result<()> {
+        let payload = encode_page("{}", 3);
+        // the whole body in one chunk, the batches still come one by one
+        let (_, mut batches) = read_page(&payload, payload.len()).await?;
+        for _ in 0..3 {
+            let (batch, _) = batches.next().await.unwrap()?;
+            assert_eq!(batch.num_rows(), 100);
+        }
+        assert!(batches.next().await.is_none());
+        Ok(())
+    }
+
+    #[tokio::test]
+    async fn observe_page_size() -> Result<()> {
+        let payload = encode_page("{}", 2);
+        let (_, batches) = read_page(&payload, 64).await?;
+        let observed = Arc::new(parking_lot::Mutex::new(None));
+        let sink = observed.clone();
+        let batches = batches.observe(move |rows, bytes| *sink.lock() = Some((rows, bytes)));
+        let batches: Vec<_> = batches.collect::<Result<_>>().await?;
+        let (rows, bytes) = observed.lock().unwrap();
+        assert_eq!(rows, 200);
+        assert_eq!(
+            bytes,
+            batches
+                .iter()
+                .map(|(b, _)| b.get_array_memory_size())
+                .sum::<usize>()
+        );
+        Ok(())
+    }
+
+    #[tokio::test]
+    async fn missing_response_header() {
+        let payload = encode(HashMap::new(), 1);
+        assert!(read_page(&payload, 7).await.is_err());
+    }
+
+    #[tokio::test]
+    async fn truncated_stream() -> Result<()> {
+        let payload = encode_page("{}", 2);
+        let truncated = &payload[..payload.len() - 20];
+        let (_, batches) = read_page(truncated, 7).await?;
+        let batches: Vec<_> = batches.collect().await;
+        assert!(batches.last().unwrap().is_err());
+        Ok(())
+    }
+}
@@ -12,13 +12,17 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+use std::sync::atomic::{AtomicBool, Ordering};
 use std::sync::Arc;
-use std::time::{SystemTime, UNIX_EPOCH};
+use std::time::{Duration, Instant, SystemTime, UNIX_EPOCH};
 
 use jsonwebtoken::{encode, Algorithm, EncodingKey, Header};
+use log::warn;
+use parking_lot::{Mutex, RwLock};
 use reqwest::RequestBuilder;
 use serde::Serialize;
 
+use crate::client_mgr::GLOBAL_RUNTIME;
 use crate::error::{Error, Result};
 
 pub trait Auth: Sync + Send {
@@ -26,7 +30,14 @@ pub trait Auth: Sync + Send {
     fn can_reload(&self) -> bool {
         false
     }
+    /// Drop the cached credentials, called when the server rejects them.
+    fn invalidate(&self) {}
     fn username(&self) -> String;
+    /// Tells apart the credentials of the same username, keys the bootstrap
+    /// cache.
+    fn identity(&self) -> String {
+        self.username()
+    }
 }
 
 #[derive(Clone)]
@@ -52,6 +63,10 @@ impl Auth for BasicAuth {
     fn username(&self) -> String {
         self.username.clone()
     }
+
+    fn identity(&self) -> String {
+        format!("{}-{:016x}", self.username, hash_str(self.password.inner()))
+    }
 }
 
 #[derive(Clone)]
@@ -75,42 +90,114 @@ impl Auth for AccessTokenAuth {
     fn username(&self) -> String {
         "token".to_string()
     }
+
+    fn identity(&self) -> String {
+        format!("token-{:016x}", hash_str(self.token.inner()))
+    }
 }
 
+// how often the token file is checked for changes
+const TOKEN_FILE_CHECK_INTERVAL: Duration = Duration::from_secs(1);
+
+struct FileToken {
+    token: SensitiveString,
+    stamp: (Option<SystemTime>, u64),
+    checked_at: Instant,
+}
+
+/// The token is read again only when the modification time or the size of
+/// the file changes, checked at most once per `TOKEN_FILE_CHECK_INTERVAL`.
 #[derive(Clone)]
 pub struct AccessTokenFileAuth {
     token_file: String,
+    cached: Arc<Mutex<Option<FileToken>>>,
 }
 
 impl AccessTokenFileAuth {
     pub fn new(token_file: impl ToString) -> Self {
         let token_file = token_file.to_string();
-        Self { token_file }
+        Self {
+            token_file,
+            cached: Arc::new(Mutex::new(None)),
+        }
     }
-}
 
-impl Auth for AccessTokenFileAuth {
-    fn wrap(&self, builder: RequestBuilder) -> Result<RequestBuilder> {
+    fn token(&self) -> Result<SensitiveString> {
+        let mut cached = self.cached.lock();
+        if let Some(cached) = cached.as_mut() {
+            if cached.checked_at.elapsed() < TOKEN_FILE_CHECK_INTERVAL {
+                return Ok(cached.token.clone());
+            }
+            let stamp = self.file_stamp()?;
+            cached.checked_at = Instant::now();
+            if stamp == cached.stamp {
+                return Ok(cached.token.clone());
+            }
+        }
+        // stamp before reading, a concurrent write is then seen on next check
+        let stamp = self.file_stamp()?;
         let token = std::fs::read_to_string(&self.token_file).map_err(|e| {
             Error::IO(format!(
                 "cannot read access token from file {}: {}",
                 self.token_file, e
             ))
         })?;
-        Ok(builder.bearer_auth(token.trim()))
+        let token = SensitiveString::from(token.trim());
+        *cached = Some(FileToken {
+            token: token.clone(),
+            stamp,
+            checked_at: Instant::now(),
+        });
+        Ok(token)
+    }
+
+    fn file_stamp(&self) -> Result<(Option<SystemTime>, u64)> {
+        let metadata = std::fs::metadata(&self.token_file).map_err(|e| {
+            Error::IO(format!(
+                "cannot read access token from file {}: {}",
+                self.token_file, e
+            ))
+        })?;
+        Ok((metadata.modified().ok(), metadata.len()))
+    }
+}
+
+impl Auth for AccessTokenFileAuth {
+    fn wrap(&self, builder: RequestBuilder) -> Result<RequestBuilder> {
+        let token = self.token()?;
+        Ok(builder.bearer_auth(token.inner()))
     }
 
     fn can_reload(&self) -> bool {
         true
     }
 
+    fn invalidate(&self) {
+        *self.cached.lock() = None;
+    }
+
     fn username(&self) -> String {
         "token".to_string()
     }
+
+    fn identity(&self) -> String {
+        format!("token-file-{:016x}", hash_str(&self.token_file))
+    }
+}
+
+fn hash_str(s: &str) -> u64 {
+    use std::hash::{DefaultHasher, Hash, Hasher};
+    let mut hasher = DefaultHasher::new();
+    s.hash(&mut hasher);
+    hasher.finish()
 }
 
 const HEADER_AUTH_METHOD: &str = "X-DATABEND-AUTH-METHOD";
 const KEYPAIR_TOKEN_TTL_SECS: u64 = 60;
+// a signed token is refreshed in background after this, and no longer used
+// once less than KEYPAIR_TOKEN_EXPIRY_MARGIN is left before `exp`
+const KEYPAIR_TOKEN_REFRESH_AFTER: Duration = Duration::from_secs(KEYPAIR_TOKEN_TTL_SECS * 2 / 3);
+const KEYPAIR_TOKEN_EXPIRY_MARGIN: Duration = Duration::from_secs(10);
 
 #[derive(Serialize)]
 struct KeyPairClaims {
@@ -119,11 +206,21 @@ struct KeyPairClaims {
     exp: u64,
 }
 
+struct SignedToken {
+    token: SensitiveString,
+    refresh_at: Instant,
+    expire_at: Instant,
+}
+
+/// Signed tokens are reused until shortly before they expire, and refreshed
+/// in background so requests do not wait for the signature.
 #[derive(Clone)]
 pub struct KeyPairAuth {
     username: String,
     encoding_key: Arc<EncodingKey>,
     algorithm: Algorithm,
+    signed: Arc<RwLock<Option<SignedToken>>>,
+    refreshing: Arc<AtomicBool>,
 }
 
 impl KeyPairAuth {
@@ -155,6 +252,8 @@ impl KeyPairAuth {
             username: username.to_string(),
             encoding_key: Arc::new(encoding_key),
             algorithm,
+            signed: Arc::new(RwLock::new(None)),
+            refreshing: Arc::new(AtomicBool::new(false)),
         })
     }
 
@@ -410,13 +509,54 @@ impl KeyPairAuth {
         encode(&header, &claims, &self.encoding_key)
             .map_err(|e| Error::IO(format!("failed to sign JWT: {e}")))
     }
+
+    fn sign(&self) -> Result<SignedToken> {
+        let now = Instant::now();
+        let token = self.generate_jwt()?;
+        Ok(SignedToken {
+            token: SensitiveString(token),
+            refresh_at: now + KEYPAIR_TOKEN_REFRESH_AFTER,
+            expire_at: now + Duration::from_secs(KEYPAIR_TOKEN_TTL_SECS)
+                - KEYPAIR_TOKEN_EXPIRY_MARGIN,
+        })
+    }
+
+    fn token(&self) -> Result<SensitiveString> {
+        let now = Instant::now();
+        if let Some(signed) = self.signed.read().as_ref() {
+            if now < signed.expire_at {
+                if now >= signed.refresh_at {
+                    self.refresh_in_background();
+                }
+                return Ok(signed.token.clone());
+            }
+        }
+        let signed = self.sign()?;
+        let token = signed.token.clone();
+        *self.signed.write() = Some(signed);
+        Ok(token)
+    }
+
+    fn refresh_in_background(&self) {
+        if self.refreshing.swap(true, Ordering::AcqRel) {
+            return;
+        }
+        let auth = self.clone();
+        GLOBAL_RUNTIME.spawn_blocking(move || {
+            match auth.sign() {
+                Ok(signed) => *auth.signed.write() = Some(signed),
+                Err(e) => warn!("failed to refresh key-pair token: {e}"),
+            }
+            auth.refreshing.store(false, Ordering::Release);
+        });
+    }
 }
 
 impl Auth for KeyPairAuth {
     fn wrap(&self, builder: RequestBuilder) -> Result<RequestBuilder> {
-        let token = self.generate_jwt()?;
+        let token = self.token()?;
         Ok(builder
-            .bearer_auth(token)
+            .bearer_auth(token.inner())
             .header(HEADER_AUTH_METHOD, "keypair"))
     }
 
@@ -424,6 +564,10 @@ impl Auth for KeyPairAuth {
         true
     }
 
+    fn invalidate(&self) {
+        *self.signed.write() = None;
+    }
+
     fn username(&self) -> String {
         self.username.clone()
     }
@@ -535,6 +679,61 @@ mod tests {
         assert_eq!(parts.len(), 3);
     }
 
+    fn bearer_token(auth: &dyn Auth) -> String {
+        let request = auth
+            .wrap(reqwest::Client::new().get("http://localhost/v1/query"))
+            .unwrap()
+            .build()
+            .unwrap();
+        let authorization = request
+            .headers()
+            .get(reqwest::header::AUTHORIZATION)
+            .and_then(|value| value.to_str().ok())
+            .unwrap_or_default();
+        authorization["Bearer ".len()..].to_string()
+    }
+
+    #[test]
+    fn keypair_auth_reuses_signed_token() {
+        use std::io::Write;
+        use tempfile::NamedTempFile;
+
+        let output = std::process::Command::new("openssl")
+            .args(["genpkey", "-algorithm", "ED25519"])
+            .output();
+        let output = match output {
+            Ok(o) if o.status.success() => o,
+            _ => return,
+        };
+        let mut key_file = NamedTempFile::new().unwrap();
+        key_file.write_all(&output.stdout).unwrap();
+
+        let auth = KeyPairAuth::new("testuser", key_file.path().to_str().unwrap(), None).unwrap();
+        let token = bearer_token(&auth);
+        assert_eq!(token.split('.').count(), 3);
+        assert_eq!(bearer_token(&auth), token);
+        assert!(auth.signed.read().is_some());
+
+        auth.invalidate();
+        assert!(auth.signed.read().is_none());
+        assert_eq!(bearer_token(&auth).split('.').count(), 3);
+    }
+
+    #[test]
+    fn access_token_file_auth_reloads_on_invalidate() {
+        use std::io::Write;
+        use tempfile::NamedTempFile;
+
+        let mut token_file = NamedTempFile::new().unwrap();
+        writeln!(token_file, "token-1").unwrap();
+        let auth = AccessTokenFileAuth::new(token_file.path().to_str().unwrap());
+        assert_eq!(bearer_token(&auth), "token-1");
+
+        std::fs::write(token_file.path(), "token-22\n").unwrap();
+        auth.invalidate();
+        assert_eq!(bearer_token(&auth), "token-22");
+    }
+
     #[test]
     fn keypair_auth_rsa_pkcs1_bundle_selects_private_key_block() {
         use std::io::Write;
@@ -0,0 +1,256 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::HashMap;
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::time::{Duration, Instant};
+
+use parking_lot::Mutex;
+use reqwest::StatusCode;
+use url::Url;
+
+// weight of the latest request in the latency average
+const SMOOTHING: f64 = 0.3;
+const EJECT_BASE: Duration = Duration::from_secs(1);
+const EJECT_MAX: Duration = Duration::from_secs(60);
+
+#[derive(Default)]
+struct Health {
+    latency_ms: Option<f64>,
+    failures: u32,
+    ejected_until: Option<Instant>,
+}
+
+struct Endpoint {
+    url: Url,
+    in_flight: AtomicUsize,
+    health: Mutex<Health>,
+}
+
+/// Query nodes given by the `hosts` DSN option. A new query goes to the
+/// endpoint with the lowest latency average weighted by its requests in
+/// flight. Endpoints failing with network errors or 5xx are ejected with
+/// exponential backoff.
+///
+/// Requests of a running query, and of a session that must stay on a node,
+/// go to the endpoint the node was seen on, see `bind_node`.
+pub(crate) struct EndpointBalancer {
+    endpoints: Vec<Endpoint>,
+    nodes: Mutex<HashMap<String, usize>>,
+}
+
+/// An outstanding request to an endpoint, counted as in flight until dropped.
+pub(crate) struct EndpointRequest<'a> {
+    balancer: &'a EndpointBalancer,
+    index: usize,
+    start: Instant,
+}
+
+impl EndpointBalancer {
+    pub(crate) fn new(urls: Vec<Url>) -> Self {
+        let endpoints = urls
+            .into_iter()
+            .map(|url| Endpoint {
+                url,
+                in_flight: AtomicUsize::new(0),
+                health: Mutex::new(Health::default()),
+            })
+            .collect();
+        Self {
+            endpoints,
+            nodes: Mutex::new(HashMap::new()),
+        }
+    }
+
+    /// Endpoint for a new query.
+    pub(crate) fn pick(&self) -> usize {
+        if self.endpoints.len() <= 1 {
+            return 0;
+        }
+        let now = Instant::now();
+        let mut best: Option<(usize, f64)> = None;
+        let mut first_back: Option<(usize, Instant)> = None;
+        for (i, endpoint) in self.endpoints.iter().enumerate() {
+            let health = endpoint.health.lock();
+            if let Some(until) = health.ejected_until.filter(|until| *until > now) {
+                if first_back.is_none_or(|(_, t)| until < t) {
+                    first_back = Some((i, until));
+                }
+                continue;
+            }
+            // endpoints without samples yet are tried first
+            let latency = health.latency_ms.unwrap_or(0.0);
+            let in_flight = endpoint.in_flight.load(Ordering::Relaxed);
+            let score = (latency + 1.0) * (in_flight + 1) as f64;
+            if best.is_none_or(|(_, s)| score < s) {
+                best = Some((i, score));
+            }
+        }
+        match (best, first_back) {
+            (Some((i, _)), _) => i,
+            // all ejected, try the one coming back first
+            (None, Some((i, _))) => i,
+            (None, None) => 0,
+        }
+    }
+
+    pub(crate) fn url(&self, index: usize) -> &Url {
+        &self.endpoints[index].url
+    }
+
+    /// Endpoint the node was last seen on, if any.
+    pub(crate) fn node_endpoint(&self, node_id: &str) -> Option<usize> {
+        if self.endpoints.len() <= 1 {
+            return None;
+        }
+        self.nodes.lock().get(node_id).copied()
+    }
+
+    pub(crate) fn bind_node(&self, node_id: &str, index: usize) {
+        if self.endpoints.len() <= 1 {
+            return;
+        }
+        let mut nodes = self.nodes.lock();
+        if nodes.get(node_id) != Some(&index) {
+            nodes.insert(node_id.to_string(), index);
+        }
+    }
+
+    pub(crate) fn begin(&self, index: usize) -> EndpointRequest<'_> {
+        self.endpoints[index]
+            .in_flight
+            .fetch_add(1, Ordering::Relaxed);
+        EndpointRequest {
+            balancer: self,
+            index,
+            start: Instant::now(),
+        }
+    }
+
+    fn observe(&self, index: usize, latency: Option<Duration>) {
+        if self.endpoints.len() <= 1 {
+            return;
+        }
+        let mut health = self.endpoints[index].health.lock();
+        match latency {
+            Some(latency) => {
+                let sample = latency.as_secs_f64() * 1000.0;
+                health.latency_ms = Some(match health.latency_ms {
+                    Some(current) => current * (1.0 - SMOOTHING) + sample * SMOOTHING,
+                    None => sample,
+                });
+                health.failures = 0;
+                health.ejected_until = None;
+            }
+            None => {
+                health.failures += 1;
+                let backoff = EJECT_BASE
+                    .saturating_mul(1u32 << (health.failures - 1).min(16))
+                    .min(EJECT_MAX);
+                health.ejected_until = Some(Instant::now() + backoff);
+            }
+        }
+    }
+}
+
+impl EndpointRequest<'_> {
+    pub(crate) fn index(&self) -> usize {
+        self.index
+    }
+
+    pub(crate) fn succeeded(self) {
+        self.balancer
+            .observe(self.index, Some(self.start.elapsed()));
+    }
+
+    pub(crate) fn failed(self) {
+        self.balancer.observe(self.index, None);
+    }
+
+    /// Ends a request of a running query, `None` for a transport error. The
+    /// endpoint is ejected on failures, but no latency is sampled as it
+    /// includes the wait on the server.
+    pub(crate) fn finished(self, status: Option<StatusCode>) {
+        if status.is_none_or(|status| status.is_server_error()) {
+            self.failed();
+        }
+    }
+}
+
+impl Drop for EndpointRequest<'_> {
+    fn drop(&mut self) {
+        self.balancer.endpoints[self.index]
+            .in_flight
+            .fetch_sub(1, Ordering::Relaxed);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn balancer() -> EndpointBalancer {
+        EndpointBalancer::new(vec![
+            Url::parse("http://node1:8000").unwrap(),
+            Url::parse("http://node2:8000").unwrap(),
+        ])
+    }
+
+    #[test]
+    fn pick_by_latency_and_ejection() {
+        let balancer = balancer();
+        balancer.observe(0, Some(Duration::from_millis(100)));
+        balancer.observe(1, Some(Duration::from_millis(10)));
+        assert_eq!(balancer.pick(), 1);
+
+        // requests in flight count against the faster endpoint
+        let requests: Vec<_> = (0..20).map(|_| balancer.begin(1)).collect();
+        assert_eq!(balancer.pick(), 0);
+        drop(requests);
+        assert_eq!(balancer.pick(), 1);
+
+        balancer.begin(1).failed();
+        assert_eq!(balancer.pick(), 0);
+        balancer.begin(0).failed();
+        balancer.begin(0).failed();
+        // all ejected, node2 comes back first
+        assert_eq!(balancer.pick(), 1);
+    }
+
+    #[test]
+    fn finish_request_of_running_query() {
+        let balancer = balancer();
+        balancer.observe(0, Some(Duration::from_millis(10)));
+        balancer.observe(1, Some(Duration::from_millis(100)));
+
+        balancer.begin(0).finished(Some(StatusCode::OK));
+        assert_eq!(balancer.endpoints[0].in_flight.load(Ordering::Relaxed), 0);
+        assert_eq!(balancer.pick(), 0);
+
+        balancer.begin(0).finished(Some(StatusCode::BAD_GATEWAY));
+        assert_eq!(balancer.pick(), 1);
+        balancer.begin(1).finished(None);
+        // all ejected, node1 comes back first
+        assert_eq!(balancer.pick(), 0);
+    }
+
+    #[test]
+    fn bind_node_to_endpoint() {
+        let balancer = balancer();
+        assert_eq!(balancer.node_endpoint("n1"), None);
+        balancer.bind_node("n1", 1);
+        assert_eq!(balancer.node_endpoint("n1"), Some(1));
+        assert_eq!(balancer.url(1).host_str(), Some("node2"));
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::io::Write;
+use std::path::{Path, PathBuf};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::time::{Duration, SystemTime, UNIX_EPOCH};
+
+use log::warn;
+use serde::{Deserialize, Serialize};
+
+use crate::login::SessionTokenInfo;
+
+// server version and presign mode are detected again after this
+const BOOTSTRAP_CACHE_TTL: Duration = Duration::from_secs(24 * 3600);
+// a cached session token is not reused when it expires sooner than this
+const SESSION_TOKEN_MARGIN: Duration = Duration::from_secs(60);
+
+static CLAIM_SEQ: AtomicU64 = AtomicU64::new(0);
+
+/// What `APIClient::new` learns from the server, saved to skip the login and
+/// presign detection round trips on the next start.
+#[derive(Serialize, Deserialize, Debug, Clone, Default)]
+pub(crate) struct BootstrapEntry {
+    pub saved_at: u64,
+    pub server_version: Option<String>,
+    /// Presign mode found with `presign=detect`, `true` for on.
+    pub presign_detected: Option<bool>,
+    pub session: Option<CachedSession>,
+}
+
+#[derive(Serialize, Deserialize, Debug, Clone)]
+pub(crate) struct CachedSession {
+    pub session_id: String,
+    pub tokens: SessionTokenInfo,
+    /// Unix time the session token was issued or refreshed.
+    pub issued_at: u64,
+}
+
+impl BootstrapEntry {
+    pub fn is_fresh(&self) -> bool {
+        unix_now().saturating_sub(self.saved_at) < BOOTSTRAP_CACHE_TTL.as_secs()
+    }
+}
+
+impl CachedSession {
+    /// Age of the session token if it is still valid for a while.
+    pub fn valid_token_age(&self) -> Option<Duration> {
+        let age = unix_now().saturating_sub(self.issued_at);
+        let ttl = self.tokens.session_token_ttl_in_secs;
+        if age + SESSION_TOKEN_MARGIN.as_secs() < ttl {
+            Some(Duration::from_secs(age))
+        } else {
+            None
+        }
+    }
+}
+
+/// Bootstrap cache file of one user on one server, enabled with the
+/// `bootstrap_cache_dir` DSN option.
+pub(crate) struct BootstrapCache {
+    path: PathBuf,
+}
+
+impl BootstrapCache {
+    pub fn new(dir: &Path, identity: &str, host: &str, port: u16) -> Self {
+        let name: String = format!("{identity}@{host}_{port}")
+            .chars()
+            .map(|c| {
+                if c.is_ascii_alphanumeric() || matches!(c, '.' | '-' | '_' | '@') {
+                    c
+                } else {
+                    '_'
+                }
+            })
+            .collect();
+        Self {
+            path: dir.join(format!("{name}.json")),
+        }
+    }
+
+    pub fn load(&self) -> Option<BootstrapEntry> {
+        Self::read(&self.path)
+    }
+
+    /// Load the entry and take its session out of the file, so that only one
+    /// process reuses a session. It is saved again when the client closes.
+    ///
+    /// The file is moved away first, which only one process can do, and
+    /// written back without the session.
+    pub fn take(&self) -> Option<BootstrapEntry> {
+        let seq = CLAIM_SEQ.fetch_add(1, Ordering::Relaxed);
+        let claimed = self
+            .path
+            .with_extension(format!("{}.{seq}.claim", std::process::id()));
+        std::fs::rename(&self.path, &claimed).ok()?;
+        let entry = Self::read(&claimed);
+        let _ = std::fs::remove_file(&claimed);
+        let entry = entry?;
+        let rest = BootstrapEntry {
+            session: None,
+            ..entry.clone()
+        };
+        if let Err(e) = self.write(&rest) {
+            warn!("fail to write bootstrap cache {}: {e}", self.path.display());
+        }
+        Some(entry)
+    }
+
+    fn read(path: &Path) -> Option<BootstrapEntry> {
+        let data = std::fs::read(path).ok()?;
+        match serde_json::from_slice::<BootstrapEntry>(&data) {
+            Ok(entry) if entry.is_fresh() => Some(entry),
+            Ok(_) => None,
+            Err(e) => {
+                warn!("ignore invalid bootstrap cache {}: {e}", path.display());
+                None
+            }
+        }
+    }
+
+    pub fn store(&self, mut entry: BootstrapEntry) {
+        entry.saved_at = unix_now();
+        if let Err(e) = self.write(&entry) {
+            warn!("fail to write bootstrap cache {}: {e}", self.path.display());
+        }
+    }
+
+    fn write(&self, entry: &BootstrapEntry) -> std::io::Result<()> {
+        if let Some(dir) = self.path.parent() {
+            std::fs::create_dir_all(dir)?;
+        }
+        let data = serde_json::to_vec(entry)?;
+        // replace the file atomically, other processes may read it meanwhile
+        let tmp = self
+            .path
+            .with_extension(format!("{}.tmp", std::process::id()));
+        let mut options = std::fs::OpenOptions::new();
+        options.write(true).create(true).truncate(true);
+        // the file may hold a session token
+        #[cfg(unix)]
+        std::os::unix::fs::OpenOptionsExt::mode(&mut options, 0o600);
+        let mut file = options.open(&tmp)?;
+        file.write_all(&data)?;
+        drop(file);
+        std::fs::rename(&tmp, &self.path)
+    }
+}
+
+pub(crate) fn unix_now() -> u64 {
+    SystemTime::now()
+        .duration_since(UNIX_EPOCH)
+        .map(|d| d.as_secs())
+        .unwrap_or_default()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn bootstrap_cache_roundtrip() {
+        let dir = tempfile::tempdir().unwrap();
+        let cache = BootstrapCache::new(dir.path(), "root", "localhost", 8000);
+        assert!(cache.load().is_none());
+
+        cache.store(BootstrapEntry {
+            server_version: Some("1.2.900".to_string()),
+            presign_detected: Some(true),
+            session: Some(CachedSession {
+                session_id: "s1".to_string(),
+                tokens: SessionTokenInfo {
+                    session_token: "token".to_string(),
+                    session_token_ttl_in_secs: 3600,
+                    refresh_token: "refresh".to_string(),
+                },
+                issued_at: unix_now() - 10,
+            }),
+            ..Default::default()
+        });
+        let entry = cache.load().unwrap();
+        assert_eq!(entry.server_version.as_deref(), Some("1.2.900"));
+        assert_eq!(entry.presign_detected, Some(true));
+        let session = entry.session.unwrap();
+        assert!(session.valid_token_age().unwrap() >= Duration::from_secs(10));
+
+        let expired = CachedSession {
+            issued_at: unix_now() - 3590,
+            ..session
+        };
+        assert!(expired.valid_token_age().is_none());
+    }
+
+    #[test]
+    fn take_session_once() {
+        let dir = tempfile::tempdir().unwrap();
+        let cache = BootstrapCache::new(dir.path(), "root", "localhost", 8000);
+        assert!(cache.take().is_none());
+        cache.store(BootstrapEntry {
+            server_version: Some("1.2.900".to_string()),
+            session: Some(CachedSession {
+                session_id: "s1".to_string(),
+                tokens: SessionTokenInfo {
+                    session_token: "token".to_string(),
+                    session_token_ttl_in_secs: 3600,
+                    refresh_token: "refresh".to_string(),
+                },
+                issued_at: unix_now(),
+            }),
+            ..Default::default()
+        });
+        let entry = cache.take().unwrap();
+        assert_eq!(entry.session.unwrap().session_id, "s1");
+        // the next process finds the server version only
+        let entry = cache.take().unwrap();
+        assert!(entry.session.is_none());
+        assert_eq!(entry.server_version.as_deref(), Some("1.2.900"));
+    }
+}
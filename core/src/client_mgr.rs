@@ -15,10 +15,12 @@
 use crate::APIClient;
 use once_cell::sync::Lazy;
 use parking_lot::Mutex;
-use std::collections::HashMap;
+use std::cmp::Reverse;
+use std::collections::{BinaryHeap, HashMap};
+use std::sync::atomic::{AtomicU64, Ordering};
 use std::sync::{Arc, Weak};
 use tokio::runtime::Runtime;
-use tokio::sync::Notify;
+use tokio::sync::{Notify, Semaphore};
 use tokio::time::{Duration, Instant};
 
 pub static GLOBAL_CLIENT_MANAGER: Lazy<ClientManager> = Lazy::new(ClientManager::new);
@@ -29,9 +31,139 @@ pub static GLOBAL_RUNTIME: Lazy<Runtime> = Lazy::new(|| {
         .expect("Failed to create global Tokio runtime")
 });
 
+const MAX_CONCURRENT_HEARTBEATS: usize = 64;
+// never reschedule a session sooner, e.g. after a failed heartbeat
+const MIN_HEARTBEAT_DELAY: Duration = Duration::from_secs(1);
+
+/// Heartbeats sent by all sessions of the process.
+#[derive(Clone, Debug, Default)]
+pub struct HeartbeatStats {
+    pub sent: u64,
+    pub failed: u64,
+    pub total_latency: Duration,
+    pub max_latency: Duration,
+}
+
+pub fn heartbeat_stats() -> HeartbeatStats {
+    GLOBAL_CLIENT_MANAGER.stats()
+}
+
+/// Sessions ordered by the time of their next heartbeat.
+#[derive(Default)]
+struct HeartbeatQueue {
+    heap: BinaryHeap<Reverse<(Instant, String)>>,
+}
+
+impl HeartbeatQueue {
+    /// Returns true when the session becomes the first one due.
+    fn push(&mut self, at: Instant, session_id: String) -> bool {
+        let first = self.next_at().is_none_or(|next| at < next);
+        self.heap.push(Reverse((at, session_id)));
+        first
+    }
+
+    fn next_at(&self) -> Option<Instant> {
+        self.heap.peek().map(|Reverse((at, _))| *at)
+    }
+
+    fn pop_due(&mut self, now: Instant) -> Vec<String> {
+        let mut due = Vec::new();
+        while self.next_at().is_some_and(|at| at <= now) {
+            if let Some(Reverse((_, session_id))) = self.heap.pop() {
+                due.push(session_id);
+            }
+        }
+        due
+    }
+}
+
+#[derive(Default)]
+struct HeartbeatCounters {
+    sent: AtomicU64,
+    failed: AtomicU64,
+    total_latency_nanos: AtomicU64,
+    max_latency_nanos: AtomicU64,
+}
+
+/// Schedules the heartbeat of each session when its queries need one, so a
+/// slow node only delays the sessions talking to it. Heartbeats run
+/// concurrently up to `MAX_CONCURRENT_HEARTBEATS`.
+struct Scheduler {
+    clients: Mutex<HashMap<String, Weak<APIClient>>>,
+    queue: Mutex<HeartbeatQueue>,
+    notify: Notify,
+    slots: Arc<Semaphore>,
+    counters: HeartbeatCounters,
+    idle_interval: Duration,
+    busy_interval: Duration,
+}
+
+impl Scheduler {
+    fn schedule(&self, at: Instant, session_id: String) {
+        if self.queue.lock().push(at, session_id) {
+            self.notify.notify_one();
+        }
+    }
+
+    async fn run(self: Arc<Self>) {
+        loop {
+            let next = self.queue.lock().next_at();
+            let deadline = next.unwrap_or_else(|| Instant::now() + self.idle_interval);
+            let _ = tokio::time::timeout_at(deadline, self.notify.notified()).await;
+
+            let due = self.queue.lock().pop_due(Instant::now());
+            for session_id in due {
+                let client = self.clients.lock().get(&session_id).cloned();
+                // unregistered or dropped sessions are not rescheduled
+                let Some(client) = client.and_then(|c| c.upgrade()) else {
+                    continue;
+                };
+                let Ok(permit) = self.slots.clone().acquire_owned().await else {
+                    return;
+                };
+                let scheduler = self.clone();
+                GLOBAL_RUNTIME.spawn(async move {
+                    scheduler.heartbeat(&client).await;
+                    drop(permit);
+                    let delay = client
+                        .next_heartbeat_in(scheduler.busy_interval)
+                        .max(MIN_HEARTBEAT_DELAY);
+                    scheduler.schedule(Instant::now() + delay, client.session_id.clone());
+                });
+            }
+        }
+    }
+
+    async fn heartbeat(&self, client: &APIClient) {
+        let start = Instant::now();
+        match client.try_heartbeat().await {
+            Ok(sent) => {
+                if sent {
+                    self.record(start.elapsed(), false);
+                }
+            }
+            Err(err) => {
+                self.record(start.elapsed(), true);
+                let session_id = client.session_id.as_str();
+                log::error!("[session {session_id}] heartbeat failed: {err}");
+            }
+        }
+    }
+
+    fn record(&self, latency: Duration, failed: bool) {
+        let c = &self.counters;
+        let nanos = latency.as_nanos() as u64;
+        c.sent.fetch_add(1, Ordering::Relaxed);
+        if failed {
+            c.failed.fetch_add(1, Ordering::Relaxed);
+        }
+        c.total_latency_nanos.fetch_add(nanos, Ordering::Relaxed);
+        c.max_latency_nanos.fetch_max(nanos, Ordering::Relaxed);
+    }
+}
+
 pub(crate) struct ClientManager {
-    clients: Arc<Mutex<HashMap<String, Weak<APIClient>>>>,
-    notify: Arc<Notify>,
+    scheduler: Arc<Scheduler>,
 }
 
 impl ClientManager {
@@ -44,58 +176,41 @@ impl ClientManager {
                 .parse()
                 .expect("Failed to parse DATABEND_DRIVER_HEARTBEAT_INTERVAL_SECONDS");
         }
-        let clients = Arc::new(Mutex::new(HashMap::<String, Weak<APIClient>>::new()));
-        let clients_clone = clients.clone();
-        let notify = Arc::new(Notify::new());
-        let notify_clone = Arc::clone(&notify);
-        GLOBAL_RUNTIME.spawn(async move {
-            let mut interval = idle_interval;
-            loop {
-                match tokio::time::timeout_at(
-                    Instant::now() + Duration::from_secs(interval),
-                    notify_clone.notified(),
-                )
-                .await
-                {
-                    Ok(()) => {
-                        interval = busy_interval;
-                    }
-                    Err(_) => {
-                        let clients: Vec<_> = clients_clone.lock().values().cloned().collect();
-                        if clients.is_empty() {
-                            let guard = clients_clone.lock();
-                            if guard.is_empty() {
-                                interval = idle_interval;
-                            }
-                        } else {
-                            for client in clients {
-                                if let Some(client) = client.upgrade() {
-                                    if let Err(err) = client.try_heartbeat().await {
-                                        let session_id = client.session_id.as_str();
-                                        log::error!(
-                                            "[session {session_id}] heartbeat failed: {err}"
-                                        );
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        let scheduler = Arc::new(Scheduler {
+            clients: Mutex::new(HashMap::new()),
+            queue: Mutex::new(HeartbeatQueue::default()),
+            notify: Notify::new(),
+            slots: Arc::new(Semaphore::new(MAX_CONCURRENT_HEARTBEATS)),
+            counters: HeartbeatCounters::default(),
+            idle_interval: Duration::from_secs(idle_interval),
+            busy_interval: Duration::from_secs(busy_interval),
         });
-        Self { clients, notify }
+        GLOBAL_RUNTIME.spawn(scheduler.clone().run());
+        Self { scheduler }
     }
 
     pub(crate) async fn register_client(&self, client: Arc<APIClient>) {
-        let mut guard = self.clients.lock();
-        guard.insert(client.session_id.clone(), Arc::downgrade(&client));
-        if guard.len() == 1 {
-            self.notify.notify_one();
-        }
+        let session_id = client.session_id.clone();
+        self.scheduler
+            .clients
+            .lock()
+            .insert(session_id.clone(), Arc::downgrade(&client));
+        let at = Instant::now() + self.scheduler.busy_interval;
+        self.scheduler.schedule(at, session_id);
     }
 
     pub(crate) fn unregister_client(&self, id: &str) {
-        self.clients.lock().remove(id);
+        self.scheduler.clients.lock().remove(id);
+    }
+
+    fn stats(&self) -> HeartbeatStats {
+        let c = &self.scheduler.counters;
+        HeartbeatStats {
+            sent: c.sent.load(Ordering::Relaxed),
+            failed: c.failed.load(Ordering::Relaxed),
+            total_latency: Duration::from_nanos(c.total_latency_nanos.load(Ordering::Relaxed)),
+            max_latency: Duration::from_nanos(c.max_latency_nanos.load(Ordering::Relaxed)),
+        }
     }
 }
 
@@ -117,7 +232,7 @@ mod tests {
         });
 
         {
-            let guard = mgr.clients.lock();
+            let guard = mgr.scheduler.clients.lock();
             let stored = guard.get("session-1").expect("client not stored");
             assert!(
                 stored.upgrade().is_some(),
@@ -127,7 +242,7 @@ mod tests {
         }
 
         drop(client);
-        let guard = mgr.clients.lock();
+        let guard = mgr.scheduler.clients.lock();
         let stored = guard.get("session-1").expect("client missing after drop");
         assert!(
             stored.upgrade().is_none(),
@@ -150,8 +265,25 @@ mod tests {
 
         mgr.unregister_client("session-2");
         assert!(
-            !mgr.clients.lock().contains_key("session-2"),
+            !mgr.scheduler.clients.lock().contains_key("session-2"),
             "client entry should be removed after unregister"
         );
     }
+
+    #[test]
+    fn heartbeat_queue_pops_due_sessions() {
+        let now = Instant::now();
+        let mut queue = HeartbeatQueue::default();
+        assert!(queue.push(now + Duration::from_secs(10), "s1".to_string()));
+        assert!(queue.push(now + Duration::from_secs(5), "s2".to_string()));
+        assert!(!queue.push(now + Duration::from_secs(20), "s3".to_string()));
+        assert_eq!(queue.next_at(), Some(now + Duration::from_secs(5)));
+
+        assert!(queue.pop_due(now).is_empty());
+        assert_eq!(
+            queue.pop_due(now + Duration::from_secs(10)),
+            vec!["s2".to_string(), "s1".to_string()]
+        );
+        assert_eq!(queue.next_at(), Some(now + Duration::from_secs(20)));
+    }
 }
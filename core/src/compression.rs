@@ -0,0 +1,243 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::io::Write;
+use std::str::FromStr;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::Arc;
+
+use bytes::Bytes;
+use flate2::write::GzDecoder;
+use reqwest::header::{HeaderMap, CONTENT_ENCODING};
+
+use crate::error::{Error, Result};
+
+/// Compression of result pages asked with `Accept-Encoding`.
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub(crate) enum WireCompression {
+    None,
+    Gzip,
+    Zstd,
+}
+
+impl FromStr for WireCompression {
+    type Err = Error;
+
+    fn from_str(s: &str) -> Result<Self> {
+        match s.to_lowercase().as_str() {
+            "none" => Ok(Self::None),
+            "gzip" => Ok(Self::Gzip),
+            "zstd" => Ok(Self::Zstd),
+            _ => Err(Error::BadArgument(format!(
+                "Invalid value for compression: {s}"
+            ))),
+        }
+    }
+}
+
+impl WireCompression {
+    pub(crate) fn accept_encoding(&self) -> Option<&'static str> {
+        match self {
+            Self::None => None,
+            Self::Gzip => Some("gzip"),
+            // gzip is still accepted for servers without zstd
+            Self::Zstd => Some("zstd, gzip;q=0.5"),
+        }
+    }
+}
+
+/// Bytes of result pages as received and after decompression.
+#[derive(Clone, Debug, Default)]
+pub struct TransferStats {
+    pub wire_bytes: u64,
+    pub decoded_bytes: u64,
+}
+
+/// Counts the bytes of the response bodies of a client, see `TransferStats`.
+#[derive(Debug, Default)]
+pub(crate) struct TransferCounter {
+    wire_bytes: AtomicU64,
+    decoded_bytes: AtomicU64,
+}
+
+impl TransferCounter {
+    pub(crate) fn stats(&self) -> TransferStats {
+        TransferStats {
+            wire_bytes: self.wire_bytes.load(Ordering::Relaxed),
+            decoded_bytes: self.decoded_bytes.load(Ordering::Relaxed),
+        }
+    }
+}
+
+/// Decompresses a response body with `BodyDecoder`, counting its bytes.
+pub(crate) struct BodyReader {
+    decoder: Option<BodyDecoder>,
+    counter: Arc<TransferCounter>,
+}
+
+impl BodyReader {
+    pub(crate) fn new(headers: &HeaderMap, counter: Arc<TransferCounter>) -> Result<Self> {
+        Ok(Self {
+            decoder: Some(BodyDecoder::from_headers(headers)?),
+            counter,
+        })
+    }
+
+    pub(crate) fn push(&mut self, chunk: Bytes) -> Result<Bytes> {
+        let decoder = self.decoder.as_mut().ok_or_else(finished)?;
+        self.counter
+            .wire_bytes
+            .fetch_add(chunk.len() as u64, Ordering::Relaxed);
+        let chunk = decoder.push(chunk)?;
+        self.counter
+            .decoded_bytes
+            .fetch_add(chunk.len() as u64, Ordering::Relaxed);
+        Ok(chunk)
+    }
+
+    pub(crate) fn finish(&mut self) -> Result<Bytes> {
+        let rest = self.decoder.take().ok_or_else(finished)?.finish()?;
+        self.counter
+            .decoded_bytes
+            .fetch_add(rest.len() as u64, Ordering::Relaxed);
+        Ok(rest)
+    }
+}
+
+/// Decompresses a response body chunk by chunk according to its
+/// `Content-Encoding`.
+pub(crate) enum BodyDecoder {
+    Identity,
+    Gzip(GzDecoder<Vec<u8>>),
+    Zstd(zstd::stream::write::Decoder<'static, Vec<u8>>),
+}
+
+impl BodyDecoder {
+    pub(crate) fn from_headers(headers: &HeaderMap) -> Result<Self> {
+        let encoding = headers
+            .get(CONTENT_ENCODING)
+            .and_then(|v| v.to_str().ok())
+            .map(|v| v.trim().to_lowercase());
+        match encoding.as_deref() {
+            None | Some("") | Some("identity") => Ok(Self::Identity),
+            Some("gzip") => Ok(Self::Gzip(GzDecoder::new(Vec::new()))),
+            Some("zstd") => {
+                let decoder = zstd::stream::write::Decoder::new(Vec::new())
+                    .map_err(|e| Error::Decode(format!("fail to create zstd decoder: {e}")))?;
+                Ok(Self::Zstd(decoder))
+            }
+            Some(other) => Err(Error::Decode(format!(
+                "unsupported response content encoding: {other}"
+            ))),
+        }
+    }
+
+    /// Feed a chunk of the body, returning the bytes decompressed so far.
+    pub(crate) fn push(&mut self, chunk: Bytes) -> Result<Bytes> {
+        let out = match self {
+            Self::Identity => return Ok(chunk),
+            Self::Gzip(decoder) => {
+                decoder.write_all(&chunk).map_err(decode_error)?;
+                std::mem::take(decoder.get_mut())
+            }
+            Self::Zstd(decoder) => {
+                decoder.write_all(&chunk).map_err(decode_error)?;
+                decoder.flush().map_err(decode_error)?;
+                std::mem::take(decoder.get_mut())
+            }
+        };
+        Ok(Bytes::from(out))
+    }
+
+    /// Returns the rest of the body once all chunks are fed.
+    pub(crate) fn finish(self) -> Result<Bytes> {
+        let out = match self {
+            Self::Identity => Vec::new(),
+            Self::Gzip(decoder) => decoder.finish().map_err(decode_error)?,
+            Self::Zstd(mut decoder) => {
+                decoder.flush().map_err(decode_error)?;
+                decoder.into_inner()
+            }
+        };
+        Ok(Bytes::from(out))
+    }
+}
+
+fn finished() -> Error {
+    Error::Decode("response body already finished".to_string())
+}
+
+fn decode_error(e: std::io::Error) -> Error {
+    Error::Decode(format!("fail to decompress response body: {e}"))
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use flate2::write::GzEncoder;
+    use flate2::Compression;
+    use reqwest::header::HeaderValue;
+
+    fn decode(encoding: &str, body: &[u8]) -> Vec<u8> {
+        let mut headers = HeaderMap::new();
+        headers.insert(CONTENT_ENCODING, HeaderValue::from_str(encoding).unwrap());
+        let mut decoder = BodyDecoder::from_headers(&headers).unwrap();
+        let mut out = Vec::new();
+        // feed in small chunks like a network body
+        for chunk in body.chunks(7) {
+            out.extend_from_slice(&decoder.push(Bytes::copy_from_slice(chunk)).unwrap());
+        }
+        out.extend_from_slice(&decoder.finish().unwrap());
+        out
+    }
+
+    #[test]
+    fn decode_compressed_body() {
+        let data = br#"{"data":[["1","a"],["2","b"]],"next_uri":null}"#.repeat(20);
+
+        let mut encoder = GzEncoder::new(Vec::new(), Compression::default());
+        encoder.write_all(&data).unwrap();
+        let gzip = encoder.finish().unwrap();
+        assert_eq!(decode("gzip", &gzip), data);
+
+        let zstd = zstd::stream::encode_all(&data[..], 0).unwrap();
+        assert_eq!(decode("zstd", &zstd), data);
+
+        assert_eq!(decode("identity", &data), data);
+    }
+
+    #[test]
+    fn count_body_bytes() {
+        let data = b"0123456789".repeat(100);
+        let mut encoder = GzEncoder::new(Vec::new(), Compression::default());
+        encoder.write_all(&data).unwrap();
+        let gzip = encoder.finish().unwrap();
+
+        let mut headers = HeaderMap::new();
+        headers.insert(CONTENT_ENCODING, HeaderValue::from_static("gzip"));
+        let counter = Arc::new(TransferCounter::default());
+        let mut reader = BodyReader::new(&headers, counter.clone()).unwrap();
+        let mut out = Vec::new();
+        for chunk in gzip.chunks(7) {
+            out.extend_from_slice(&reader.push(Bytes::copy_from_slice(chunk)).unwrap());
+        }
+        out.extend_from_slice(&reader.finish().unwrap());
+        assert_eq!(out, data);
+        assert!(reader.finish().is_err());
+
+        let stats = counter.stats();
+        assert_eq!(stats.wire_bytes, gzip.len() as u64);
+        assert_eq!(stats.decoded_bytes, data.len() as u64);
+    }
+}
@@ -0,0 +1,350 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::cell::Cell;
+use std::fmt;
+
+use bytes::Bytes;
+use serde::de::{self, DeserializeOwned, DeserializeSeed, Deserializer, SeqAccess, Visitor};
+use serde::Deserialize;
+
+use crate::error::Result;
+use crate::json;
+
+thread_local! {
+    // address range of the body being parsed by `parse_with_body`
+    static BODY: Cell<(usize, usize)> = const { Cell::new((0, 0)) };
+}
+
+#[derive(Clone, Copy, Debug)]
+enum Span {
+    Null,
+    /// Offsets in the response body, for strings without escapes.
+    Body(usize, usize),
+    /// Offsets in the arena, for strings unescaped or copied from elsewhere.
+    Arena(usize, usize),
+}
+
+/// The `data` of a JSON result page, with the cells kept as spans of the
+/// response body instead of one `String` each. Strings with escapes are
+/// unescaped into a single arena for the page.
+#[derive(Clone, Debug, Default)]
+pub struct JsonRows {
+    body: Bytes,
+    arena: Vec<u8>,
+    spans: Vec<Span>,
+    columns: usize,
+    rows: usize,
+}
+
+/// A row of `JsonRows`.
+#[derive(Clone, Copy)]
+pub struct JsonRow<'a> {
+    rows: &'a JsonRows,
+    start: usize,
+}
+
+impl JsonRows {
+    pub fn len(&self) -> usize {
+        self.rows
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.rows == 0
+    }
+
+    pub fn num_columns(&self) -> usize {
+        self.columns
+    }
+
+    pub fn row(&self, index: usize) -> JsonRow<'_> {
+        assert!(index < self.rows, "row {index} out of {} rows", self.rows);
+        JsonRow {
+            rows: self,
+            start: index * self.columns,
+        }
+    }
+
+    pub fn iter(&self) -> impl Iterator<Item = JsonRow<'_>> {
+        (0..self.rows).map(move |i| self.row(i))
+    }
+
+    /// Memory held by the page, including the response body.
+    pub fn memory_size(&self) -> usize {
+        self.body.len() + self.arena.len() + self.spans.len() * std::mem::size_of::<Span>()
+    }
+
+    /// Copy the cells into owned strings, as in `Page::data`.
+    pub fn to_owned_rows(&self) -> Vec<Vec<Option<String>>> {
+        self.iter().map(|row| row.to_vec()).collect()
+    }
+
+    /// Append the rows of another page, copying its cells into the arena.
+    pub fn append(&mut self, other: JsonRows) {
+        if other.is_empty() {
+            return;
+        }
+        if self.is_empty() {
+            *self = other;
+            return;
+        }
+        for row in other.iter() {
+            for cell in row.iter() {
+                self.push_owned(cell);
+            }
+        }
+        self.rows += other.rows;
+    }
+
+    fn push_owned(&mut self, cell: Option<&str>) {
+        let span = match cell {
+            None => Span::Null,
+            Some(v) => {
+                let start = self.arena.len();
+                self.arena.extend_from_slice(v.as_bytes());
+                Span::Arena(start, self.arena.len())
+            }
+        };
+        self.spans.push(span);
+    }
+
+    fn push_borrowed(&mut self, v: &str) {
+        let (base, len) = BODY.with(|b| b.get());
+        let addr = v.as_ptr() as usize;
+        if base != 0 && addr >= base && addr + v.len() <= base + len {
+            self.spans.push(Span::Body(addr - base, addr - base + v.len()));
+        } else {
+            self.push_owned(Some(v));
+        }
+    }
+
+    fn cell(&self, index: usize) -> Option<&str> {
+        let bytes = match self.spans[index] {
+            Span::Null => return None,
+            Span::Body(start, end) => &self.body[start..end],
+            Span::Arena(start, end) => &self.arena[start..end],
+        };
+        // SAFETY: spans only cover whole strings given by the deserializer,
+        // which are valid UTF-8.
+        Some(unsafe { std::str::from_utf8_unchecked(bytes) })
+    }
+}
+
+impl<'a> JsonRow<'a> {
+    pub fn len(&self) -> usize {
+        self.rows.columns
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.rows.columns == 0
+    }
+
+    /// The cell of the column, `None` for NULL.
+    pub fn get(&self, column: usize) -> Option<&'a str> {
+        assert!(column < self.rows.columns);
+        self.rows.cell(self.start + column)
+    }
+
+    pub fn iter(&self) -> impl Iterator<Item = Option<&'a str>> + 'a {
+        let rows = self.rows;
+        (self.start..self.start + rows.columns).map(move |i| rows.cell(i))
+    }
+
+    pub fn to_vec(&self) -> Vec<Option<String>> {
+        self.iter().map(|v| v.map(str::to_string)).collect()
+    }
+}
+
+impl fmt::Debug for JsonRow<'_> {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        f.debug_list().entries(self.iter()).finish()
+    }
+}
+
+/// Deserialize `T` from `body`, with the `JsonRows` in it borrowing the
+/// body. Outside of this, `JsonRows` copy their cells into the arena.
+pub(crate) fn parse_with_body<T: DeserializeOwned>(
+    body: Bytes,
+    rows: impl FnOnce(&mut T) -> &mut JsonRows,
+) -> Result<T> {
+    struct Reset;
+    impl Drop for Reset {
+        fn drop(&mut self) {
+            BODY.with(|b| b.set((0, 0)));
+        }
+    }
+    let reset = Reset;
+    let (mut value, body) = json::from_bytes::<T>(body, |buf| {
+        BODY.with(|b| b.set((buf.as_ptr() as usize, buf.len())))
+    })?;
+    drop(reset);
+    let json_rows = rows(&mut value);
+    if json_rows.spans.iter().any(|s| matches!(s, Span::Body(..))) {
+        json_rows.body = body;
+    }
+    Ok(value)
+}
+
+impl<'de> Deserialize<'de> for JsonRows {
+    fn deserialize<D: Deserializer<'de>>(deserializer: D) -> Result<Self, D::Error> {
+        struct RowsVisitor;
+
+        impl<'de> Visitor<'de> for RowsVisitor {
+            type Value = JsonRows;
+
+            fn expecting(&self, f: &mut fmt::Formatter) -> fmt::Result {
+                f.write_str("an array of rows")
+            }
+
+            fn visit_unit<E: de::Error>(self) -> Result<JsonRows, E> {
+                Ok(JsonRows::default())
+            }
+
+            fn visit_seq<A: SeqAccess<'de>>(self, mut seq: A) -> Result<JsonRows, A::Error> {
+                let mut rows = JsonRows::default();
+                while seq.next_element_seed(RowSeed(&mut rows))?.is_some() {}
+                Ok(rows)
+            }
+        }
+
+        deserializer.deserialize_any(RowsVisitor)
+    }
+}
+
+struct RowSeed<'r>(&'r mut JsonRows);
+
+impl<'de> DeserializeSeed<'de> for RowSeed<'_> {
+    type Value = ();
+
+    fn deserialize<D: Deserializer<'de>>(self, deserializer: D) -> Result<(), D::Error> {
+        deserializer.deserialize_seq(self)
+    }
+}
+
+impl<'de> Visitor<'de> for RowSeed<'_> {
+    type Value = ();
+
+    fn expecting(&self, f: &mut fmt::Formatter) -> fmt::Result {
+        f.write_str("a row of nullable strings")
+    }
+
+    fn visit_seq<A: SeqAccess<'de>>(self, mut seq: A) -> Result<(), A::Error> {
+        let rows = self.0;
+        let mut columns = 0;
+        while seq.next_element_seed(CellSeed(&mut *rows))?.is_some() {
+            columns += 1;
+        }
+        if rows.rows == 0 {
+            rows.columns = columns;
+        } else if columns != rows.columns {
+            return Err(de::Error::custom(format!(
+                "row with {columns} columns, expected {}",
+                rows.columns
+            )));
+        }
+        rows.rows += 1;
+        Ok(())
+    }
+}
+
+struct CellSeed<'r>(&'r mut JsonRows);
+
+impl<'de> DeserializeSeed<'de> for CellSeed<'_> {
+    type Value = ();
+
+    fn deserialize<D: Deserializer<'de>>(self, deserializer: D) -> Result<(), D::Error> {
+        deserializer.deserialize_option(self)
+    }
+}
+
+impl<'de> Visitor<'de> for CellSeed<'_> {
+    type Value = ();
+
+    fn expecting(&self, f: &mut fmt::Formatter) -> fmt::Result {
+        f.write_str("a string or null")
+    }
+
+    fn visit_none<E: de::Error>(self) -> Result<(), E> {
+        self.0.push_owned(None);
+        Ok(())
+    }
+
+    fn visit_unit<E: de::Error>(self) -> Result<(), E> {
+        self.visit_none()
+    }
+
+    fn visit_some<D: Deserializer<'de>>(self, deserializer: D) -> Result<(), D::Error> {
+        deserializer.deserialize_str(self)
+    }
+
+    fn visit_borrowed_str<E: de::Error>(self, v: &'de str) -> Result<(), E> {
+        self.0.push_borrowed(v);
+        Ok(())
+    }
+
+    fn visit_str<E: de::Error>(self, v: &str) -> Result<(), E> {
+        self.0.push_owned(Some(v));
+        Ok(())
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[derive(Deserialize)]
+    struct Response {
+        data: JsonRows,
+    }
+
+    #[test]
+    fn borrow_cells_from_body() {
+        let body = Bytes::from_static(br#"{"data":[["1","a\"b",null],["2","c",""]]}"#);
+        let resp = parse_with_body::<Response>(body, |r| &mut r.data).unwrap();
+        let rows = resp.data;
+        assert_eq!(rows.len(), 2);
+        assert_eq!(rows.num_columns(), 3);
+        assert_eq!(rows.row(0).get(1), Some("a\"b"));
+        assert_eq!(rows.row(0).get(2), None);
+        assert_eq!(rows.row(1).get(2), Some(""));
+        // only the escaped string is copied
+        assert_eq!(rows.arena, b"a\"b");
+        assert!(matches!(rows.spans[0], Span::Body(..)));
+        assert_eq!(
+            rows.to_owned_rows(),
+            vec![
+                vec![Some("1".to_string()), Some("a\"b".to_string()), None],
+                vec![Some("2".to_string()), Some("c".to_string()), Some("".to_string())],
+            ]
+        );
+    }
+
+    #[test]
+    fn copy_cells_without_body() {
+        let mut rows = serde_json::from_str::<Response>(r#"{"data":[["1"]]}"#)
+            .unwrap()
+            .data;
+        assert!(rows.body.is_empty());
+        assert_eq!(rows.row(0).get(0), Some("1"));
+
+        let other = serde_json::from_str::<Response>(r#"{"data":[["2"],[null]]}"#)
+            .unwrap()
+            .data;
+        rows.append(other);
+        assert_eq!(rows.len(), 3);
+        assert_eq!(rows.row(2).get(0), None);
+
+        assert!(serde_json::from_str::<Response>(r#"{"data":[["1"],["2","3"]]}"#).is_err());
+    }
+}
@@ -14,33 +14,60 @@
 
 mod client;
 
+mod arrow_stream;
 mod auth;
+mod balancer;
+mod bootstrap;
 mod error;
 mod error_code;
 mod global_cookie_store;
+mod json;
+mod json_rows;
 mod login;
+mod metrics;
 mod pages;
+mod pagination;
 mod presign;
 mod request;
+mod resilience;
 mod response;
+mod schema_cache;
 
 mod capability;
 mod client_mgr;
+mod compression;
 mod session;
 mod stage;
+mod transport;
 
 pub mod schema;
 mod settings;
 
+pub use arrow_stream::BatchStream;
 pub use auth::SensitiveString;
 pub use client::APIClient;
+pub use client_mgr::heartbeat_stats;
+pub use client_mgr::HeartbeatStats;
+pub use client_mgr::GLOBAL_RUNTIME;
+pub use compression::TransferStats;
 pub use error::Error;
 pub use error::RequestKind;
+pub use json_rows::JsonRow;
+pub use json_rows::JsonRows;
+pub use metrics::metrics_snapshot;
+pub use metrics::record_decode;
+pub use metrics::render_prometheus;
+pub use metrics::DecodeMetricsSnapshot;
+pub use metrics::HistogramSnapshot;
+pub use metrics::MetricsSnapshot;
+pub use metrics::RequestMetricsSnapshot;
 pub use pages::Page;
+pub use pages::PageTiming;
 pub use pages::Pages;
 pub use presign::presign_download_from_stage;
 pub use presign::presign_upload_to_stage;
 pub use presign::PresignedResponse;
+pub use resilience::RequestStats;
 pub use response::QueryStats;
 pub use response::SchemaField;
 pub use settings::GeometryDataType;
@@ -42,7 +42,7 @@ fn default_session_token_ttl_in_secs() -> u64 {
     3600
 }
 
-#[derive(Deserialize, Debug, Clone)]
+#[derive(Serialize, Deserialize, Debug, Clone)]
 pub struct SessionTokenInfo {
     pub session_token: String,
     #[serde(default = "default_session_token_ttl_in_secs")]
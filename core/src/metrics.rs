@@ -0,0 +1,385 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::fmt::Write;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::time::Duration;
+
+use once_cell::sync::Lazy;
+use reqwest::StatusCode;
+
+use crate::error::RequestKind;
+
+// upper bounds of the latency buckets in seconds, the last bucket is +Inf
+const LATENCY_BUCKETS: [f64; 14] = [
+    0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0,
+];
+static LATENCY_BUCKETS_NANOS: Lazy<Vec<u64>> = Lazy::new(|| {
+    LATENCY_BUCKETS.iter().map(|b| (b * 1e9).round() as u64).collect()
+});
+
+// label of each `RequestKind`, all `Other` kinds share the last one
+const KIND_LABELS: [&str; 10] = [
+    "query/start",
+    "query/page",
+    "query/kill",
+    "query/final",
+    "upload_to_stage",
+    "streaming_load",
+    "login",
+    "heartbeat",
+    "session/refresh",
+    "other",
+];
+const STATUS_CLASSES: [&str; 5] = ["1xx", "2xx", "3xx", "4xx", "5xx"];
+
+static METRICS: Lazy<Metrics> = Lazy::new(Metrics::default);
+
+#[derive(Default)]
+struct Metrics {
+    requests: [RequestMetrics; KIND_LABELS.len()],
+    decode: DecodeMetrics,
+}
+
+/// Fixed buckets histogram updated with atomics only.
+#[derive(Default)]
+pub(crate) struct Histogram {
+    buckets: [AtomicU64; LATENCY_BUCKETS.len() + 1],
+    count: AtomicU64,
+    sum_nanos: AtomicU64,
+}
+
+impl Histogram {
+    pub(crate) fn observe(&self, value: Duration) {
+        let nanos = value.as_nanos().min(u64::MAX as u128) as u64;
+        let i = LATENCY_BUCKETS_NANOS.partition_point(|b| *b < nanos);
+        self.buckets[i].fetch_add(1, Ordering::Relaxed);
+        self.count.fetch_add(1, Ordering::Relaxed);
+        self.sum_nanos.fetch_add(nanos, Ordering::Relaxed);
+    }
+
+    fn snapshot(&self) -> HistogramSnapshot {
+        let mut cumulative = 0;
+        let buckets = self
+            .buckets
+            .iter()
+            .enumerate()
+            .map(|(i, b)| {
+                cumulative += b.load(Ordering::Relaxed);
+                let bound = LATENCY_BUCKETS.get(i).copied().unwrap_or(f64::INFINITY);
+                (bound, cumulative)
+            })
+            .collect();
+        HistogramSnapshot {
+            buckets,
+            count: self.count.load(Ordering::Relaxed),
+            sum: Duration::from_nanos(self.sum_nanos.load(Ordering::Relaxed)),
+        }
+    }
+}
+
+/// Counters of the requests of one `RequestKind`, shared by all clients of
+/// the process.
+#[derive(Default)]
+pub(crate) struct RequestMetrics {
+    requests: AtomicU64,
+    errors: AtomicU64,
+    retries: AtomicU64,
+    sent_bytes: AtomicU64,
+    received_bytes: AtomicU64,
+    responses: [AtomicU64; STATUS_CLASSES.len()],
+    latency: Histogram,
+}
+
+impl RequestMetrics {
+    /// Record a finished request with its retries, `status` is none if no
+    /// response was received.
+    pub(crate) fn record(&self, elapsed: Duration, status: Option<StatusCode>) {
+        self.requests.fetch_add(1, Ordering::Relaxed);
+        self.latency.observe(elapsed);
+        match status {
+            Some(status) => {
+                let class = (status.as_u16() / 100).clamp(1, 5) as usize - 1;
+                self.responses[class].fetch_add(1, Ordering::Relaxed);
+            }
+            None => {
+                self.errors.fetch_add(1, Ordering::Relaxed);
+            }
+        }
+    }
+
+    pub(crate) fn retried(&self) {
+        self.retries.fetch_add(1, Ordering::Relaxed);
+    }
+
+    pub(crate) fn sent(&self, bytes: u64) {
+        self.sent_bytes.fetch_add(bytes, Ordering::Relaxed);
+    }
+
+    pub(crate) fn received(&self, bytes: u64) {
+        self.received_bytes.fetch_add(bytes, Ordering::Relaxed);
+    }
+
+    fn snapshot(&self, kind: &'static str) -> RequestMetricsSnapshot {
+        let mut responses = [0; STATUS_CLASSES.len()];
+        for (n, c) in responses.iter_mut().zip(&self.responses) {
+            *n = c.load(Ordering::Relaxed);
+        }
+        RequestMetricsSnapshot {
+            kind,
+            requests: self.requests.load(Ordering::Relaxed),
+            errors: self.errors.load(Ordering::Relaxed),
+            retries: self.retries.load(Ordering::Relaxed),
+            sent_bytes: self.sent_bytes.load(Ordering::Relaxed),
+            received_bytes: self.received_bytes.load(Ordering::Relaxed),
+            responses,
+            latency: self.latency.snapshot(),
+        }
+    }
+}
+
+#[derive(Default)]
+struct DecodeMetrics {
+    rows: AtomicU64,
+    nanos: AtomicU64,
+}
+
+pub(crate) fn request_metrics(kind: &RequestKind) -> &'static RequestMetrics {
+    let slot = match kind {
+        RequestKind::QueryStart => 0,
+        RequestKind::QueryPage => 1,
+        RequestKind::QueryKill => 2,
+        RequestKind::QueryFinal => 3,
+        RequestKind::UploadToStage => 4,
+        RequestKind::StreamingLoad => 5,
+        RequestKind::Login => 6,
+        RequestKind::Heartbeat => 7,
+        RequestKind::SessionRefresh => 8,
+        RequestKind::Other(_) => 9,
+    };
+    &METRICS.requests[slot]
+}
+
+/// Record rows decoded from a result, used by the driver.
+pub fn record_decode(rows: usize, elapsed: Duration) {
+    let decode = &METRICS.decode;
+    decode.rows.fetch_add(rows as u64, Ordering::Relaxed);
+    decode.nanos.fetch_add(elapsed.as_nanos() as u64, Ordering::Relaxed);
+}
+
+/// Cumulative counts of a latency histogram.
+#[derive(Clone, Debug, Default)]
+pub struct HistogramSnapshot {
+    /// Upper bound in seconds and number of samples not above it, the last
+    /// bound is infinite.
+    pub buckets: Vec<(f64, u64)>,
+    pub count: u64,
+    pub sum: Duration,
+}
+
+#[derive(Clone, Debug, Default)]
+pub struct RequestMetricsSnapshot {
+    pub kind: &'static str,
+    pub requests: u64,
+    /// Requests failed without a response.
+    pub errors: u64,
+    pub retries: u64,
+    pub sent_bytes: u64,
+    /// Response bytes as received, before decompression.
+    pub received_bytes: u64,
+    /// Responses by status class, from 1xx to 5xx.
+    pub responses: [u64; 5],
+    pub latency: HistogramSnapshot,
+}
+
+#[derive(Clone, Debug, Default)]
+pub struct DecodeMetricsSnapshot {
+    pub rows: u64,
+    pub time: Duration,
+}
+
+/// Metrics of all clients of the process, see `metrics_snapshot`.
+#[derive(Clone, Debug, Default)]
+pub struct MetricsSnapshot {
+    pub requests: Vec<RequestMetricsSnapshot>,
+    pub decode: DecodeMetricsSnapshot,
+}
+
+/// Current request and decode metrics of the process.
+pub fn metrics_snapshot() -> MetricsSnapshot {
+    let requests = METRICS
+        .requests
+        .iter()
+        .zip(KIND_LABELS)
+        .map(|(m, kind)| m.snapshot(kind))
+        .collect();
+    let decode = &METRICS.decode;
+    MetricsSnapshot {
+        requests,
+        decode: DecodeMetricsSnapshot {
+            rows: decode.rows.load(Ordering::Relaxed),
+            time: Duration::from_nanos(decode.nanos.load(Ordering::Relaxed)),
+        },
+    }
+}
+
+/// Current metrics in the Prometheus text exposition format.
+pub fn render_prometheus() -> String {
+    metrics_snapshot().to_prometheus()
+}
+
+impl MetricsSnapshot {
+    pub fn to_prometheus(&self) -> String {
+        let mut out = String::new();
+        let counters: [(&str, &str, fn(&RequestMetricsSnapshot) -> u64); 5] = [
+            (
+                "databend_client_requests_total",
+                "Requests sent, retries included in one request.",
+                |m| m.requests,
+            ),
+            (
+                "databend_client_request_errors_total",
+                "Requests failed without a response.",
+                |m| m.errors,
+            ),
+            (
+                "databend_client_request_retries_total",
+                "Request retries.",
+                |m| m.retries,
+            ),
+            (
+                "databend_client_sent_bytes_total",
+                "Request body bytes sent.",
+                |m| m.sent_bytes,
+            ),
+            (
+                "databend_client_received_bytes_total",
+                "Response body bytes received.",
+                |m| m.received_bytes,
+            ),
+        ];
+        for (name, help, value) in counters {
+            header(&mut out, name, help, "counter");
+            for m in &self.requests {
+                let _ = writeln!(out, "{name}{{kind=\"{}\"}} {}", m.kind, value(m));
+            }
+        }
+
+        let name = "databend_client_responses_total";
+        header(&mut out, name, "Responses by status class.", "counter");
+        for m in &self.requests {
+            for (class, n) in STATUS_CLASSES.iter().zip(m.responses) {
+                let _ = writeln!(out, "{name}{{kind=\"{}\",status=\"{class}\"}} {n}", m.kind);
+            }
+        }
+
+        let name = "databend_client_request_duration_seconds";
+        header(&mut out, name, "Request latency.", "histogram");
+        for m in &self.requests {
+            for (bound, n) in &m.latency.buckets {
+                let le = if bound.is_infinite() {
+                    "+Inf".to_string()
+                } else {
+                    bound.to_string()
+                };
+                let _ = writeln!(out, "{name}_bucket{{kind=\"{}\",le=\"{le}\"}} {n}", m.kind);
+            }
+            let _ = writeln!(
+                out,
+                "{name}_sum{{kind=\"{}\"}} {}",
+                m.kind,
+                m.latency.sum.as_secs_f64()
+            );
+            let _ = writeln!(out, "{name}_count{{kind=\"{}\"}} {}", m.kind, m.latency.count);
+        }
+
+        let decode = [
+            (
+                "databend_driver_rows_decoded_total",
+                "Rows decoded from results.",
+                self.decode.rows.to_string(),
+            ),
+            (
+                "databend_driver_decode_seconds_total",
+                "Time spent decoding results.",
+                self.decode.time.as_secs_f64().to_string(),
+            ),
+        ];
+        for (name, help, value) in decode {
+            header(&mut out, name, help, "counter");
+            let _ = writeln!(out, "{name} {value}");
+        }
+        out
+    }
+}
+
+fn header(out: &mut String, name: &str, help: &str, kind: &str) {
+    let _ = writeln!(out, "# HELP {name} {help}");
+    let _ = writeln!(out, "# TYPE {name} {kind}");
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn histogram_buckets() {
+        let histogram = Histogram::default();
+        histogram.observe(Duration::from_micros(500));
+        histogram.observe(Duration::from_millis(1));
+        histogram.observe(Duration::from_millis(70));
+        histogram.observe(Duration::from_secs(60));
+        let snapshot = histogram.snapshot();
+        assert_eq!(snapshot.count, 4);
+        assert_eq!(snapshot.buckets[0], (0.001, 2));
+        assert_eq!(snapshot.buckets[5], (0.05, 2));
+        assert_eq!(snapshot.buckets[6], (0.1, 3));
+        assert_eq!(snapshot.buckets[13], (30.0, 3));
+        assert_eq!(snapshot.buckets[14], (f64::INFINITY, 4));
+        assert_eq!(
+            snapshot.sum,
+            Duration::from_micros(71_500) + Duration::from_secs(60)
+        );
+    }
+
+    #[test]
+    fn render_prometheus_text() {
+        let metrics = RequestMetrics::default();
+        metrics.record(Duration::from_millis(20), Some(StatusCode::OK));
+        metrics.record(Duration::from_millis(20), Some(StatusCode::SERVICE_UNAVAILABLE));
+        metrics.retried();
+        let snapshot = MetricsSnapshot {
+            requests: vec![metrics.snapshot("query/page")],
+            decode: DecodeMetricsSnapshot {
+                rows: 10,
+                time: Duration::from_millis(5),
+            },
+        };
+        let text = snapshot.to_prometheus();
+        let lines: Vec<_> = text.lines().collect();
+        for line in [
+            "# TYPE databend_client_requests_total counter",
+            "databend_client_requests_total{kind=\"query/page\"} 2",
+            "databend_client_request_retries_total{kind=\"query/page\"} 1",
+            "databend_client_responses_total{kind=\"query/page\",status=\"5xx\"} 1",
+            "databend_client_request_duration_seconds_bucket{kind=\"query/page\",le=\"0.01\"} 0",
+            "databend_client_request_duration_seconds_bucket{kind=\"query/page\",le=\"0.025\"} 2",
+            "databend_client_request_duration_seconds_bucket{kind=\"query/page\",le=\"+Inf\"} 2",
+            "databend_client_request_duration_seconds_count{kind=\"query/page\"} 2",
+            "databend_driver_rows_decoded_total 10",
+        ] {
+            assert!(lines.contains(&line), "missing {line} in\n{text}");
+        }
+    }
+}
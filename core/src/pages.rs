@@ -12,27 +12,36 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+use crate::arrow_stream::BatchStream;
 use crate::client::QueryState;
+use crate::client_mgr::GLOBAL_RUNTIME;
 use crate::error::Result;
+use crate::json_rows::JsonRows;
 use crate::response::QueryResponse;
-use crate::schema::Schema;
+use crate::schema::SchemaRef;
 use crate::settings::{QueryResultFormatSettings, ResultFormatSettings};
 use crate::{APIClient, Error, QueryStats, SchemaField};
 use arrow_array::RecordBatch;
 use log::debug;
 use parking_lot::Mutex;
+use std::future::poll_fn;
 use std::future::Future;
 use std::mem;
 use std::pin::Pin;
 use std::sync::Arc;
-use std::task::{Context, Poll};
-use std::time::Instant;
+use std::task::{ready, Context, Poll};
+use std::time::{Duration, Instant};
+use tokio::sync::{mpsc, Notify};
+use tokio::task::JoinHandle;
 use tokio_stream::{Stream, StreamExt};
 
 #[derive(Default)]
 pub struct Page {
     pub raw_schema: Vec<SchemaField>,
     pub data: Vec<Vec<Option<String>>>,
+    /// Rows of a JSON page still in the response body, moved to `data` when
+    /// yielded by `Pages` unless in borrowed mode, see `Pages::with_borrowed_rows`.
+    pub json_rows: JsonRows,
     pub batches: Vec<RecordBatch>,
     pub stats: QueryStats,
     pub settings: Option<QueryResultFormatSettings>,
@@ -42,7 +51,8 @@ impl Page {
     pub fn from_response(response: QueryResponse, batches: Vec<RecordBatch>) -> Self {
         Self {
             raw_schema: response.schema,
-            data: response.data,
+            data: Vec::new(),
+            json_rows: response.data,
             stats: response.stats,
             batches,
             settings: response.settings,
@@ -57,18 +67,67 @@ impl Page {
         if self.data.is_empty() {
             self.data = p.data
         } else {
-            self.data.extend_from_slice(&p.data);
+            self.data.extend(p.data);
         }
+        self.json_rows.append(p.json_rows);
         if self.batches.is_empty() {
             self.batches = p.batches;
         } else {
-            self.batches.extend_from_slice(&p.batches);
+            self.batches.extend(p.batches);
         }
+        let max_rows_per_page = self.stats.max_rows_per_page;
+        let received_bytes = self.stats.received_bytes;
         self.stats = p.stats;
+        if self.stats.max_rows_per_page.is_none() {
+            self.stats.max_rows_per_page = max_rows_per_page;
+        }
+        self.stats.received_bytes += received_bytes;
+    }
+
+    /// Approximate in-memory size of the page data, used to bound prefetch buffers.
+    pub fn memory_size(&self) -> usize {
+        let data: usize = self
+            .data
+            .iter()
+            .map(|row| row.iter().map(|v| v.as_ref().map_or(0, |s| s.len())).sum::<usize>())
+            .sum();
+        let batches: usize = self
+            .batches
+            .iter()
+            .map(|b| b.get_array_memory_size())
+            .sum();
+        data + self.json_rows.memory_size() + batches
+    }
+
+    /// Copy the rows still in the response body to `data`.
+    fn into_owned(mut self) -> Self {
+        if !self.json_rows.is_empty() {
+            let rows = mem::take(&mut self.json_rows).to_owned_rows();
+            if self.data.is_empty() {
+                self.data = rows;
+            } else {
+                self.data.extend(rows);
+            }
+        }
+        self
     }
 }
 
-type PageFut = Pin<Box<dyn Future<Output = Result<(QueryResponse, Vec<RecordBatch>)>> + Send>>;
+/// Client side timing of a query result.
+#[derive(Clone, Debug, Default)]
+pub struct PageTiming {
+    /// Until the response to the query request.
+    pub query_start: Duration,
+    /// Spent waiting for result pages, including the wait for the schema.
+    pub page_wait: Duration,
+    /// Bytes of the pages as received.
+    pub received_bytes: u64,
+}
+
+type PageFut = Pin<Box<dyn Future<Output = Result<(QueryResponse, Option<BatchStream>)>> + Send>>;
+
+/// Requests the page at a `next_uri`.
+type FetchPage = Arc<dyn Fn(String) -> PageFut + Send + Sync>;
 
 pub struct Pages {
     query_id: String,
@@ -77,61 +136,136 @@ pub struct Pages {
     need_progress: bool,
 
     next_page_future: Option<PageFut>,
+    /// The rest of the arrow page being read.
+    arrow_pages: Option<ArrowPages>,
     node_id: Option<String>,
     next_uri: Option<String>,
 
     result_timeout_secs: Option<u64>,
     last_access_time: Arc<Mutex<Instant>>,
+
+    prefetch_depth: usize,
+    prefetch_max_bytes: usize,
+    prefetcher: Option<PagePrefetcher>,
+
+    started: Instant,
+    query_start: Duration,
+    page_wait: Duration,
+    waiting_since: Option<Instant>,
+    received_bytes: u64,
+
+    borrowed_rows: bool,
 }
 
 impl Pages {
     pub fn new(
         client: Arc<APIClient>,
         first_response: QueryResponse,
-        record_batches: Vec<RecordBatch>,
+        batches: Option<BatchStream>,
         need_progress: bool,
     ) -> Result<Self> {
+        // the bytes of an arrow page are counted as its batches are read
+        let received_bytes = match batches {
+            Some(_) => 0,
+            None => first_response.stats.received_bytes,
+        };
         let mut s = Self {
             query_id: first_response.id.clone(),
             need_progress,
             client,
             next_page_future: None,
+            arrow_pages: None,
             node_id: first_response.node_id.clone(),
             first_page: None,
             next_uri: first_response.next_uri.clone(),
             result_timeout_secs: first_response.result_timeout_secs,
             last_access_time: Arc::new(Mutex::new(Instant::now())),
+            prefetch_depth: 0,
+            prefetch_max_bytes: 0,
+            prefetcher: None,
+            started: Instant::now(),
+            query_start: Duration::ZERO,
+            page_wait: Duration::ZERO,
+            waiting_since: None,
+            received_bytes,
+            borrowed_rows: false,
         };
-        let first_page = Page::from_response(first_response, record_batches);
-        s.first_page = Some(first_page);
+        let first_page = Page::from_response(first_response, vec![]);
+        match batches {
+            // the first page is yielded even without batches
+            Some(batches) => s.arrow_pages = Some(ArrowPages::new(first_page, batches, true)),
+            None => s.first_page = Some(first_page),
+        }
         Ok(s)
     }
 
+    /// Keep up to `depth` pages fetched ahead of the consumer, as long as the
+    /// buffered pages stay below `max_bytes`. A depth of 0 disables prefetching.
+    pub fn with_prefetch(mut self, depth: usize, max_bytes: usize) -> Self {
+        self.prefetch_depth = depth;
+        self.prefetch_max_bytes = max_bytes;
+        self
+    }
+
+    /// Yield the rows of JSON pages as `Page::json_rows`, keeping the response
+    /// body alive instead of copying every cell to a `String` in `Page::data`.
+    pub fn with_borrowed_rows(mut self) -> Self {
+        self.borrowed_rows = true;
+        self
+    }
+
+    /// Set when the query request was sent, for the client side timing.
+    pub fn with_start_time(mut self, started: Instant) -> Self {
+        self.query_start = started.elapsed();
+        self.started = started;
+        self
+    }
+
+    pub fn started(&self) -> Instant {
+        self.started
+    }
+
+    pub fn timing(&self) -> PageTiming {
+        PageTiming {
+            query_start: self.query_start,
+            page_wait: self.page_wait,
+            received_bytes: self.received_bytes,
+        }
+    }
+
     pub fn add_back(&mut self, page: Page) {
         self.first_page = Some(page);
     }
 
+    /// Schema of a page, from its arrow batches or else the schema of the
+    /// response, empty if there is neither. Converted schemas are shared by
+    /// the pages and queries of a client.
+    pub fn page_schema(&self, page: &Page) -> Result<SchemaRef> {
+        let cache = self.client.schema_cache();
+        if !page.batches.is_empty() {
+            cache
+                .from_arrow(&page.batches[0].schema())
+                .map_err(|e| Error::Decode(format!("fail to decode arrow schema: {e}")))
+        } else {
+            cache
+                .from_fields(&page.raw_schema)
+                .map_err(|e| Error::Decode(format!("fail to decode string schema: {e}")))
+        }
+    }
+
     pub async fn wait_for_schema(
         mut self,
         need_progress: bool,
-    ) -> Result<(Self, Schema, ResultFormatSettings)> {
+    ) -> Result<(Self, SchemaRef, ResultFormatSettings)> {
         while let Some(page) = self.next().await {
             let page = page?;
             if !page.raw_schema.is_empty()
                 || !page.data.is_empty()
+                || !page.json_rows.is_empty()
                 || !page.batches.is_empty()
                 || (need_progress && page.stats.progresses.has_progress())
             {
-                let schema: Schema = if !page.batches.is_empty() {
-                    let arrow_schema = page.batches[0].schema().clone();
-                    arrow_schema
-                        .try_into()
-                        .map_err(|e| Error::Decode(format!("fail to decode arrow schema: {e}")))?
-                } else {
-                    let s = page.raw_schema.clone();
-                    s.try_into()
-                        .map_err(|e| Error::Decode(format!("fail to decode string schema: {e}")))?
-                };
+                let schema = self.page_schema(&page)?;
                 let settings = ResultFormatSettings::try_from(&page.settings)?;
 
                 self.add_back(page);
@@ -148,7 +282,7 @@ impl Pages {
                 return Ok((self, schema, settings));
             }
         }
-        Ok((self, Schema::default(), ResultFormatSettings::default()))
+        Ok((self, SchemaRef::default(), ResultFormatSettings::default()))
     }
 }
 
@@ -157,19 +291,75 @@ impl Stream for Pages {
 
     fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
         if let Some(p) = mem::take(&mut self.first_page) {
-            return Poll::Ready(Some(Ok(p)));
+            return Poll::Ready(Some(Ok(self.yield_page(p))));
         };
+        let since = *self.waiting_since.get_or_insert_with(Instant::now);
+        let poll = self.as_mut().poll_page(cx);
+        match poll {
+            Poll::Ready(item) => {
+                self.waiting_since = None;
+                self.page_wait += since.elapsed();
+                let item = item.map(|page| {
+                    page.map(|page| {
+                        self.received_bytes += page.stats.received_bytes;
+                        self.yield_page(page)
+                    })
+                });
+                Poll::Ready(item)
+            }
+            Poll::Pending => Poll::Pending,
+        }
+    }
+}
+
+impl Pages {
+    fn yield_page(&self, page: Page) -> Page {
+        if self.borrowed_rows {
+            page
+        } else {
+            page.into_owned()
+        }
+    }
+
+    fn poll_page(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Result<Page>>> {
+        if let Some(arrow_pages) = self.arrow_pages.as_mut() {
+            match ready!(arrow_pages.poll_page(cx)) {
+                Some(Ok(page)) => return Poll::Ready(Some(Ok(page))),
+                Some(Err(e)) => {
+                    self.arrow_pages = None;
+                    self.next_uri = None;
+                    return Poll::Ready(Some(Err(e)));
+                }
+                None => self.arrow_pages = None,
+            }
+        }
+        if self.prefetcher.is_none() && self.prefetch_depth > 0 {
+            if let Some(next_uri) = self.next_uri.clone() {
+                let prefetcher = PagePrefetcher::spawn(&*self, next_uri);
+                self.prefetcher = Some(prefetcher);
+            }
+        }
+        if let Some(prefetcher) = self.prefetcher.as_mut() {
+            let poll = prefetcher.poll_page(cx);
+            let next_uri = prefetcher.next_uri();
+            self.next_uri = next_uri;
+            return poll;
+        }
         match self.next_page_future {
             Some(ref mut next_page) => match Pin::new(next_page).poll(cx) {
                 Poll::Ready(Ok((resp, batches))) => {
                     self.next_uri = resp.next_uri.clone();
                     self.next_page_future = None;
-                    if resp.data.is_empty() && !self.need_progress {
-                        self.poll_next(cx)
-                    } else {
-                        let now = Instant::now();
-                        *self.last_access_time.lock() = now;
-                        Poll::Ready(Some(Ok(Page::from_response(resp, batches))))
+                    *self.last_access_time.lock() = Instant::now();
+                    let page = Page::from_response(resp, vec![]);
+                    match batches {
+                        Some(batches) => {
+                            let need_progress = self.need_progress;
+                            self.arrow_pages = Some(ArrowPages::new(page, batches, need_progress));
+                            self.poll_page(cx)
+                        }
+                        None if skip_page(&page, self.need_progress) => self.poll_page(cx),
+                        None => Poll::Ready(Some(Ok(page))),
                     }
                 }
                 Poll::Ready(Err(e)) => {
@@ -188,7 +378,7 @@ impl Stream for Pages {
                     self.next_page_future = Some(Box::pin(async move {
                         client.query_page(&query_id, &next_uri, &node_id).await
                     }));
-                    self.poll_next(cx)
+                    self.poll_page(cx)
                 }
                 None => Poll::Ready(None),
             },
@@ -198,11 +388,466 @@ impl Stream for Pages {
 
 impl Drop for Pages {
     fn drop(&mut self) {
-        if let Some(uri) = &self.next_uri {
-            if uri.contains("/page/") || self.next_page_future.is_none() {
+        let (next_uri, in_flight) = match &self.prefetcher {
+            Some(prefetcher) => {
+                prefetcher.abort();
+                let state = prefetcher.state.lock();
+                (state.next_uri.clone(), state.in_flight)
+            }
+            None => (self.next_uri.clone(), self.next_page_future.is_some()),
+        };
+        if let Some(uri) = next_uri {
+            if uri.contains("/page/") || !in_flight {
                 debug!("Dropping pages for {}", self.query_id);
                 self.client.finalize_query(&self.query_id)
             }
         }
     }
 }
+
+fn skip_page(page: &Page, need_progress: bool) -> bool {
+    page.json_rows.is_empty() && page.batches.is_empty() && !need_progress
+}
+
+/// Yields an arrow response as one page per batch while its body is read.
+/// The first page is the response itself, the others carry its schema and
+/// stats along with the bytes received for their batch.
+struct ArrowPages {
+    first: Option<Page>,
+    raw_schema: Vec<SchemaField>,
+    stats: QueryStats,
+    settings: Option<QueryResultFormatSettings>,
+    batches: BatchStream,
+    /// Yield the first page even if the response has no batches.
+    keep_empty: bool,
+}
+
+impl ArrowPages {
+    fn new(first: Page, batches: BatchStream, keep_empty: bool) -> Self {
+        let mut stats = first.stats.clone();
+        stats.received_bytes = 0;
+        Self {
+            raw_schema: first.raw_schema.clone(),
+            stats,
+            settings: first.settings.clone(),
+            first: Some(first),
+            batches,
+            keep_empty,
+        }
+    }
+
+    fn poll_page(&mut self, cx: &mut Context<'_>) -> Poll<Option<Result<Page>>> {
+        let page = match ready!(Pin::new(&mut self.batches).poll_next(cx)) {
+            Some(Ok((batch, received_bytes))) => {
+                let mut page = self.first.take().unwrap_or_else(|| Page {
+                    raw_schema: self.raw_schema.clone(),
+                    stats: self.stats.clone(),
+                    settings: self.settings.clone(),
+                    ..Default::default()
+                });
+                page.stats.received_bytes += received_bytes;
+                page.batches.push(batch);
+                Some(Ok(page))
+            }
+            Some(Err(e)) => Some(Err(e)),
+            None => {
+                let keep_empty = self.keep_empty;
+                self.first
+                    .take()
+                    .filter(|page| !skip_page(page, keep_empty))
+                    .map(Ok)
+            }
+        };
+        Poll::Ready(page)
+    }
+}
+
+struct PrefetchState {
+    next_uri: Option<String>,
+    in_flight: bool,
+    buffered_bytes: usize,
+}
+
+/// Fetches pages in a background task so that the network round trip of the
+/// next page overlaps with the consumer decoding the current one.
+///
+/// The number of pages fetched ahead is bounded by the channel capacity, as a
+/// slot is reserved before each page request, and the buffered bytes by
+/// `max_bytes`: the task waits for the consumer to drain the buffer before
+/// sending the next page request.
+struct PagePrefetcher {
+    rx: mpsc::Receiver<Result<(Page, usize)>>,
+    state: Arc<Mutex<PrefetchState>>,
+    drained: Arc<Notify>,
+    handle: JoinHandle<()>,
+}
+
+impl PagePrefetcher {
+    fn spawn(pages: &Pages, next_uri: String) -> Self {
+        let client = pages.client.clone();
+        let query_id = pages.query_id.clone();
+        let node_id = pages.node_id.clone();
+        let fetch: FetchPage = Arc::new(move |next_uri: String| {
+            let client = client.clone();
+            let query_id = query_id.clone();
+            let node_id = node_id.clone();
+            Box::pin(async move { client.query_page(&query_id, &next_uri, &node_id).await })
+                as PageFut
+        });
+        Self::start(
+            fetch,
+            next_uri,
+            pages.prefetch_depth,
+            pages.prefetch_max_bytes,
+            pages.need_progress,
+            pages.last_access_time.clone(),
+        )
+    }
+
+    fn start(
+        fetch: FetchPage,
+        next_uri: String,
+        depth: usize,
+        max_bytes: usize,
+        need_progress: bool,
+        last_access_time: Arc<Mutex<Instant>>,
+    ) -> Self {
+        let (tx, rx) = mpsc::channel(depth);
+        let state = Arc::new(Mutex::new(PrefetchState {
+            next_uri: Some(next_uri.clone()),
+            in_flight: false,
+            buffered_bytes: 0,
+        }));
+        let drained = Arc::new(Notify::new());
+        let task = PrefetchTask {
+            fetch,
+            need_progress,
+            // always allow one page, even if it alone exceeds the limit
+            max_bytes: max_bytes.max(1),
+            last_access_time,
+            state: state.clone(),
+            drained: drained.clone(),
+            tx,
+        };
+        let handle = GLOBAL_RUNTIME.spawn(task.run(next_uri));
+        Self {
+            rx,
+            state,
+            drained,
+            handle,
+        }
+    }
+
+    fn poll_page(&mut self, cx: &mut Context<'_>) -> Poll<Option<Result<Page>>> {
+        match self.rx.poll_recv(cx) {
+            Poll::Ready(Some(Ok((page, size)))) => {
+                {
+                    let mut state = self.state.lock();
+                    state.buffered_bytes = state.buffered_bytes.saturating_sub(size);
+                }
+                self.drained.notify_one();
+                Poll::Ready(Some(Ok(page)))
+            }
+            Poll::Ready(Some(Err(e))) => Poll::Ready(Some(Err(e))),
+            Poll::Ready(None) => Poll::Ready(None),
+            Poll::Pending => Poll::Pending,
+        }
+    }
+
+    fn next_uri(&self) -> Option<String> {
+        self.state.lock().next_uri.clone()
+    }
+
+    fn abort(&self) {
+        self.handle.abort();
+    }
+}
+
+struct PrefetchTask {
+    fetch: FetchPage,
+    need_progress: bool,
+    max_bytes: usize,
+    last_access_time: Arc<Mutex<Instant>>,
+    state: Arc<Mutex<PrefetchState>>,
+    drained: Arc<Notify>,
+    tx: mpsc::Sender<Result<(Page, usize)>>,
+}
+
+impl PrefetchTask {
+    async fn run(self, mut next_uri: String) {
+        loop {
+            self.wait_for_room().await;
+            // the page in flight takes a slot too, so that at most `depth`
+            // pages are held ahead of the consumer
+            let permit = match self.tx.reserve().await {
+                Ok(permit) => permit,
+                Err(_) => return,
+            };
+            self.state.lock().in_flight = true;
+            let result = (self.fetch)(next_uri.clone()).await;
+            let (resp, batches) = match result {
+                Ok(page) => page,
+                Err(e) => {
+                    self.stop();
+                    permit.send(Err(e));
+                    return;
+                }
+            };
+            // the server sees an access whenever a page is fetched,
+            // even if the consumer has not polled it yet.
+            *self.last_access_time.lock() = Instant::now();
+            let uri = resp.next_uri.clone();
+            {
+                let mut state = self.state.lock();
+                state.next_uri = uri.clone();
+                state.in_flight = false;
+            }
+            let page = Page::from_response(resp, vec![]);
+            match batches {
+                Some(batches) => {
+                    let pages = ArrowPages::new(page, batches, self.need_progress);
+                    if !self.send_arrow_pages(permit, pages).await {
+                        return;
+                    }
+                }
+                None if skip_page(&page, self.need_progress) => {}
+                None => self.send(permit, page),
+            }
+            match uri {
+                Some(uri) => next_uri = uri,
+                None => return,
+            }
+        }
+    }
+
+    async fn wait_for_room(&self) {
+        loop {
+            let drained = self.drained.notified();
+            if self.state.lock().buffered_bytes < self.max_bytes {
+                return;
+            }
+            drained.await;
+        }
+    }
+
+    fn send(&self, permit: mpsc::Permit<'_, Result<(Page, usize)>>, page: Page) {
+        let size = page.memory_size();
+        self.state.lock().buffered_bytes += size;
+        permit.send(Ok((page, size)));
+    }
+
+    /// Sends the pages of the batches as they are decoded, each one within
+    /// the limits of the buffer. Returns false if the body could not be read.
+    async fn send_arrow_pages(
+        &self,
+        mut permit: mpsc::Permit<'_, Result<(Page, usize)>>,
+        mut pages: ArrowPages,
+    ) -> bool {
+        loop {
+            match poll_fn(|cx| pages.poll_page(cx)).await {
+                Some(Ok(page)) => self.send(permit, page),
+                Some(Err(e)) => {
+                    self.stop();
+                    permit.send(Err(e));
+                    return false;
+                }
+                None => return true,
+            }
+            self.wait_for_room().await;
+            permit = match self.tx.reserve().await {
+                Ok(permit) => permit,
+                Err(_) => return false,
+            };
+        }
+    }
+
+    fn stop(&self) {
+        let mut state = self.state.lock();
+        state.next_uri = None;
+        state.in_flight = false;
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::arrow_stream::tests::{encode_page, read_page};
+    use std::sync::atomic::{AtomicUsize, Ordering};
+    use std::time::Duration;
+
+    fn response(next_uri: Option<String>, cell: String) -> QueryResponse {
+        let progress = serde_json::json!({"rows": 0, "bytes": 0});
+        serde_json::from_value(serde_json::json!({
+            "id": "q1",
+            "schema": [],
+            "data": [[cell]],
+            "state": "Running",
+            "stats": {
+                "scan_progress": progress,
+                "write_progress": progress,
+                "result_progress": progress,
+                "running_time_ms": 0.0,
+            },
+            "next_uri": next_uri,
+        }))
+        .unwrap()
+    }
+
+    /// Serves `total` pages of one `cell_bytes` long cell, counting the requests.
+    fn fake_pages(fetched: Arc<AtomicUsize>, total: usize, cell_bytes: usize) -> FetchPage {
+        Arc::new(move |next_uri: String| {
+            let fetched = fetched.clone();
+            Box::pin(async move {
+                let n: usize = next_uri.trim_start_matches("/page/").parse().unwrap();
+                fetched.fetch_add(1, Ordering::SeqCst);
+                let next_uri = (n + 1 < total).then(|| format!("/page/{}", n + 1));
+                Ok((response(next_uri, "x".repeat(cell_bytes)), None))
+            }) as PageFut
+        })
+    }
+
+    /// Serves `total` arrow pages of `batches` batches of 100 rows.
+    fn fake_arrow_pages(total: usize, batches: usize) -> FetchPage {
+        Arc::new(move |next_uri: String| {
+            Box::pin(async move {
+                let n: usize = next_uri.trim_start_matches("/page/").parse().unwrap();
+                let next_uri = (n + 1 < total).then(|| format!("/page/{}", n + 1));
+                let mut resp = response(next_uri, String::new());
+                resp.data = JsonRows::default();
+                let (_, batches) = read_page(&encode_page("{}", batches), 64).await?;
+                Ok((resp, Some(batches)))
+            }) as PageFut
+        })
+    }
+
+    fn start(fetch: FetchPage, depth: usize, max_bytes: usize) -> PagePrefetcher {
+        let last_access_time = Arc::new(Mutex::new(Instant::now()));
+        PagePrefetcher::start(
+            fetch,
+            "/page/0".to_string(),
+            depth,
+            max_bytes,
+            false,
+            last_access_time,
+        )
+    }
+
+    async fn next_page(prefetcher: &mut PagePrefetcher) -> Option<Result<Page>> {
+        poll_fn(|cx| prefetcher.poll_page(cx)).await
+    }
+
+    // lets the prefetch task run until it waits for the consumer
+    async fn settle() {
+        tokio::time::sleep(Duration::from_millis(100)).await;
+    }
+
+    #[tokio::test]
+    async fn prefetch_at_most_depth_pages() {
+        let fetched = Arc::new(AtomicUsize::new(0));
+        let mut prefetcher = start(fake_pages(fetched.clone(), 10, 10), 2, usize::MAX);
+        settle().await;
+        assert_eq!(fetched.load(Ordering::SeqCst), 2);
+
+        let page = next_page(&mut prefetcher).await.unwrap().unwrap();
+        assert_eq!(page.json_rows.row(0).get(0), Some("x".repeat(10).as_str()));
+        settle().await;
+        assert_eq!(fetched.load(Ordering::SeqCst), 3);
+
+        let mut pages = 1;
+        while let Some(page) = next_page(&mut prefetcher).await {
+            page.unwrap();
+            pages += 1;
+        }
+        assert_eq!(pages, 10);
+        assert_eq!(fetched.load(Ordering::SeqCst), 10);
+        assert_eq!(prefetcher.next_uri(), None);
+    }
+
+    fn page_bytes(cell_bytes: usize) -> usize {
+        Page::from_response(response(None, "x".repeat(cell_bytes)), vec![]).memory_size()
+    }
+
+    #[tokio::test]
+    async fn prefetch_stalls_at_max_bytes() {
+        let fetched = Arc::new(AtomicUsize::new(0));
+        let mut prefetcher = start(fake_pages(fetched.clone(), 10, 1000), 8, 1500);
+        settle().await;
+        // the second page is requested with one page buffered, then the
+        // buffer is over the limit
+        assert_eq!(fetched.load(Ordering::SeqCst), 2);
+        assert_eq!(prefetcher.state.lock().buffered_bytes, 2 * page_bytes(1000));
+
+        next_page(&mut prefetcher).await.unwrap().unwrap();
+        settle().await;
+        assert_eq!(fetched.load(Ordering::SeqCst), 3);
+        assert_eq!(prefetcher.state.lock().buffered_bytes, 2 * page_bytes(1000));
+    }
+
+    #[tokio::test]
+    async fn prefetch_one_page_over_max_bytes() {
+        let fetched = Arc::new(AtomicUsize::new(0));
+        let mut prefetcher = start(fake_pages(fetched.clone(), 3, 1000), 8, 0);
+        for _ in 0..3 {
+            next_page(&mut prefetcher).await.unwrap().unwrap();
+            settle().await;
+            assert!(prefetcher.state.lock().buffered_bytes <= page_bytes(1000));
+        }
+        assert!(next_page(&mut prefetcher).await.is_none());
+    }
+
+    #[tokio::test]
+    async fn prefetch_touches_last_access_time() {
+        let fetched = Arc::new(AtomicUsize::new(0));
+        let started = Instant::now();
+        let last_access_time = Arc::new(Mutex::new(started));
+        let prefetcher = PagePrefetcher::start(
+            fake_pages(fetched.clone(), 10, 10),
+            "/page/0".to_string(),
+            1,
+            usize::MAX,
+            false,
+            last_access_time.clone(),
+        );
+        settle().await;
+        // fetched ahead without being polled, the server still saw an access
+        assert_eq!(fetched.load(Ordering::SeqCst), 1);
+        assert!(*last_access_time.lock() > started);
+        drop(prefetcher);
+    }
+
+    #[tokio::test]
+    async fn abort_prefetch() {
+        let fetched = Arc::new(AtomicUsize::new(0));
+        let mut prefetcher = start(fake_pages(fetched.clone(), 10, 10), 1, usize::MAX);
+        settle().await;
+        prefetcher.abort();
+        settle().await;
+        assert!(prefetcher.handle.is_finished());
+        // the buffered page is still there, but no more are fetched
+        assert!(next_page(&mut prefetcher).await.unwrap().is_ok());
+        assert!(next_page(&mut prefetcher).await.is_none());
+        assert_eq!(fetched.load(Ordering::SeqCst), 1);
+    }
+
+    #[tokio::test]
+    async fn prefetch_one_page_per_batch() {
+        let mut prefetcher = start(fake_arrow_pages(2, 3), 1, usize::MAX);
+        let mut pages = 0;
+        while let Some(page) = next_page(&mut prefetcher).await {
+            let page = page.unwrap();
+            assert_eq!(page.batches.len(), 1);
+            assert_eq!(page.batches[0].num_rows(), 100);
+            pages += 1;
+        }
+        assert_eq!(pages, 6);
+    }
+
+    #[tokio::test]
+    async fn arrow_pages_skip_empty_response() {
+        let mut resp = response(None, String::new());
+        resp.data = JsonRows::default();
+        let (_, batches) = read_page(&encode_page("{}", 0), 64).await.unwrap();
+        let mut pages = ArrowPages::new(Page::from_response(resp, vec![]), batches, false);
+        assert!(poll_fn(|cx| pages.poll_page(cx)).await.is_none());
+    }
+}
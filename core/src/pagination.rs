@@ -0,0 +1,121 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::time::Duration;
+
+use parking_lot::Mutex;
+
+pub(crate) const DEFAULT_PAGE_TARGET_BYTES: usize = 8 * 1024 * 1024;
+pub(crate) const DEFAULT_PAGE_TARGET_LATENCY: Duration = Duration::from_secs(1);
+const MIN_ROWS_PER_PAGE: i64 = 100;
+const MAX_ROWS_PER_PAGE: i64 = 100_000;
+const INITIAL_ROWS_PER_PAGE: i64 = 10_000;
+// weight of the latest page in the moving averages
+const SMOOTHING: f64 = 0.3;
+
+/// Picks `max_rows_per_page` for the next query from the pages seen so far, so
+/// that pages get close to the target size and the target fetch latency.
+///
+/// The page geometry is fixed when a query starts, so the observations of the
+/// pages of one query apply from the next query of the session.
+pub(crate) struct AdaptivePagination {
+    target_bytes: usize,
+    target_latency: Duration,
+    max_rows: i64,
+    state: Mutex<PageObservations>,
+}
+
+#[derive(Default)]
+struct PageObservations {
+    bytes_per_row: Option<f64>,
+    secs_per_row: Option<f64>,
+}
+
+impl AdaptivePagination {
+    /// `max_rows` is the upper bound accepted for a page, default to 100000.
+    pub(crate) fn new(
+        target_bytes: usize,
+        target_latency: Duration,
+        max_rows: Option<i64>,
+    ) -> Self {
+        Self {
+            target_bytes,
+            target_latency,
+            max_rows: max_rows.unwrap_or(MAX_ROWS_PER_PAGE).max(MIN_ROWS_PER_PAGE),
+            state: Mutex::new(PageObservations::default()),
+        }
+    }
+
+    /// Record a fetched page, `elapsed` covers the request and the decoding.
+    pub(crate) fn observe(&self, rows: usize, bytes: usize, elapsed: Duration) {
+        if rows == 0 {
+            return;
+        }
+        let rows = rows as f64;
+        let mut state = self.state.lock();
+        state.bytes_per_row = Some(smooth(state.bytes_per_row, bytes as f64 / rows));
+        state.secs_per_row = Some(smooth(state.secs_per_row, elapsed.as_secs_f64() / rows));
+    }
+
+    pub(crate) fn rows_per_page(&self) -> i64 {
+        let state = self.state.lock();
+        let by_bytes = state
+            .bytes_per_row
+            .filter(|b| *b > 0.0)
+            .map(|b| self.target_bytes as f64 / b);
+        let by_latency = state
+            .secs_per_row
+            .filter(|s| *s > 0.0)
+            .map(|s| self.target_latency.as_secs_f64() / s);
+        let rows = match (by_bytes, by_latency) {
+            (Some(a), Some(b)) => a.min(b),
+            (Some(a), None) | (None, Some(a)) => a,
+            (None, None) => INITIAL_ROWS_PER_PAGE as f64,
+        };
+        (rows as i64).clamp(MIN_ROWS_PER_PAGE, self.max_rows)
+    }
+}
+
+fn smooth(current: Option<f64>, sample: f64) -> f64 {
+    match current {
+        Some(current) => current * (1.0 - SMOOTHING) + sample * SMOOTHING,
+        None => sample,
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn adaptive_rows_per_page() {
+        let pagination = AdaptivePagination::new(1024 * 1024, Duration::from_secs(1), None);
+        assert_eq!(pagination.rows_per_page(), INITIAL_ROWS_PER_PAGE);
+
+        // narrow rows, bounded by the latency target
+        pagination.observe(8192, 8192 * 8, Duration::from_millis(500));
+        assert_eq!(pagination.rows_per_page(), 16384);
+
+        // wide rows, bounded by the size target
+        let pagination = AdaptivePagination::new(1024 * 1024, Duration::from_secs(1), None);
+        pagination.observe(1024, 4 * 1024 * 1024, Duration::from_millis(100));
+        assert_eq!(pagination.rows_per_page(), 256);
+
+        // clamped to the configured max rows
+        let pagination =
+            AdaptivePagination::new(1024 * 1024, Duration::from_secs(1), Some(5_000));
+        pagination.observe(8192, 8192 * 8, Duration::from_millis(10));
+        assert_eq!(pagination.rows_per_page(), 5_000);
+    }
+}
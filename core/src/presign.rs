@@ -15,13 +15,14 @@
 use std::{collections::BTreeMap, path::Path};
 
 use log::info;
-use reqwest::{Body, Client as HttpClient, StatusCode};
+use reqwest::{Body, StatusCode};
 use tokio::io::AsyncRead;
 use tokio::io::AsyncWriteExt;
 use tokio_stream::StreamExt;
 use tokio_util::io::ReaderStream;
 
 use crate::error::{Error, Result};
+use crate::transport::presign_client;
 
 pub type Reader = Box<dyn AsyncRead + Send + Sync + Unpin + 'static>;
 
@@ -45,7 +46,7 @@ pub async fn presign_upload_to_stage(
     size: u64,
 ) -> Result<()> {
     info!("upload to stage with presigned url, size: {size}");
-    let client = HttpClient::new();
+    let client = presign_client();
     let mut builder = client.put(presigned.url);
     for (k, v) in presigned.headers {
         if k.to_lowercase() == "content-length" {
@@ -74,7 +75,7 @@ pub async fn presign_download_from_stage(
     if let Some(p) = local_path.parent() {
         tokio::fs::create_dir_all(p).await?;
     }
-    let client = HttpClient::new();
+    let client = presign_client();
     let mut builder = client.get(presigned.url);
     for (k, v) in presigned.headers {
         builder = builder.header(k, v);
@@ -0,0 +1,272 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::{HashMap, VecDeque};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::Arc;
+use std::time::{Duration, Instant};
+
+use parking_lot::Mutex;
+use url::Url;
+
+// a retry costs one token, each request earns RETRY_BUDGET_RATIO of one, so
+// retries stay under 20% of the requests beyond the initial reserve
+const RETRY_BUDGET_RATIO: f64 = 0.2;
+const RETRY_BUDGET_MAX: f64 = 10.0;
+// consecutive failures of an endpoint opening its breaker
+const BREAKER_THRESHOLD: u32 = 5;
+const BREAKER_COOLDOWN: Duration = Duration::from_secs(5);
+const BREAKER_COOLDOWN_MAX: Duration = Duration::from_secs(60);
+// page fetch latencies kept for the hedging delay
+const HEDGE_SAMPLES: usize = 128;
+const HEDGE_MIN_SAMPLES: usize = 20;
+const HEDGE_MIN_DELAY: Duration = Duration::from_millis(50);
+
+/// Retries, circuit breakers and hedged page requests of one `APIClient`.
+#[derive(Clone, Debug, Default)]
+pub struct RequestStats {
+    pub retries: u64,
+    /// Retries skipped because the retry budget was spent.
+    pub retries_denied: u64,
+    pub breaker_trips: u64,
+    /// Requests failed fast by an open breaker.
+    pub breaker_rejections: u64,
+    pub hedges: u64,
+    /// Hedged page requests answering before the first one.
+    pub hedge_wins: u64,
+}
+
+#[derive(Default)]
+struct Counters {
+    retries: AtomicU64,
+    retries_denied: AtomicU64,
+    breaker_trips: AtomicU64,
+    breaker_rejections: AtomicU64,
+    hedges: AtomicU64,
+    hedge_wins: AtomicU64,
+}
+
+pub(crate) struct Resilience {
+    budget: Mutex<f64>,
+    breakers: Mutex<HashMap<String, Arc<CircuitBreaker>>>,
+    page_latencies: Mutex<VecDeque<Duration>>,
+    counters: Arc<Counters>,
+}
+
+impl Default for Resilience {
+    fn default() -> Self {
+        Self {
+            budget: Mutex::new(RETRY_BUDGET_MAX),
+            breakers: Mutex::new(HashMap::new()),
+            page_latencies: Mutex::new(VecDeque::with_capacity(HEDGE_SAMPLES)),
+            counters: Arc::new(Counters::default()),
+        }
+    }
+}
+
+impl Resilience {
+    /// Called once per request, before its first attempt.
+    pub(crate) fn deposit(&self) {
+        let mut budget = self.budget.lock();
+        *budget = (*budget + RETRY_BUDGET_RATIO).min(RETRY_BUDGET_MAX);
+    }
+
+    /// Take a token for a retry or a hedged request, false if none is left.
+    pub(crate) fn withdraw(&self) -> bool {
+        let mut budget = self.budget.lock();
+        if *budget >= 1.0 {
+            *budget -= 1.0;
+            true
+        } else {
+            self.counters.retries_denied.fetch_add(1, Ordering::Relaxed);
+            false
+        }
+    }
+
+    pub(crate) fn retried(&self) {
+        self.counters.retries.fetch_add(1, Ordering::Relaxed);
+    }
+
+    pub(crate) fn breaker(&self, url: &Url) -> Arc<CircuitBreaker> {
+        let origin = url.origin().ascii_serialization();
+        self.breakers
+            .lock()
+            .entry(origin)
+            .or_insert_with(|| {
+                Arc::new(CircuitBreaker {
+                    state: Mutex::new(BreakerState::default()),
+                    counters: self.counters.clone(),
+                })
+            })
+            .clone()
+    }
+
+    pub(crate) fn observe_page(&self, latency: Duration) {
+        let mut latencies = self.page_latencies.lock();
+        if latencies.len() == HEDGE_SAMPLES {
+            latencies.pop_front();
+        }
+        latencies.push_back(latency);
+    }
+
+    /// p95 of the recent page fetches, none until there are enough of them.
+    pub(crate) fn hedge_delay(&self) -> Option<Duration> {
+        let mut latencies: Vec<_> = {
+            let latencies = self.page_latencies.lock();
+            if latencies.len() < HEDGE_MIN_SAMPLES {
+                return None;
+            }
+            latencies.iter().copied().collect()
+        };
+        latencies.sort_unstable();
+        let p95 = latencies[(latencies.len() * 95 / 100).min(latencies.len() - 1)];
+        Some(p95.max(HEDGE_MIN_DELAY))
+    }
+
+    pub(crate) fn hedged(&self, won: bool) {
+        self.counters.hedges.fetch_add(1, Ordering::Relaxed);
+        if won {
+            self.counters.hedge_wins.fetch_add(1, Ordering::Relaxed);
+        }
+    }
+
+    pub(crate) fn stats(&self) -> RequestStats {
+        let c = &self.counters;
+        RequestStats {
+            retries: c.retries.load(Ordering::Relaxed),
+            retries_denied: c.retries_denied.load(Ordering::Relaxed),
+            breaker_trips: c.breaker_trips.load(Ordering::Relaxed),
+            breaker_rejections: c.breaker_rejections.load(Ordering::Relaxed),
+            hedges: c.hedges.load(Ordering::Relaxed),
+            hedge_wins: c.hedge_wins.load(Ordering::Relaxed),
+        }
+    }
+}
+
+#[derive(Default)]
+struct BreakerState {
+    failures: u32,
+    open_until: Option<Instant>,
+    cooldown: Option<Duration>,
+    probe_started: Option<Instant>,
+}
+
+/// Opens after `BREAKER_THRESHOLD` consecutive failures of an endpoint and
+/// fails requests fast until the cooldown ends. A single probe request is
+/// then let through, closing the breaker on success or opening it again for
+/// twice as long on failure. Another probe is let through if the first one
+/// is not settled within a cooldown.
+pub(crate) struct CircuitBreaker {
+    state: Mutex<BreakerState>,
+    counters: Arc<Counters>,
+}
+
+impl CircuitBreaker {
+    pub(crate) fn allow(&self) -> bool {
+        let mut state = self.state.lock();
+        let now = Instant::now();
+        let cooldown = state.cooldown.unwrap_or(BREAKER_COOLDOWN);
+        let allowed = match state.open_until {
+            None => true,
+            Some(until) if now < until => false,
+            Some(_) if state.probe_started.is_some_and(|t| now < t + cooldown) => false,
+            Some(_) => {
+                state.probe_started = Some(now);
+                true
+            }
+        };
+        if !allowed {
+            self.counters
+                .breaker_rejections
+                .fetch_add(1, Ordering::Relaxed);
+        }
+        allowed
+    }
+
+    pub(crate) fn record_success(&self) {
+        let mut state = self.state.lock();
+        *state = BreakerState::default();
+    }
+
+    pub(crate) fn record_failure(&self) {
+        let mut state = self.state.lock();
+        state.failures += 1;
+        let probing = state.probe_started.is_some();
+        if probing || state.failures >= BREAKER_THRESHOLD {
+            let cooldown = match state.cooldown {
+                Some(cooldown) if probing => (cooldown * 2).min(BREAKER_COOLDOWN_MAX),
+                Some(cooldown) => cooldown,
+                None => BREAKER_COOLDOWN,
+            };
+            state.cooldown = Some(cooldown);
+            state.open_until = Some(Instant::now() + cooldown);
+            state.probe_started = None;
+            state.failures = 0;
+            self.counters.breaker_trips.fetch_add(1, Ordering::Relaxed);
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn retry_budget() {
+        let resilience = Resilience::default();
+        for _ in 0..10 {
+            assert!(resilience.withdraw());
+        }
+        assert!(!resilience.withdraw());
+        for _ in 0..5 {
+            resilience.deposit();
+        }
+        assert!(resilience.withdraw());
+        assert!(!resilience.withdraw());
+        assert_eq!(resilience.stats().retries_denied, 2);
+    }
+
+    #[test]
+    fn breaker_opens_after_failures() {
+        let resilience = Resilience::default();
+        let url = Url::parse("http://localhost:8000/v1/query").unwrap();
+        let breaker = resilience.breaker(&url);
+        for _ in 0..BREAKER_THRESHOLD - 1 {
+            assert!(breaker.allow());
+            breaker.record_failure();
+        }
+        assert!(breaker.allow());
+        breaker.record_success();
+        for _ in 0..BREAKER_THRESHOLD {
+            breaker.record_failure();
+        }
+        // the same endpoint shares the breaker
+        let other = Url::parse("http://localhost:8000/v1/query/1/page/2").unwrap();
+        assert!(!resilience.breaker(&other).allow());
+        let stats = resilience.stats();
+        assert_eq!(stats.breaker_trips, 1);
+        assert_eq!(stats.breaker_rejections, 1);
+    }
+
+    #[test]
+    fn hedge_delay_from_p95() {
+        let resilience = Resilience::default();
+        for ms in 1..HEDGE_MIN_SAMPLES as u64 {
+            resilience.observe_page(Duration::from_millis(ms * 10));
+        }
+        assert_eq!(resilience.hedge_delay(), None);
+        resilience.observe_page(Duration::from_millis(200));
+        assert_eq!(resilience.hedge_delay(), Some(Duration::from_millis(200)));
+    }
+}
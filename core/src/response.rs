@@ -13,18 +13,26 @@
 // limitations under the License.
 
 use crate::error_code::ErrorCode;
+use crate::json_rows::JsonRows;
 use crate::session::SessionState;
 use crate::settings::QueryResultFormatSettings;
 use serde::{Deserialize, Serialize};
 
-#[derive(Deserialize, Debug, Default)]
+#[derive(Deserialize, Debug, Clone, Default)]
 pub struct QueryStats {
     #[serde(flatten)]
     pub progresses: Progresses,
     pub running_time_ms: f64,
+    /// `max_rows_per_page` requested by the client for the query, when page
+    /// sizing is adaptive.
+    #[serde(skip)]
+    pub max_rows_per_page: Option<i64>,
+    /// Bytes of the response page as received by the client.
+    #[serde(skip)]
+    pub received_bytes: u64,
 }
 
-#[derive(Deserialize, Debug, Default)]
+#[derive(Deserialize, Debug, Clone, Default)]
 pub struct Progresses {
     pub scan_progress: ProgressValues,
     pub write_progress: ProgressValues,
@@ -50,7 +58,7 @@ impl Progresses {
     }
 }
 
-#[derive(Debug, Deserialize, Default)]
+#[derive(Debug, Clone, Deserialize, Default)]
 pub struct ProgressValues {
     pub rows: usize,
     pub bytes: usize,
@@ -62,7 +70,7 @@ pub struct SpillProgress {
     pub bytes: usize,
 }
 
-#[derive(Serialize, Deserialize, Debug, Clone)]
+#[derive(Serialize, Deserialize, Debug, Clone, PartialEq, Eq, Hash)]
 pub struct SchemaField {
     pub name: String,
     #[serde(rename = "type")]
@@ -76,7 +84,7 @@ pub struct QueryResponse {
     pub session_id: Option<String>,
     pub session: Option<SessionState>,
     pub schema: Vec<SchemaField>,
-    pub data: Vec<Vec<Option<String>>>,
+    pub data: JsonRows,
     pub state: String,
     pub settings: Option<QueryResultFormatSettings>,
     pub error: Option<ErrorCode>,
@@ -31,6 +31,10 @@ pub const ARROW_EXT_TYPE_GEOGRAPHY: &str = "Geography";
 pub const ARROW_EXT_TYPE_INTERVAL: &str = "Interval";
 pub const ARROW_EXT_TYPE_VECTOR: &str = "Vector";
 pub const ARROW_EXT_TYPE_TIMESTAMP_TIMEZONE: &str = "TimestampTz";
+// Nested types carried as text, only in batches the driver builds from JSON pages
+pub const ARROW_EXT_TYPE_ARRAY: &str = "Array";
+pub const ARROW_EXT_TYPE_MAP: &str = "Map";
+pub const ARROW_EXT_TYPE_TUPLE: &str = "Tuple";
 
 #[derive(Debug, Clone, PartialEq, Eq)]
 pub enum NumberDataType {
@@ -289,8 +293,7 @@ impl TryFrom<APISchemaField> for Field {
     type Error = Error;
 
     fn try_from(f: APISchemaField) -> Result<Self> {
-        let type_desc = parse_type_desc(&f.data_type)?;
-        let dt = DataType::try_from(&type_desc)?;
+        let dt = parse_data_type(&f.data_type)?;
         let field = Self {
             name: f.name,
             data_type: dt,
@@ -446,6 +449,11 @@ struct TypeDesc<'t> {
     args: Vec<TypeDesc<'t>>,
 }
 
+pub(crate) fn parse_data_type(s: &str) -> Result<DataType> {
+    let type_desc = parse_type_desc(s)?;
+    DataType::try_from(&type_desc)
+}
+
 fn parse_type_desc(s: &str) -> Result<TypeDesc<'_>> {
     let mut name = "";
     let mut args = vec![];
@@ -0,0 +1,142 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::HashMap;
+use std::sync::Arc;
+
+use arrow_schema::{Fields as ArrowFields, SchemaRef as ArrowSchemaRef};
+use parking_lot::Mutex;
+
+use crate::error::Result;
+use crate::schema::{parse_data_type, DataType, Field, Schema, SchemaRef};
+use crate::SchemaField;
+
+// entries of each map, which is cleared when full
+const CACHE_CAPACITY: usize = 256;
+
+/// Schemas converted by an `APIClient`, so that queries returning the same
+/// columns share one `SchemaRef`.
+///
+/// JSON schemas are keyed by their fields and arrow schemas by the hash of
+/// their fields, compared in full on lookup. The metadata of arrow schemas is
+/// left out of the key, as it carries the `response_header` of each page.
+/// Type strings of JSON schemas are parsed once.
+#[derive(Default)]
+pub(crate) struct SchemaCache {
+    types: Mutex<HashMap<String, DataType>>,
+    fields: Mutex<HashMap<Vec<SchemaField>, SchemaRef>>,
+    arrow: Mutex<HashMap<ArrowFields, SchemaRef>>,
+}
+
+impl SchemaCache {
+    pub(crate) fn from_fields(&self, fields: &[SchemaField]) -> Result<SchemaRef> {
+        if let Some(schema) = self.fields.lock().get(fields) {
+            return Ok(schema.clone());
+        }
+        let fields_vec = fields
+            .iter()
+            .map(|f| {
+                Ok(Field {
+                    name: f.name.clone(),
+                    data_type: self.data_type(&f.data_type)?,
+                })
+            })
+            .collect::<Result<Vec<_>>>()?;
+        let schema = Arc::new(Schema::from_vec(fields_vec));
+        insert(&self.fields, fields.to_vec(), schema.clone());
+        Ok(schema)
+    }
+
+    pub(crate) fn from_arrow(&self, arrow_schema: &ArrowSchemaRef) -> Result<SchemaRef> {
+        if let Some(schema) = self.arrow.lock().get(arrow_schema.fields()) {
+            return Ok(schema.clone());
+        }
+        let schema = Arc::new(Schema::try_from(arrow_schema.clone())?);
+        insert(&self.arrow, arrow_schema.fields().clone(), schema.clone());
+        Ok(schema)
+    }
+
+    fn data_type(&self, type_str: &str) -> Result<DataType> {
+        if let Some(data_type) = self.types.lock().get(type_str) {
+            return Ok(data_type.clone());
+        }
+        let data_type = parse_data_type(type_str)?;
+        insert(&self.types, type_str.to_string(), data_type.clone());
+        Ok(data_type)
+    }
+}
+
+fn insert<K: std::hash::Hash + Eq, V>(map: &Mutex<HashMap<K, V>>, key: K, value: V) {
+    let mut map = map.lock();
+    if map.len() >= CACHE_CAPACITY {
+        map.clear();
+    }
+    map.insert(key, value);
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use arrow_schema::{DataType as ArrowDataType, Field as ArrowField, Schema as ArrowSchema};
+
+    fn field(name: &str, data_type: &str) -> SchemaField {
+        SchemaField {
+            name: name.to_string(),
+            data_type: data_type.to_string(),
+        }
+    }
+
+    #[test]
+    fn share_converted_schemas() {
+        let cache = SchemaCache::default();
+        let fields = vec![
+            field("a", "Nullable(Decimal(38, 10))"),
+            field("b", "Nullable(Decimal(38, 10))"),
+        ];
+        let schema = cache.from_fields(&fields).unwrap();
+        assert!(Arc::ptr_eq(&schema, &cache.from_fields(&fields).unwrap()));
+        assert_eq!(cache.types.lock().len(), 1);
+        assert_eq!(schema.fields()[1].data_type.to_string(), "Nullable(Decimal(38, 10))");
+        assert!(cache.from_fields(&[field("c", "Nullable(")]).is_err());
+
+        let arrow_schema = |nullable| {
+            Arc::new(ArrowSchema::new(vec![ArrowField::new(
+                "a",
+                ArrowDataType::Int32,
+                nullable,
+            )]))
+        };
+        let schema = cache.from_arrow(&arrow_schema(true)).unwrap();
+        assert!(Arc::ptr_eq(&schema, &cache.from_arrow(&arrow_schema(true)).unwrap()));
+        let other = cache.from_arrow(&arrow_schema(false)).unwrap();
+        assert!(!Arc::ptr_eq(&schema, &other));
+    }
+
+    #[test]
+    fn ignore_arrow_schema_metadata() {
+        let cache = SchemaCache::default();
+        // each page sends its own response header in the schema metadata
+        let page_schema = |header: &str| {
+            let metadata = HashMap::from([("response_header".to_string(), header.to_string())]);
+            Arc::new(ArrowSchema::new_with_metadata(
+                vec![ArrowField::new("a", ArrowDataType::Int32, true)],
+                metadata,
+            ))
+        };
+        let schema = cache.from_arrow(&page_schema(r#"{"id":"1"}"#)).unwrap();
+        let other = cache.from_arrow(&page_schema(r#"{"id":"2"}"#)).unwrap();
+        assert!(Arc::ptr_eq(&schema, &other));
+        assert_eq!(cache.arrow.lock().len(), 1);
+    }
+}
@@ -0,0 +1,129 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::HashMap;
+use std::time::Duration;
+
+use once_cell::sync::Lazy;
+use parking_lot::Mutex;
+use reqwest::Client as HttpClient;
+
+use crate::error::Result;
+
+pub(crate) const DEFAULT_POOL_IDLE_TIMEOUT: Duration = Duration::from_secs(30);
+
+/// Process-wide HTTP clients, one per endpoint and transport options.
+///
+/// A `reqwest::Client` owns its connection pool and its TLS session cache, so
+/// `APIClient`s sharing one reuse warm connections and resume TLS sessions
+/// instead of paying a new handshake each.
+static TRANSPORTS: Lazy<Mutex<HashMap<TransportConfig, HttpClient>>> =
+    Lazy::new(|| Mutex::new(HashMap::new()));
+
+/// HTTP client used to transfer files with presigned urls, which point to the
+/// object storage instead of the databend endpoint.
+static PRESIGN_TRANSPORT: Lazy<HttpClient> = Lazy::new(|| {
+    HttpClient::builder()
+        .pool_idle_timeout(DEFAULT_POOL_IDLE_TIMEOUT)
+        .http1_only()
+        .build()
+        .expect("failed to build presign http client")
+});
+
+#[derive(Clone, Debug, PartialEq, Eq, Hash)]
+pub(crate) struct TransportConfig {
+    /// `scheme://host:port` of the databend endpoint.
+    pub endpoint: String,
+    pub user_agent: String,
+    pub connect_timeout: Duration,
+    pub pool_idle_timeout: Duration,
+    pub pool_max_idle_per_host: usize,
+    /// Use HTTP/2, negotiated with ALPN over TLS or with prior knowledge on
+    /// plain http. HTTP/1.1 only otherwise.
+    pub http2: bool,
+    pub tls_ca_file: Option<String>,
+}
+
+impl TransportConfig {
+    async fn build(&self) -> Result<HttpClient> {
+        let mut builder = HttpClient::builder()
+            .user_agent(self.user_agent.clone())
+            .connect_timeout(self.connect_timeout)
+            .pool_idle_timeout(self.pool_idle_timeout)
+            .pool_max_idle_per_host(self.pool_max_idle_per_host);
+        let https = self.endpoint.starts_with("https://");
+        builder = match (self.http2, https) {
+            (false, _) => builder.http1_only(),
+            (true, false) => builder.http2_prior_knowledge(),
+            (true, true) => builder,
+        };
+        #[cfg(any(feature = "rustls", feature = "native-tls"))]
+        if https {
+            if let Some(ref ca_file) = self.tls_ca_file {
+                let cert_pem = tokio::fs::read(ca_file).await?;
+                let cert = reqwest::Certificate::from_pem(&cert_pem)?;
+                builder = builder.add_root_certificate(cert);
+            }
+        }
+        Ok(builder.build()?)
+    }
+}
+
+/// Get the shared HTTP client for the config, building it on first use.
+pub(crate) async fn shared_client(config: &TransportConfig) -> Result<HttpClient> {
+    let cached = TRANSPORTS.lock().get(config).cloned();
+    if let Some(client) = cached {
+        return Ok(client);
+    }
+    let client = config.build().await?;
+    let mut guard = TRANSPORTS.lock();
+    Ok(guard.entry(config.clone()).or_insert(client).clone())
+}
+
+pub(crate) fn presign_client() -> HttpClient {
+    PRESIGN_TRANSPORT.clone()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::client_mgr::GLOBAL_RUNTIME;
+
+    fn config(endpoint: &str) -> TransportConfig {
+        TransportConfig {
+            endpoint: endpoint.to_string(),
+            user_agent: "test".to_string(),
+            connect_timeout: Duration::from_secs(10),
+            pool_idle_timeout: DEFAULT_POOL_IDLE_TIMEOUT,
+            pool_max_idle_per_host: usize::MAX,
+            http2: false,
+            tls_ca_file: None,
+        }
+    }
+
+    #[test]
+    fn shared_client_cached_per_config() {
+        GLOBAL_RUNTIME.block_on(async {
+            let a = config("http://localhost:8000");
+            let mut b = a.clone();
+            b.http2 = true;
+            shared_client(&a).await.unwrap();
+            shared_client(&a).await.unwrap();
+            shared_client(&b).await.unwrap();
+            let guard = TRANSPORTS.lock();
+            assert!(guard.contains_key(&a));
+            assert!(guard.contains_key(&b));
+        });
+    }
+}
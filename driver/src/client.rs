@@ -17,25 +17,34 @@ use once_cell::sync::Lazy;
 use std::collections::BTreeMap;
 use std::path::Path;
 use std::str::FromStr;
+use std::sync::Arc;
 use url::Url;
 
 use crate::conn::IConnection;
 #[cfg(feature = "flight-sql")]
 use crate::flight_sql::FlightSQLConnection;
+use crate::merge::{MergedStreams, OpenFuture};
+use crate::params::json_value_to_sql_string;
 use crate::placeholder::PlaceholderVisitor;
+use crate::pool::{PoolConfig, PoolStats, PooledSlot, SessionPool};
 use crate::ConnectionInfo;
 use crate::Params;
 
 use databend_client::PresignedResponse;
 use databend_common_ast::parser::Dialect;
+use databend_driver_core::batches::ArrowBatchIterator;
 use databend_driver_core::error::{Error, Result};
+use databend_driver_core::lazy_rows::LazyRowIterator;
 use databend_driver_core::raw_rows::{RawRow, RawRowIterator};
 use databend_driver_core::rows::{Row, RowIterator, RowStatsIterator, ServerStats};
-use databend_driver_core::value::Value;
+use databend_driver_core::value::{NdjsonRow, Value};
 use tokio_stream::StreamExt;
 
 use crate::rest_api::RestAPIConnection;
 
+const DEFAULT_INSERT_CHUNK_ROWS: usize = 10000;
+const DEFAULT_INSERT_CHUNK_BYTES: usize = 8 * 1024 * 1024;
+
 static VERSION: Lazy<String> = Lazy::new(|| {
     let version = option_env!("CARGO_PKG_VERSION").unwrap_or("unknown");
     version.to_string()
@@ -63,18 +72,24 @@ impl FromStr for LoadMethod {
 pub struct Client {
     dsn: String,
     name: String,
+    pool: Option<Arc<SessionPool>>,
 }
 
 use crate::conn::Reader;
 
 pub struct Connection {
-    inner: Box<dyn IConnection>,
+    inner: Arc<dyn IConnection>,
+    pooled: std::sync::Mutex<Option<PooledSlot>>,
 }
 
 impl Client {
     pub fn new(dsn: String) -> Self {
         let name = format!("databend-driver-rust/{}", VERSION.as_str());
-        Self { dsn, name }
+        Self {
+            dsn,
+            name,
+            pool: None,
+        }
     }
 
     pub fn with_name(mut self, name: String) -> Self {
@@ -82,21 +97,46 @@ impl Client {
         self
     }
 
+    /// Reuse sessions across `get_conn` calls. A dropped `Connection` returns
+    /// its session to the pool once reset in the background.
+    pub fn with_pool(mut self, config: PoolConfig) -> Self {
+        self.pool = Some(Arc::new(SessionPool::new(config)));
+        self
+    }
+
     pub async fn get_conn(&self) -> Result<Connection> {
+        match &self.pool {
+            Some(pool) => pool.get(self).await,
+            None => Ok(Connection {
+                inner: self.create_conn().await?,
+                pooled: std::sync::Mutex::new(None),
+            }),
+        }
+    }
+
+    /// Open the `min_idle` sessions of the pool ahead of time.
+    pub async fn warm_up(&self) -> Result<()> {
+        match &self.pool {
+            Some(pool) => pool.warm_up(self).await,
+            None => Ok(()),
+        }
+    }
+
+    pub fn pool_stats(&self) -> Option<PoolStats> {
+        self.pool.as_ref().map(|pool| pool.stats())
+    }
+
+    pub(crate) async fn create_conn(&self) -> Result<Arc<dyn IConnection>> {
         let u = Url::parse(&self.dsn)?;
         match u.scheme() {
             "databend" | "databend+http" | "databend+https" => {
                 let conn = RestAPIConnection::try_create(&self.dsn, self.name.clone()).await?;
-                Ok(Connection {
-                    inner: Box::new(conn),
-                })
+                Ok(Arc::new(conn))
             }
             #[cfg(feature = "flight-sql")]
             "databend+flight" | "databend+grpc" => {
                 let conn = FlightSQLConnection::try_create(&self.dsn, self.name.clone()).await?;
-                Ok(Connection {
-                    inner: Box::new(conn),
-                })
+                Ok(Arc::new(conn))
             }
             _ => Err(Error::Parsing(format!(
                 "Unsupported scheme: {}",
@@ -108,7 +148,10 @@ impl Client {
 
 impl Drop for Connection {
     fn drop(&mut self) {
-        if let Err(e) = self.inner.close_with_spawn() {
+        let pooled = self.pooled.get_mut().ok().and_then(|slot| slot.take());
+        if let Some(slot) = pooled {
+            slot.release(self.inner.clone());
+        } else if let Err(e) = self.inner.close_with_spawn() {
             error!("fail to close connection: {}", e);
         }
     }
@@ -122,7 +165,17 @@ impl Connection {
     pub async fn info(&self) -> ConnectionInfo {
         self.inner.info().await
     }
+    pub(crate) fn pooled(inner: Arc<dyn IConnection>, slot: PooledSlot) -> Self {
+        Self {
+            inner,
+            pooled: std::sync::Mutex::new(Some(slot)),
+        }
+    }
+
+    /// Close the session, a pooled session is not returned to the pool then.
     pub async fn close(&self) -> Result<()> {
+        let slot = self.pooled.lock().ok().and_then(|mut slot| slot.take());
+        drop(slot);
         self.inner.close().await
     }
 
@@ -159,14 +212,73 @@ impl Connection {
         QueryBuilder::new(self, sql).iter_ext().await
     }
 
+    pub async fn query_iter_lazy(&self, sql: &str) -> Result<LazyRowIterator> {
+        QueryBuilder::new(self, sql).iter_lazy().await
+    }
+
     pub async fn query_row(&self, sql: &str) -> Result<Option<Row>> {
         QueryBuilder::new(self, sql).one().await
     }
 
+    /// Query and return the result as arrow `RecordBatch`es, skipping the
+    /// conversion to `Row`s.
+    pub async fn query_arrow_iter(&self, sql: &str) -> Result<ArrowBatchIterator> {
+        QueryBuilder::new(self, sql).arrow().await
+    }
+
     pub async fn query_all(&self, sql: &str) -> Result<Vec<Row>> {
         QueryBuilder::new(self, sql).all().await
     }
 
+    /// Fetch the whole result first, holding at most `spool_memory_bytes` of it
+    /// in memory and spilling the rest to an Arrow IPC file in `spool_dir`,
+    /// then iterate the rows decoded one batch at a time.
+    pub async fn query_spooled(&self, sql: &str) -> Result<RowIterator> {
+        self.inner.query_spooled(sql).await
+    }
+
+    /// Run the query as `n` sub-queries, each one selecting the rows where
+    /// `abs(partition_expr % n)` equals its index, and merge their rows as they
+    /// arrive. Rows where the expression is NULL go to the first partition.
+    ///
+    /// The expression should spread rows evenly, e.g. an integer key or
+    /// `city64withseed(col, 0)` to hash other types. The order of the rows is
+    /// not kept, and the stats are the sum over all partitions.
+    ///
+    /// The sub-queries run concurrently on the session of the connection, so
+    /// this fails in a transaction or when the session is sticky to a node.
+    pub async fn query_partitioned(
+        &self,
+        sql: &str,
+        partition_expr: &str,
+        n: usize,
+    ) -> Result<RowStatsIterator> {
+        if n == 0 {
+            return Err(Error::BadArgument(
+                "number of partitions must be greater than 0".to_string(),
+            ));
+        }
+        if n > 1 && self.inner.session_pinned() {
+            return Err(Error::BadArgument(
+                "can not run partitioned queries in a transaction or a sticky session".to_string(),
+            ));
+        }
+        let first = self
+            .inner
+            .query_iter_ext(&partition_sql(sql, partition_expr, n, 0))
+            .await?;
+        let schema = first.schema();
+        let others = (1..n)
+            .map(|i| {
+                let inner = self.inner.clone();
+                let sql = partition_sql(sql, partition_expr, n, i);
+                Box::pin(async move { inner.query_iter_ext(&sql).await }) as OpenFuture<_>
+            })
+            .collect();
+        let merged = MergedStreams::new(first, others, n, false);
+        Ok(RowStatsIterator::new(schema, Box::pin(merged)))
+    }
+
     // raw data response query, only for test
     pub async fn query_raw_iter(&self, sql: &str) -> Result<RawRowIterator> {
         self.inner.query_raw_iter(sql).await
@@ -309,7 +421,16 @@ where
 pub struct InsertCursor<'a, T> {
     connection: &'a Connection,
     table_name: String,
-    rows: Vec<T>,
+    field_names: Vec<&'static str>,
+    streaming_load: bool,
+    max_rows: usize,
+    max_bytes: usize,
+    buffer: Vec<u8>,
+    // values bound to the placeholders of the VALUES fallback
+    params: Vec<serde_json::Value>,
+    params_bytes: usize,
+    buffered_rows: usize,
+    inserted: i64,
     _phantom: std::marker::PhantomData<T>,
 }
 
@@ -321,45 +442,112 @@ where
         Self {
             connection,
             table_name,
-            rows: Vec::new(),
+            field_names: T::insert_field_names(),
+            streaming_load: connection.inner.supports_streaming_load(),
+            max_rows: DEFAULT_INSERT_CHUNK_ROWS,
+            max_bytes: DEFAULT_INSERT_CHUNK_BYTES,
+            buffer: Vec::new(),
+            params: Vec::new(),
+            params_bytes: 0,
+            buffered_rows: 0,
+            inserted: 0,
             _phantom: std::marker::PhantomData,
         }
     }
 
+    /// Send the buffered rows once `rows` rows are written, default to 10000.
+    pub fn with_max_rows(mut self, rows: usize) -> Self {
+        self.max_rows = rows.max(1);
+        self
+    }
+
+    /// Send the buffered rows once they are encoded into `bytes` bytes, default to 8 MiB.
+    pub fn with_max_bytes(mut self, bytes: usize) -> Self {
+        self.max_bytes = bytes;
+        self
+    }
+
+    /// Encode the row into the current chunk. When the chunk reaches the row or
+    /// byte threshold, this waits until the chunk is loaded.
     pub async fn write(&mut self, row: &T) -> Result<()> {
-        self.rows.push(row.clone());
+        let values = row.to_values();
+        if self.streaming_load {
+            // one NDJSON object per row, loaded with `@_databend_load`
+            let object = NdjsonRow::new(&self.field_names, &values);
+            let start = self.buffer.len();
+            if let Err(e) = serde_json::to_writer(&mut self.buffer, &object) {
+                // drop the partly encoded row, e.g. on a Variant that is not JSON
+                self.buffer.truncate(start);
+                return Err(Error::BadArgument(e.to_string()));
+            }
+            self.buffer.push(b'\n');
+        } else {
+            // fallback for servers without streaming load: multi-row VALUES
+            // with the values bound as params, the buffer holds the
+            // placeholders and the bound values are counted in its size
+            if self.buffered_rows > 0 {
+                self.buffer.extend_from_slice(b", ");
+            }
+            let placeholders = vec!["?"; values.len()].join(", ");
+            self.buffer.push(b'(');
+            self.buffer.extend_from_slice(placeholders.as_bytes());
+            self.buffer.push(b')');
+            for value in values {
+                let value = value.to_json_value();
+                self.params_bytes += json_value_to_sql_string(&value).len();
+                self.params.push(value);
+            }
+        }
+        self.buffered_rows += 1;
+        if self.buffered_rows >= self.max_rows
+            || self.buffer.len() + self.params_bytes >= self.max_bytes
+        {
+            self.flush().await?;
+        }
         Ok(())
     }
 
-    pub async fn end(self) -> Result<i64> {
-        if self.rows.is_empty() {
-            return Ok(0);
+    /// Send the buffered rows now.
+    pub async fn flush(&mut self) -> Result<()> {
+        if self.buffered_rows == 0 {
+            return Ok(());
         }
-        let connection = self.connection;
-        // Generate field names and values for INSERT (exclude skip_serializing)
-        let field_names = T::insert_field_names();
-        let field_list = field_names.join(", ");
-        let placeholder_list = (0..field_names.len())
-            .map(|_| "?")
-            .collect::<Vec<_>>()
-            .join(", ");
-
-        let sql = format!(
-            "INSERT INTO {} ({}) VALUES ({})",
-            self.table_name, field_list, placeholder_list
-        );
-
-        let mut total_inserted = 0;
-        for row in &self.rows {
-            let values = row.to_values();
-            let json_values: Vec<serde_json::Value> =
-                values.into_iter().map(|v| v.to_json_value()).collect();
-            let params = Params::QuestionParams(json_values);
-            let inserted = connection.exec(&sql).bind(params).await?;
-            total_inserted += inserted;
+        let data = std::mem::take(&mut self.buffer);
+        let params = std::mem::take(&mut self.params);
+        self.params_bytes = 0;
+        self.buffered_rows = 0;
+        let field_list = self.field_names.join(", ");
+        if self.streaming_load {
+            let sql = format!(
+                "INSERT INTO {} ({}) FROM @_databend_load FILE_FORMAT = (type = NDJSON)",
+                self.table_name, field_list
+            );
+            let size = data.len() as u64;
+            let reader = Box::new(std::io::Cursor::new(data));
+            let stats = self
+                .connection
+                .load_data(&sql, reader, size, LoadMethod::Streaming)
+                .await?;
+            self.inserted += stats.write_rows as i64;
+        } else {
+            let sql = format!(
+                "INSERT INTO {} ({}) VALUES {}",
+                self.table_name,
+                field_list,
+                String::from_utf8_lossy(&data)
+            );
+            self.inserted += self
+                .connection
+                .exec(&sql)
+                .bind(Params::QuestionParams(params))
+                .await?;
         }
+        Ok(())
+    }
 
-        Ok(total_inserted)
+    pub async fn end(mut self) -> Result<i64> {
+        self.flush().await?;
+        Ok(self.inserted)
     }
 }
 
@@ -480,6 +668,28 @@ impl<'a> QueryBuilder<'a> {
         self.connection.inner.query_iter_ext(&sql).await
     }
 
+    /// Rows with the columns decoded on access, see `LazyRow`. Parameters are
+    /// always replaced in the SQL.
+    pub async fn iter_lazy(self) -> Result<LazyRowIterator> {
+        let sql = self.get_final_sql();
+        self.connection.inner.query_iter_lazy(&sql).await
+    }
+
+    pub async fn arrow(self) -> Result<ArrowBatchIterator> {
+        if let Some(params) = &self.params {
+            if self.should_use_server_side_params() {
+                let json_params = params.to_json_value();
+                return self
+                    .connection
+                    .inner
+                    .query_arrow_iter_with_params(&self.sql, Some(json_params))
+                    .await;
+            }
+        }
+        let sql = self.get_final_sql();
+        self.connection.inner.query_arrow_iter(&sql).await
+    }
+
     pub async fn one(self) -> Result<Option<Row>> {
         if let Some(params) = &self.params {
             if self.should_use_server_side_params() {
@@ -610,6 +820,16 @@ fn sql_has_dollar_placeholders(sql: &str) -> bool {
     false
 }
 
+fn partition_sql(sql: &str, partition_expr: &str, n: usize, i: usize) -> String {
+    let sql = sql.trim().trim_end_matches(';');
+    let expr = partition_expr.trim();
+    let mut predicate = format!("abs(({expr}) % {n}) = {i}");
+    if i == 0 {
+        predicate.push_str(&format!(" OR ({expr}) IS NULL"));
+    }
+    format!("SELECT * FROM ({sql}) AS _partitioned WHERE {predicate}")
+}
+
 // Add trait bounds for ORM functionality
 pub trait RowORM: TryFrom<Row> + Clone {
     fn field_names() -> Vec<&'static str>; // For backward compatibility
@@ -617,3 +837,20 @@ pub trait RowORM: TryFrom<Row> + Clone {
     fn insert_field_names() -> Vec<&'static str>; // For INSERT statements (exclude skip_serializing)
     fn to_values(&self) -> Vec<Value>;
 }
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn rewrite_partition_sql() {
+        assert_eq!(
+            partition_sql("select * from t; ", "id", 4, 0),
+            "SELECT * FROM (select * from t) AS _partitioned WHERE abs((id) % 4) = 0 OR (id) IS NULL"
+        );
+        assert_eq!(
+            partition_sql("select a from t", "city64withseed(a, 0)", 3, 2),
+            "SELECT * FROM (select a from t) AS _partitioned WHERE abs((city64withseed(a, 0)) % 3) = 2"
+        );
+    }
+}
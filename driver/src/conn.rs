@@ -29,7 +29,9 @@ use crate::client::LoadMethod;
 use databend_client::schema::{DataType, Field, NumberDataType, Schema};
 use databend_client::StageLocation;
 use databend_client::{presign_download_from_stage, PresignedResponse};
+use databend_driver_core::batches::ArrowBatchIterator;
 use databend_driver_core::error::{Error, Result};
+use databend_driver_core::lazy_rows::{LazyRow, LazyRowIterator};
 use databend_driver_core::raw_rows::{RawRow, RawRowIterator};
 use databend_driver_core::rows::{Row, RowIterator, RowStatsIterator, RowWithStats, ServerStats};
 use databend_driver_core::value::{NumberValue, Value};
@@ -57,6 +59,17 @@ pub trait IConnection: Send + Sync {
         Ok(())
     }
 
+    /// Roll back any open transaction and restore the session state to the one
+    /// right after connecting, called when a pooled session is returned.
+    async fn reset_session(&self) -> Result<()> {
+        Ok(())
+    }
+
+    /// Check an idle pooled session is still usable.
+    async fn check_health(&self) -> Result<()> {
+        Ok(())
+    }
+
     fn last_query_id(&self) -> Option<String>;
 
     async fn version(&self) -> Result<String> {
@@ -80,6 +93,17 @@ pub trait IConnection: Send + Sync {
         false
     }
 
+    /// Whether `load_data` can load from `@_databend_load` with streaming load.
+    fn supports_streaming_load(&self) -> bool {
+        false
+    }
+
+    /// Whether the session state is bound to its queries running one after
+    /// the other, in a transaction or on a sticky node.
+    fn session_pinned(&self) -> bool {
+        false
+    }
+
     async fn exec_with_params(&self, sql: &str, _params: Option<serde_json::Value>) -> Result<i64> {
         self.exec(sql).await
     }
@@ -100,6 +124,29 @@ pub trait IConnection: Send + Sync {
         self.query_iter_ext(sql).await
     }
 
+    async fn query_arrow_iter(&self, _sql: &str) -> Result<ArrowBatchIterator> {
+        Err(Error::BadArgument(
+            "Unsupported implement query_arrow_iter".to_string(),
+        ))
+    }
+
+    async fn query_arrow_iter_with_params(
+        &self,
+        sql: &str,
+        _params: Option<serde_json::Value>,
+    ) -> Result<ArrowBatchIterator> {
+        self.query_arrow_iter(sql).await
+    }
+
+    /// Like `query_iter`, with the columns of a row decoded on access.
+    /// Connections without lazy rows return decoded rows.
+    async fn query_iter_lazy(&self, sql: &str) -> Result<LazyRowIterator> {
+        let rows = self.query_iter(sql).await?;
+        let schema = rows.schema();
+        let rows = rows.map(|row| row.map(LazyRow::from));
+        Ok(LazyRowIterator::new(schema, Box::pin(rows)))
+    }
+
     async fn query_row(&self, sql: &str) -> Result<Option<Row>> {
         let rows = self.query_all(sql).await?;
         let row = rows.into_iter().next();
@@ -111,6 +158,13 @@ pub trait IConnection: Send + Sync {
         rows.collect().await
     }
 
+    /// Fetch the whole result before returning, keeping it in memory up to a
+    /// budget and spilling the rest to a local file. Connections without
+    /// spooling stream the result like `query_iter`.
+    async fn query_spooled(&self, sql: &str) -> Result<RowIterator> {
+        self.query_iter(sql).await
+    }
+
     // raw data response query, only for test
     async fn query_raw_iter(&self, _sql: &str) -> Result<RawRowIterator> {
         Err(Error::BadArgument(
@@ -17,34 +17,42 @@ use std::path::Path;
 use std::pin::Pin;
 use std::sync::Arc;
 use std::task::{Context, Poll};
-use std::time::Duration;
+use std::time::{Duration, Instant};
 
 use arrow::ipc::{convert::fb_to_schema, root_as_message};
+use arrow::record_batch::RecordBatch;
 use arrow_flight::decode::FlightDataDecoder;
 use arrow_flight::sql::client::FlightSqlServiceClient;
 use arrow_flight::utils::flight_data_to_arrow_batch;
+use arrow_flight::Ticket;
 use arrow_schema::SchemaRef as ArrowSchemaRef;
 use async_trait::async_trait;
 use percent_encoding::percent_decode_str;
-use tokio::sync::Mutex;
+use tokio::sync::{OnceCell, OwnedSemaphorePermit, Semaphore};
 use tokio_stream::{Stream, StreamExt};
 use tonic::transport::{Channel, ClientTlsConfig, Endpoint};
 use url::Url;
 
 use crate::client::LoadMethod;
 use crate::conn::{ConnectionInfo, IConnection, Reader};
-use databend_client::schema::Schema;
+use crate::merge::{MergedStreams, OpenFuture, Permitted};
+use crate::timing::QueryClock;
+use databend_client::schema::{Schema, SchemaRef};
 use databend_client::SensitiveString;
 use databend_client::{presign_upload_to_stage, ResultFormatSettings};
+use databend_driver_core::batches::ArrowBatchIterator;
 use databend_driver_core::error::{Error, Result};
 use databend_driver_core::rows::{
     Row, RowIterator, RowStatsIterator, RowWithStats, Rows, ServerStats,
 };
 
+/// The underlying tonic `Channel` multiplexes requests over HTTP/2, so every
+/// call works on its own clone of the handshaked client and runs concurrently.
 #[derive(Clone)]
 pub struct FlightSQLConnection {
-    client: Arc<Mutex<FlightSqlServiceClient<Channel>>>,
-    handshaked: Arc<Mutex<bool>>,
+    client: FlightSqlServiceClient<Channel>,
+    handshaked: Arc<OnceCell<FlightSqlServiceClient<Channel>>>,
+    streams: Arc<Semaphore>,
     args: Args,
 }
 
@@ -91,8 +99,8 @@ impl IConnection for FlightSQLConnection {
     }
 
     async fn exec(&self, sql: &str) -> Result<i64> {
-        self.handshake().await?;
-        let mut client = self.client.lock().await;
+        let _permit = self.acquire_stream().await?;
+        let mut client = self.handshake().await?;
         let affected_rows = client.execute_update(sql.to_string(), None).await?;
         Ok(affected_rows)
     }
@@ -109,19 +117,67 @@ impl IConnection for FlightSQLConnection {
     }
 
     async fn query_iter_ext(&self, sql: &str) -> Result<RowStatsIterator> {
-        self.handshake().await?;
-        let mut client = self.client.lock().await;
-        let mut stmt = client.prepare(sql.to_string(), None).await?;
-        let flight_info = stmt.execute().await?;
-        let ticket = flight_info.endpoint[0]
-            .ticket
-            .as_ref()
-            .ok_or_else(|| Error::Protocol("Ticket is empty".to_string()))?;
-        let flight_data = client.do_get(ticket.clone()).await?.into_inner();
-        let (schema, rows) = FlightSQLRows::try_from_flight_data(flight_data).await?;
+        let started = Instant::now();
+        let query = self.execute_query(sql).await?;
+        let query_start = started.elapsed();
+        let mut client = query.client.clone();
+        let flight_data = client.do_get(query.tickets[0].clone()).await?.into_inner();
+        let clock = QueryClock::new(started, query_start);
+        let (schema, rows) = FlightSQLRows::try_from_flight_data(flight_data, clock).await?;
+        let others = query.tickets[1..]
+            .iter()
+            .map(|ticket| {
+                let mut client = query.client.clone();
+                let ticket = ticket.clone();
+                let streams = self.streams.clone();
+                Box::pin(async move {
+                    let permit = acquire_stream(streams).await?;
+                    let flight_data = client.do_get(ticket).await?.into_inner();
+                    let clock = QueryClock::new(started, query_start);
+                    let (_, rows) =
+                        FlightSQLRows::try_from_flight_data(flight_data, clock).await?;
+                    Ok(Permitted::new(rows, permit))
+                }) as OpenFuture<Permitted<FlightSQLRows>>
+            })
+            .collect();
+        let rows = MergedStreams::new(
+            Permitted::new(rows, query.permit),
+            others,
+            self.args.endpoint_parallelism,
+            self.args.ordered_endpoints,
+        );
         Ok(RowStatsIterator::new(Arc::new(schema), Box::pin(rows)))
     }
 
+    async fn query_arrow_iter(&self, sql: &str) -> Result<ArrowBatchIterator> {
+        let query = self.execute_query(sql).await?;
+        let mut client = query.client.clone();
+        let flight_data = client.do_get(query.tickets[0].clone()).await?.into_inner();
+        let batches = FlightSQLBatches::try_from_flight_data(flight_data).await?;
+        let schema = batches.schema.clone();
+        let others = query.tickets[1..]
+            .iter()
+            .map(|ticket| {
+                let mut client = query.client.clone();
+                let ticket = ticket.clone();
+                let streams = self.streams.clone();
+                Box::pin(async move {
+                    let permit = acquire_stream(streams).await?;
+                    let flight_data = client.do_get(ticket).await?.into_inner();
+                    let batches = FlightSQLBatches::try_from_flight_data(flight_data).await?;
+                    Ok(Permitted::new(batches, permit))
+                }) as OpenFuture<Permitted<FlightSQLBatches>>
+            })
+            .collect();
+        let batches = MergedStreams::new(
+            Permitted::new(batches, query.permit),
+            others,
+            self.args.endpoint_parallelism,
+            self.args.ordered_endpoints,
+        );
+        Ok(ArrowBatchIterator::new(schema, Box::pin(batches)))
+    }
+
     /// Always use presigned url to upload stage for FlightSQL
     async fn upload_to_stage(&self, stage: &str, data: Reader, size: u64) -> Result<()> {
         let presign = self.get_presigned_url("UPLOAD", stage).await?;
@@ -185,23 +241,56 @@ impl FlightSQLConnection {
             client.set_header("x-databend-warehouse", warehouse);
         }
         Ok(Self {
-            client: Arc::new(Mutex::new(client)),
+            client,
+            handshaked: Arc::new(OnceCell::new()),
+            streams: Arc::new(Semaphore::new(args.max_concurrent_streams)),
             args,
-            handshaked: Arc::new(Mutex::new(false)),
         })
     }
 
-    async fn handshake(&self) -> Result<()> {
-        let mut handshaked = self.handshaked.lock().await;
-        if *handshaked {
-            return Ok(());
+    /// The returned permit must be held until the result stream is dropped.
+    async fn acquire_stream(&self) -> Result<OwnedSemaphorePermit> {
+        acquire_stream(self.streams.clone()).await
+    }
+
+    async fn execute_query(&self, sql: &str) -> Result<FlightQuery> {
+        let permit = self.acquire_stream().await?;
+        let mut client = self.handshake().await?;
+        let mut stmt = client.prepare(sql.to_string(), None).await?;
+        let flight_info = stmt.execute().await?;
+        let tickets = flight_info
+            .endpoint
+            .into_iter()
+            .map(|endpoint| {
+                endpoint
+                    .ticket
+                    .ok_or_else(|| Error::Protocol("Ticket is empty".to_string()))
+            })
+            .collect::<Result<Vec<_>>>()?;
+        if tickets.is_empty() {
+            return Err(Error::Protocol("No endpoint in flight info".to_string()));
         }
-        let mut client = self.client.lock().await;
-        let _token = client
-            .handshake(&self.args.user, self.args.password.inner())
+        Ok(FlightQuery {
+            client,
+            tickets,
+            permit,
+        })
+    }
+
+    /// Handshake only once per connection, then hand out clones of the client
+    /// carrying the token.
+    async fn handshake(&self) -> Result<FlightSqlServiceClient<Channel>> {
+        let client = self
+            .handshaked
+            .get_or_try_init(|| async {
+                let mut client = self.client.clone();
+                let _token = client
+                    .handshake(&self.args.user, self.args.password.inner())
+                    .await?;
+                Ok::<_, Error>(client)
+            })
             .await?;
-        *handshaked = true;
-        Ok(())
+        Ok(client.clone())
     }
 
     async fn parse_dsn(dsn: &str, name: String) -> Result<(Args, Endpoint)> {
@@ -254,6 +343,11 @@ struct Args {
     http2_keep_alive_interval: Duration,
     keep_alive_timeout: Duration,
     keep_alive_while_idle: bool,
+    max_concurrent_streams: usize,
+    /// Max endpoints of one query fetched at the same time.
+    endpoint_parallelism: usize,
+    /// Yield rows in endpoint order instead of as they arrive.
+    ordered_endpoints: bool,
 }
 
 impl Default for Args {
@@ -276,6 +370,9 @@ impl Default for Args {
             http2_keep_alive_interval: Duration::from_secs(300),
             keep_alive_timeout: Duration::from_secs(20),
             keep_alive_while_idle: true,
+            max_concurrent_streams: 100,
+            endpoint_parallelism: 4,
+            ordered_endpoints: true,
         }
     }
 }
@@ -327,6 +424,23 @@ impl Args {
                 }
                 "keep_alive_timeout" => args.keep_alive_timeout = Duration::from_secs(v.parse()?),
                 "keep_alive_while_idle" => args.keep_alive_while_idle = v.parse()?,
+                "max_concurrent_streams" => {
+                    args.max_concurrent_streams = v.parse()?;
+                    if args.max_concurrent_streams == 0 {
+                        return Err(Error::BadArgument(
+                            "max_concurrent_streams must be greater than 0".to_string(),
+                        ));
+                    }
+                }
+                "endpoint_parallelism" => {
+                    args.endpoint_parallelism = v.parse()?;
+                    if args.endpoint_parallelism == 0 {
+                        return Err(Error::BadArgument(
+                            "endpoint_parallelism must be greater than 0".to_string(),
+                        ));
+                    }
+                }
+                "ordered_endpoints" => args.ordered_endpoints = v.parse()?,
                 _ => {}
             }
         }
@@ -356,33 +470,62 @@ impl Args {
 }
 
 pub struct FlightSQLRows {
-    schema: ArrowSchemaRef,
+    arrow_schema: ArrowSchemaRef,
+    schema: SchemaRef,
+    settings: ResultFormatSettings,
     data: FlightDataDecoder,
     rows: VecDeque<Row>,
+
+    clock: QueryClock,
+    page_wait: Duration,
+    waiting_since: Option<Instant>,
+    received_bytes: u64,
+    // progress of the last stats message, reported again with the final timing
+    last_stats: Option<ServerStats>,
+}
+
+async fn read_flight_schema(data: &mut FlightDataDecoder) -> Result<ArrowSchemaRef> {
+    let datum = data
+        .try_next()
+        .await
+        .map_err(|err| Error::Protocol(format!("Read flight data failed: {err:?}")))?
+        .ok_or_else(|| Error::Protocol("No flight data in stream".to_string()))?;
+    let message = root_as_message(&datum.inner.data_header[..])
+        .map_err(|err| Error::Protocol(format!("InvalidFlatbuffer: {err}")))?;
+    let ipc_schema = message.header_as_schema().ok_or_else(|| {
+        Error::Protocol("Invalid Message: Cannot get header as Schema".to_string())
+    })?;
+    Ok(Arc::new(fb_to_schema(ipc_schema)))
 }
 
 impl FlightSQLRows {
-    async fn try_from_flight_data(flight_data: FlightDataDecoder) -> Result<(Schema, Self)> {
+    async fn try_from_flight_data(
+        flight_data: FlightDataDecoder,
+        mut clock: QueryClock,
+    ) -> Result<(Schema, Self)> {
         let mut data = flight_data;
-        let datum = data
-            .try_next()
-            .await
-            .map_err(|err| Error::Protocol(format!("Read flight data failed: {err:?}")))?
-            .ok_or_else(|| Error::Protocol("No flight data in stream".to_string()))?;
-        let message = root_as_message(&datum.inner.data_header[..])
-            .map_err(|err| Error::Protocol(format!("InvalidFlatbuffer: {err}")))?;
-        let ipc_schema = message.header_as_schema().ok_or_else(|| {
-            Error::Protocol("Invalid Message: Cannot get header as Schema".to_string())
-        })?;
-        let arrow_schema = Arc::new(fb_to_schema(ipc_schema));
-        let schema = arrow_schema.clone().try_into()?;
+        let arrow_schema = read_flight_schema(&mut data).await?;
+        let schema: Schema = arrow_schema.clone().try_into()?;
+        clock.schema_known();
         let rows = Self {
-            schema: arrow_schema,
+            arrow_schema,
+            schema: Arc::new(schema.clone()),
+            settings: ResultFormatSettings::default(),
             data,
             rows: VecDeque::new(),
+            clock,
+            page_wait: Duration::ZERO,
+            waiting_since: None,
+            received_bytes: 0,
+            last_stats: None,
         };
         Ok((schema, rows))
     }
+
+    fn stats_with_timing(&self, mut ss: ServerStats) -> ServerStats {
+        ss.client = self.clock.timing(self.page_wait, self.received_bytes);
+        ss
+    }
 }
 
 impl Stream for FlightSQLRows {
@@ -390,35 +533,111 @@ impl Stream for FlightSQLRows {
 
     fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
         if let Some(row) = self.rows.pop_front() {
+            self.clock.row_returned();
             return Poll::Ready(Some(Ok(RowWithStats::Row(row))));
         }
-        match Pin::new(&mut self.data).poll_next(cx) {
+        let since = *self.waiting_since.get_or_insert_with(Instant::now);
+        let poll = Pin::new(&mut self.data).poll_next(cx);
+        if poll.is_ready() {
+            self.waiting_since = None;
+            self.page_wait += since.elapsed();
+        }
+        match poll {
             Poll::Ready(Some(Ok(datum))) => {
+                self.received_bytes +=
+                    (datum.inner.data_header.len() + datum.inner.data_body.len()) as u64;
                 // magic number 1 is used to indicate progress
                 if datum.inner.app_metadata[..] == [0x01] {
                     let ss: ServerStats = serde_json::from_slice(&datum.inner.data_body)?;
+                    self.last_stats = Some(ss.clone());
+                    let ss = self.stats_with_timing(ss);
                     Poll::Ready(Some(Ok(RowWithStats::Stats(ss))))
                 } else {
+                    let start = Instant::now();
                     let dicitionaries_by_id = HashMap::new();
                     let batch = flight_data_to_arrow_batch(
                         &datum.inner,
-                        self.schema.clone(),
+                        self.arrow_schema.clone(),
                         &dicitionaries_by_id,
                     )?;
-                    let rows = Rows::try_from((batch, ResultFormatSettings::default()))?;
+                    let rows = Rows::try_from_batch(&batch, self.schema.clone(), &self.settings)?;
                     self.rows.extend(rows);
+                    self.clock.decoded(start.elapsed());
                     self.poll_next(cx)
                 }
             }
             Poll::Ready(Some(Err(err))) => Poll::Ready(Some(Err(Error::Transport(format!(
                 "fetch flight sql rows failed: {err:?}"
             ))))),
-            Poll::Ready(None) => Poll::Ready(None),
+            // the timing is complete once all rows are returned
+            Poll::Ready(None) => match self.last_stats.take() {
+                Some(ss) => Poll::Ready(Some(Ok(RowWithStats::Stats(self.stats_with_timing(ss))))),
+                None => Poll::Ready(None),
+            },
             Poll::Pending => Poll::Pending,
         }
     }
 }
 
+pub struct FlightSQLBatches {
+    schema: ArrowSchemaRef,
+    data: FlightDataDecoder,
+}
+
+impl FlightSQLBatches {
+    async fn try_from_flight_data(flight_data: FlightDataDecoder) -> Result<Self> {
+        let mut data = flight_data;
+        let schema = read_flight_schema(&mut data).await?;
+        Ok(Self { schema, data })
+    }
+}
+
+impl Stream for FlightSQLBatches {
+    type Item = Result<RecordBatch>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        loop {
+            match Pin::new(&mut self.data).poll_next(cx) {
+                Poll::Ready(Some(Ok(datum))) => {
+                    // magic number 1 is used to indicate progress
+                    if datum.inner.app_metadata[..] == [0x01] {
+                        continue;
+                    }
+                    let dicitionaries_by_id = HashMap::new();
+                    let batch = flight_data_to_arrow_batch(
+                        &datum.inner,
+                        self.schema.clone(),
+                        &dicitionaries_by_id,
+                    )?;
+                    return Poll::Ready(Some(Ok(batch)));
+                }
+                Poll::Ready(Some(Err(err))) => {
+                    return Poll::Ready(Some(Err(Error::Transport(format!(
+                        "fetch flight sql batches failed: {err:?}"
+                    )))))
+                }
+                Poll::Ready(None) => return Poll::Ready(None),
+                Poll::Pending => return Poll::Pending,
+            }
+        }
+    }
+}
+
+/// One permit per open stream: the statement and the first endpoint share
+/// one, each further endpoint takes its own when it is opened.
+async fn acquire_stream(streams: Arc<Semaphore>) -> Result<OwnedSemaphorePermit> {
+    streams
+        .acquire_owned()
+        .await
+        .map_err(|e| Error::Protocol(format!("acquire flight sql stream failed: {e}")))
+}
+
+struct FlightQuery {
+    client: FlightSqlServiceClient<Channel>,
+    tickets: Vec<Ticket>,
+    permit: OwnedSemaphorePermit,
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -434,4 +653,37 @@ mod tests {
             "unexpected error: {err}"
         );
     }
+    #[test]
+    fn parse_max_concurrent_streams() {
+        let url = Url::parse("databend+flight://user:@localhost:8900/").unwrap();
+        assert_eq!(Args::from_url(&url).unwrap().max_concurrent_streams, 100);
+
+        let url =
+            Url::parse("databend+flight://user:@localhost:8900/?max_concurrent_streams=8").unwrap();
+        assert_eq!(Args::from_url(&url).unwrap().max_concurrent_streams, 8);
+
+        let url =
+            Url::parse("databend+flight://user:@localhost:8900/?max_concurrent_streams=0").unwrap();
+        assert!(Args::from_url(&url).is_err());
+    }
+
+    #[test]
+    fn parse_endpoint_args() {
+        let url = Url::parse("databend+flight://user:@localhost:8900/").unwrap();
+        let args = Args::from_url(&url).unwrap();
+        assert_eq!(args.endpoint_parallelism, 4);
+        assert!(args.ordered_endpoints);
+
+        let url = Url::parse(
+            "databend+flight://user:@localhost:8900/?endpoint_parallelism=16&ordered_endpoints=false",
+        )
+        .unwrap();
+        let args = Args::from_url(&url).unwrap();
+        assert_eq!(args.endpoint_parallelism, 16);
+        assert!(!args.ordered_endpoints);
+
+        let url =
+            Url::parse("databend+flight://user:@localhost:8900/?endpoint_parallelism=0").unwrap();
+        assert!(Args::from_url(&url).is_err());
+    }
 }
@@ -16,9 +16,12 @@ mod client;
 pub mod conn;
 #[cfg(feature = "flight-sql")]
 mod flight_sql;
+mod merge;
 mod params;
 mod placeholder;
+mod pool;
 pub mod rest_api;
+mod timing;
 
 pub use client::Client;
 pub use client::Connection;
@@ -29,14 +32,20 @@ pub use client::RowORM;
 pub use conn::ConnectionInfo;
 pub use params::Param;
 pub use params::Params;
+pub use pool::PoolConfig;
+pub use pool::PoolStats;
 
 // pub use for convenience
 pub use databend_client::schema::{
     DataType, DecimalSize, Field, NumberDataType, Schema, SchemaRef,
 };
+pub use databend_client::{heartbeat_stats, HeartbeatStats};
+pub use databend_client::{metrics_snapshot, render_prometheus, MetricsSnapshot};
+pub use databend_driver_core::batches::ArrowBatchIterator;
 pub use databend_driver_core::error::{Error, Result};
+pub use databend_driver_core::lazy_rows::{LazyRow, LazyRowIterator};
 pub use databend_driver_core::rows::{
-    Row, RowIterator, RowStatsIterator, RowWithStats, ServerStats,
+    ClientTiming, Row, RowIterator, RowStatsIterator, RowWithStats, ServerStats,
 };
 pub use databend_driver_core::value::Interval;
 pub use databend_driver_core::value::{
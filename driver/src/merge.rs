@@ -0,0 +1,252 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::future::Future;
+use std::pin::Pin;
+use std::task::{Context, Poll};
+
+use arrow::record_batch::RecordBatch;
+use tokio::sync::OwnedSemaphorePermit;
+use tokio_stream::Stream;
+
+use databend_driver_core::error::Result;
+use databend_driver_core::rows::{RowWithStats, ServerStats};
+
+pub(crate) type OpenFuture<S> = Pin<Box<dyn Future<Output = Result<S>> + Send>>;
+
+enum SourceState<S> {
+    Opening(OpenFuture<S>),
+    Streaming(S),
+    Done,
+}
+
+/// Hook to combine the progress of all sources in the merged stream.
+pub(crate) trait MergeItem: Sized {
+    fn merge_progress(self, _source: usize, _progress: &mut [ServerStats]) -> Self {
+        self
+    }
+}
+
+impl MergeItem for RecordBatch {}
+
+impl MergeItem for RowWithStats {
+    fn merge_progress(self, source: usize, progress: &mut [ServerStats]) -> Self {
+        match self {
+            RowWithStats::Stats(ss) => {
+                progress[source] = ss;
+                let mut total = ServerStats::default();
+                for p in progress.iter() {
+                    total.merge(p);
+                }
+                RowWithStats::Stats(total)
+            }
+            row => row,
+        }
+    }
+}
+
+/// Merges the streams of several sources of one result, e.g. the endpoints of
+/// a flight query or the partitions of a partitioned query, with at most
+/// `parallelism` of them open at the same time. Sources are only polled when
+/// the merged stream is, so nothing is buffered beyond their own pages.
+///
+/// When ordered, items of a source are only yielded after all previous
+/// sources are drained, while the following ones are already being opened.
+/// Otherwise the open sources are polled round-robin.
+pub(crate) struct MergedStreams<S> {
+    sources: Vec<SourceState<S>>,
+    // sources before `started` have been scheduled
+    started: usize,
+    active: usize,
+    parallelism: usize,
+    ordered: bool,
+    // first source not drained yet
+    cursor: usize,
+    // round-robin offset when unordered
+    next: usize,
+    progress: Vec<ServerStats>,
+}
+
+impl<S> MergedStreams<S> {
+    pub(crate) fn new(
+        first: S,
+        others: Vec<OpenFuture<S>>,
+        parallelism: usize,
+        ordered: bool,
+    ) -> Self {
+        let mut sources = Vec::with_capacity(others.len() + 1);
+        sources.push(SourceState::Streaming(first));
+        sources.extend(others.into_iter().map(SourceState::Opening));
+        let progress = vec![ServerStats::default(); sources.len()];
+        Self {
+            sources,
+            started: 1,
+            active: 1,
+            parallelism: parallelism.max(1),
+            ordered,
+            cursor: 0,
+            next: 0,
+            progress,
+        }
+    }
+}
+
+/// A source holding a permit until it is drained or dropped, e.g. one of the
+/// streams a flight connection may open at the same time.
+pub(crate) struct Permitted<S> {
+    stream: S,
+    _permit: OwnedSemaphorePermit,
+}
+
+impl<S> Permitted<S> {
+    pub(crate) fn new(stream: S, permit: OwnedSemaphorePermit) -> Self {
+        Self {
+            stream,
+            _permit: permit,
+        }
+    }
+}
+
+impl<S: Stream + Unpin> Stream for Permitted<S> {
+    type Item = S::Item;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        Pin::new(&mut self.stream).poll_next(cx)
+    }
+}
+
+impl<T, S> Stream for MergedStreams<S>
+where
+    T: MergeItem,
+    S: Stream<Item = Result<T>> + Unpin,
+{
+    type Item = Result<T>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        let this = &mut *self;
+        loop {
+            while this.active < this.parallelism && this.started < this.sources.len() {
+                this.started += 1;
+                this.active += 1;
+            }
+            while this.cursor < this.started
+                && matches!(this.sources[this.cursor], SourceState::Done)
+            {
+                this.cursor += 1;
+            }
+            if this.cursor == this.sources.len() {
+                return Poll::Ready(None);
+            }
+
+            let mut finished = false;
+            let n = this.started - this.cursor;
+            for i in 0..n {
+                let idx = if this.ordered {
+                    this.cursor + i
+                } else {
+                    this.cursor + (this.next + i) % n
+                };
+                if let SourceState::Opening(fut) = &mut this.sources[idx] {
+                    match fut.as_mut().poll(cx) {
+                        Poll::Ready(Ok(stream)) => {
+                            this.sources[idx] = SourceState::Streaming(stream);
+                        }
+                        Poll::Ready(Err(e)) => {
+                            this.sources[idx] = SourceState::Done;
+                            this.active -= 1;
+                            return Poll::Ready(Some(Err(e)));
+                        }
+                        Poll::Pending => continue,
+                    }
+                }
+                if this.ordered && idx != this.cursor {
+                    continue;
+                }
+                if let SourceState::Streaming(stream) = &mut this.sources[idx] {
+                    match Pin::new(stream).poll_next(cx) {
+                        Poll::Ready(Some(Ok(item))) => {
+                            this.next = this.next.wrapping_add(i + 1);
+                            let item = item.merge_progress(idx, &mut this.progress);
+                            return Poll::Ready(Some(Ok(item)));
+                        }
+                        Poll::Ready(Some(Err(e))) => return Poll::Ready(Some(Err(e))),
+                        Poll::Ready(None) => {
+                            this.sources[idx] = SourceState::Done;
+                            this.active -= 1;
+                            finished = true;
+                        }
+                        Poll::Pending => {}
+                    }
+                }
+            }
+            // a source was drained, schedule the next one and poll again
+            if !finished {
+                return Poll::Pending;
+            }
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use std::sync::Arc;
+    use std::task::Waker;
+
+    use arrow::datatypes::Schema;
+    use tokio::sync::Semaphore;
+
+    use super::*;
+
+    type Source = Permitted<tokio_stream::Iter<std::vec::IntoIter<Result<RecordBatch>>>>;
+
+    #[test]
+    fn release_permit_of_drained_source() {
+        let streams = Arc::new(Semaphore::new(2));
+        let source = || {
+            let permit = streams.clone().try_acquire_owned().unwrap();
+            let batch = RecordBatch::new_empty(Arc::new(Schema::empty()));
+            Permitted::new(tokio_stream::iter(vec![Ok(batch)]), permit)
+        };
+        let second = source();
+        let others = vec![Box::pin(async move { Ok(second) }) as OpenFuture<Source>];
+        let mut merged = MergedStreams::new(source(), others, 1, true);
+        assert_eq!(streams.available_permits(), 0);
+
+        let mut cx = Context::from_waker(Waker::noop());
+        let mut next = || Pin::new(&mut merged).poll_next(&mut cx);
+        assert!(matches!(next(), Poll::Ready(Some(Ok(_)))));
+        assert!(matches!(next(), Poll::Ready(Some(Ok(_)))));
+        // the first source is drained
+        assert_eq!(streams.available_permits(), 1);
+        assert!(matches!(next(), Poll::Ready(None)));
+        assert_eq!(streams.available_permits(), 2);
+    }
+
+    #[test]
+    fn merge_source_progress() {
+        let mut progress = vec![ServerStats::default(); 2];
+        let stats = |read_rows| {
+            RowWithStats::Stats(ServerStats {
+                read_rows,
+                ..Default::default()
+            })
+        };
+        stats(3).merge_progress(0, &mut progress);
+        stats(5).merge_progress(1, &mut progress);
+        match stats(4).merge_progress(0, &mut progress) {
+            RowWithStats::Stats(ss) => assert_eq!(ss.read_rows, 9),
+            _ => panic!("expected stats"),
+        }
+    }
+}
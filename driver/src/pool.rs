@@ -0,0 +1,540 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::VecDeque;
+use std::future::Future;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, Instant};
+
+use log::{error, warn};
+use tokio::sync::{OwnedSemaphorePermit, Semaphore};
+
+use crate::client::{Client, Connection};
+use crate::conn::IConnection;
+use databend_client::GLOBAL_RUNTIME;
+use databend_driver_core::error::{Error, Result};
+
+/// Options of the session pool of a `Client`, see `Client::with_pool`.
+#[derive(Clone, Debug)]
+pub struct PoolConfig {
+    max_size: usize,
+    min_idle: usize,
+    max_idle: usize,
+    idle_timeout: Duration,
+    health_check_interval: Duration,
+}
+
+impl Default for PoolConfig {
+    fn default() -> Self {
+        Self {
+            max_size: 16,
+            min_idle: 0,
+            max_idle: 8,
+            idle_timeout: Duration::from_secs(600),
+            health_check_interval: Duration::from_secs(30),
+        }
+    }
+}
+
+impl PoolConfig {
+    /// Max sessions in use at the same time, `get_conn` waits beyond that,
+    /// default to 16.
+    pub fn with_max_size(mut self, max_size: usize) -> Self {
+        self.max_size = max_size.max(1);
+        self
+    }
+
+    /// Idle sessions kept even after `idle_timeout`, opened by `Client::warm_up`,
+    /// default to 0.
+    pub fn with_min_idle(mut self, min_idle: usize) -> Self {
+        self.min_idle = min_idle;
+        self
+    }
+
+    /// Idle sessions kept for reuse, more returned sessions are closed,
+    /// default to 8.
+    pub fn with_max_idle(mut self, max_idle: usize) -> Self {
+        self.max_idle = max_idle;
+        self
+    }
+
+    /// Close sessions idle for longer than this, default to 10 minutes.
+    pub fn with_idle_timeout(mut self, idle_timeout: Duration) -> Self {
+        self.idle_timeout = idle_timeout;
+        self
+    }
+
+    /// Send a heartbeat before reusing a session idle for longer than this,
+    /// default to 30 seconds.
+    pub fn with_health_check_interval(mut self, interval: Duration) -> Self {
+        self.health_check_interval = interval;
+        self
+    }
+}
+
+#[derive(Clone, Debug, Default)]
+pub struct PoolStats {
+    /// Sessions taken from the pool.
+    pub hits: u64,
+    /// Sessions created because the pool had none idle.
+    pub creates: u64,
+    /// Idle sessions closed for timeout, failed health check or reset.
+    pub evictions: u64,
+    /// Total time spent waiting for a free slot when `max_size` is reached.
+    pub wait_time: Duration,
+    pub idle: usize,
+    pub in_use: usize,
+}
+
+struct IdleSession {
+    conn: Arc<dyn IConnection>,
+    since: Instant,
+}
+
+pub(crate) struct SessionPool {
+    config: PoolConfig,
+    idle: Mutex<VecDeque<IdleSession>>,
+    slots: Arc<Semaphore>,
+    hits: AtomicU64,
+    creates: AtomicU64,
+    evictions: AtomicU64,
+    wait_nanos: AtomicU64,
+}
+
+/// Pool membership of a `Connection`, the session is returned to the pool
+/// when the connection is dropped.
+pub(crate) struct PooledSlot {
+    pool: Arc<SessionPool>,
+    _permit: OwnedSemaphorePermit,
+}
+
+impl PooledSlot {
+    /// Roll back and reset the session in the background, so that no
+    /// transaction stays open while it is idle, then return it to the pool,
+    /// or close it if the reset fails.
+    pub(crate) fn release(self, conn: Arc<dyn IConnection>) {
+        GLOBAL_RUNTIME.spawn(async move {
+            match conn.reset_session().await {
+                // return the session before the permit, so the next waiter
+                // finds it
+                Ok(()) => self.pool.release(conn),
+                Err(e) => {
+                    warn!("evict pooled session failing to reset: {e}");
+                    self.pool.evict(conn);
+                }
+            }
+        });
+    }
+}
+
+impl SessionPool {
+    pub(crate) fn new(config: PoolConfig) -> Self {
+        let slots = Arc::new(Semaphore::new(config.max_size));
+        Self {
+            config,
+            idle: Mutex::new(VecDeque::new()),
+            slots,
+            hits: AtomicU64::new(0),
+            creates: AtomicU64::new(0),
+            evictions: AtomicU64::new(0),
+            wait_nanos: AtomicU64::new(0),
+        }
+    }
+
+    pub(crate) async fn get(self: &Arc<Self>, client: &Client) -> Result<Connection> {
+        let (conn, slot) = self.checkout(client.create_conn()).await?;
+        Ok(Connection::pooled(conn, slot))
+    }
+
+    /// Take an idle session, or open one with `create` if there is none.
+    async fn checkout(
+        self: &Arc<Self>,
+        create: impl Future<Output = Result<Arc<dyn IConnection>>>,
+    ) -> Result<(Arc<dyn IConnection>, PooledSlot)> {
+        let start = Instant::now();
+        let permit = self
+            .slots
+            .clone()
+            .acquire_owned()
+            .await
+            .map_err(|_| Error::IO("session pool closed".to_string()))?;
+        self.wait_nanos
+            .fetch_add(start.elapsed().as_nanos() as u64, Ordering::Relaxed);
+        let slot = PooledSlot {
+            pool: self.clone(),
+            _permit: permit,
+        };
+
+        while let Some(session) = self.pop_idle() {
+            if session.since.elapsed() >= self.config.health_check_interval {
+                if let Err(e) = session.conn.check_health().await {
+                    warn!("evict pooled session failing health check: {e}");
+                    self.evict(session.conn);
+                    continue;
+                }
+            }
+            self.hits.fetch_add(1, Ordering::Relaxed);
+            return Ok((session.conn, slot));
+        }
+
+        let conn = create.await?;
+        self.creates.fetch_add(1, Ordering::Relaxed);
+        Ok((conn, slot))
+    }
+
+    /// Open sessions until `min_idle` are idle.
+    pub(crate) async fn warm_up(&self, client: &Client) -> Result<()> {
+        loop {
+            let idle = self.idle.lock().unwrap().len();
+            if idle >= self.config.min_idle {
+                return Ok(());
+            }
+            let conn = client.create_conn().await?;
+            self.creates.fetch_add(1, Ordering::Relaxed);
+            self.idle.lock().unwrap().push_back(IdleSession {
+                conn,
+                since: Instant::now(),
+            });
+        }
+    }
+
+    pub(crate) fn stats(&self) -> PoolStats {
+        let idle = self.idle.lock().unwrap().len();
+        PoolStats {
+            hits: self.hits.load(Ordering::Relaxed),
+            creates: self.creates.load(Ordering::Relaxed),
+            evictions: self.evictions.load(Ordering::Relaxed),
+            wait_time: Duration::from_nanos(self.wait_nanos.load(Ordering::Relaxed)),
+            idle,
+            in_use: self.config.max_size - self.slots.available_permits(),
+        }
+    }
+
+    fn pop_idle(&self) -> Option<IdleSession> {
+        let (session, expired) = {
+            let mut idle = self.idle.lock().unwrap();
+            let expired = self.take_expired(&mut idle);
+            // most recently used first, so the others can time out
+            (idle.pop_back(), expired)
+        };
+        for conn in expired {
+            self.evict(conn);
+        }
+        session
+    }
+
+    fn release(&self, conn: Arc<dyn IConnection>) {
+        let (rejected, expired) = {
+            let mut idle = self.idle.lock().unwrap();
+            let expired = self.take_expired(&mut idle);
+            if idle.len() < self.config.max_idle {
+                idle.push_back(IdleSession {
+                    conn,
+                    since: Instant::now(),
+                });
+                (None, expired)
+            } else {
+                (Some(conn), expired)
+            }
+        };
+        if let Some(conn) = rejected {
+            close(conn);
+        }
+        for conn in expired {
+            self.evict(conn);
+        }
+    }
+
+    fn take_expired(&self, idle: &mut VecDeque<IdleSession>) -> Vec<Arc<dyn IConnection>> {
+        let mut expired = Vec::new();
+        while idle.len() > self.config.min_idle {
+            match idle.front() {
+                Some(s) if s.since.elapsed() >= self.config.idle_timeout => {
+                    expired.push(idle.pop_front().unwrap().conn);
+                }
+                _ => break,
+            }
+        }
+        expired
+    }
+
+    fn evict(&self, conn: Arc<dyn IConnection>) {
+        self.evictions.fetch_add(1, Ordering::Relaxed);
+        close(conn);
+    }
+}
+
+fn close(conn: Arc<dyn IConnection>) {
+    if let Err(e) = conn.close_with_spawn() {
+        error!("fail to close pooled session: {e}");
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use std::collections::BTreeMap;
+    use std::path::Path;
+    use std::sync::atomic::{AtomicBool, AtomicUsize};
+
+    use async_trait::async_trait;
+    use databend_driver_core::rows::{RowIterator, RowStatsIterator, ServerStats};
+
+    use super::*;
+    use crate::client::LoadMethod;
+    use crate::conn::{ConnectionInfo, Reader};
+
+    #[derive(Default)]
+    struct FakeConn {
+        id: String,
+        healthy: bool,
+        reset_fails: bool,
+        resets: AtomicUsize,
+        closed: AtomicBool,
+    }
+
+    impl FakeConn {
+        fn new(id: &str) -> Arc<Self> {
+            Arc::new(Self {
+                id: id.to_string(),
+                healthy: true,
+                ..Default::default()
+            })
+        }
+    }
+
+    fn unsupported<T>() -> Result<T> {
+        Err(Error::BadArgument("unsupported by FakeConn".to_string()))
+    }
+
+    #[async_trait]
+    impl IConnection for FakeConn {
+        async fn info(&self) -> ConnectionInfo {
+            ConnectionInfo {
+                handler: "fake".to_string(),
+                host: String::new(),
+                port: 0,
+                user: String::new(),
+                catalog: None,
+                database: None,
+                warehouse: None,
+            }
+        }
+
+        fn close_with_spawn(&self) -> Result<()> {
+            self.closed.store(true, Ordering::Relaxed);
+            Ok(())
+        }
+
+        async fn reset_session(&self) -> Result<()> {
+            self.resets.fetch_add(1, Ordering::Relaxed);
+            if self.reset_fails {
+                return Err(Error::IO("rollback failed".to_string()));
+            }
+            Ok(())
+        }
+
+        async fn check_health(&self) -> Result<()> {
+            if self.healthy {
+                Ok(())
+            } else {
+                Err(Error::IO("session expired".to_string()))
+            }
+        }
+
+        fn last_query_id(&self) -> Option<String> {
+            Some(self.id.clone())
+        }
+
+        async fn exec(&self, _sql: &str) -> Result<i64> {
+            unsupported()
+        }
+
+        async fn kill_query(&self, _query_id: &str) -> Result<()> {
+            unsupported()
+        }
+
+        async fn query_iter(&self, _sql: &str) -> Result<RowIterator> {
+            unsupported()
+        }
+
+        async fn query_iter_ext(&self, _sql: &str) -> Result<RowStatsIterator> {
+            unsupported()
+        }
+
+        async fn upload_to_stage(&self, _stage: &str, _data: Reader, _size: u64) -> Result<()> {
+            unsupported()
+        }
+
+        async fn load_data(
+            &self,
+            _sql: &str,
+            _data: Reader,
+            _size: u64,
+            _method: LoadMethod,
+        ) -> Result<ServerStats> {
+            unsupported()
+        }
+
+        async fn load_file(
+            &self,
+            _sql: &str,
+            _fp: &Path,
+            _method: LoadMethod,
+        ) -> Result<ServerStats> {
+            unsupported()
+        }
+
+        async fn load_file_with_options(
+            &self,
+            _sql: &str,
+            _fp: &Path,
+            _file_format_options: Option<BTreeMap<&str, &str>>,
+            _copy_options: Option<BTreeMap<&str, &str>>,
+        ) -> Result<ServerStats> {
+            unsupported()
+        }
+
+        async fn stream_load(
+            &self,
+            _sql: &str,
+            _data: Vec<Vec<&str>>,
+            _method: LoadMethod,
+        ) -> Result<ServerStats> {
+            unsupported()
+        }
+
+        fn set_warehouse(&self, _warehouse: &str) -> Result<()> {
+            unsupported()
+        }
+
+        fn set_database(&self, _database: &str) -> Result<()> {
+            unsupported()
+        }
+
+        fn set_role(&self, _role: &str) -> Result<()> {
+            unsupported()
+        }
+
+        fn set_session(&self, _key: &str, _value: &str) -> Result<()> {
+            unsupported()
+        }
+    }
+
+    async fn create(conn: &Arc<FakeConn>) -> Result<Arc<dyn IConnection>> {
+        Ok(conn.clone())
+    }
+
+    async fn checkout_id(pool: &Arc<SessionPool>, new: &Arc<FakeConn>) -> String {
+        let (conn, slot) = pool.checkout(create(new)).await.unwrap();
+        let id = conn.last_query_id().unwrap();
+        slot.release(conn);
+        wait_released(pool).await;
+        id
+    }
+
+    /// Wait for the sessions being reset in the background.
+    async fn wait_released(pool: &SessionPool) {
+        let n = pool.config.max_size as u32;
+        let _all = pool.slots.acquire_many(n).await.unwrap();
+    }
+
+    #[test]
+    fn pool_config_builder() {
+        let config = PoolConfig::default()
+            .with_max_size(0)
+            .with_min_idle(2)
+            .with_max_idle(4);
+        assert_eq!(config.max_size, 1);
+        assert_eq!(config.min_idle, 2);
+        assert_eq!(config.max_idle, 4);
+
+        let pool = SessionPool::new(config);
+        let stats = pool.stats();
+        assert_eq!(stats.idle, 0);
+        assert_eq!(stats.in_use, 0);
+    }
+
+    #[test]
+    fn reset_and_reuse_released_session() {
+        GLOBAL_RUNTIME.block_on(async {
+            let pool = Arc::new(SessionPool::new(PoolConfig::default()));
+            let first = FakeConn::new("first");
+            assert_eq!(checkout_id(&pool, &first).await, "first");
+            // reset when released, not when taken again
+            assert_eq!(first.resets.load(Ordering::Relaxed), 1);
+            assert_eq!(pool.stats().idle, 1);
+
+            let second = FakeConn::new("second");
+            assert_eq!(checkout_id(&pool, &second).await, "first");
+            assert_eq!(first.resets.load(Ordering::Relaxed), 2);
+            let stats = pool.stats();
+            assert_eq!((stats.hits, stats.creates, stats.evictions), (1, 1, 0));
+            assert_eq!(stats.in_use, 0);
+        });
+    }
+
+    #[test]
+    fn evict_session_failing_to_reset() {
+        GLOBAL_RUNTIME.block_on(async {
+            let pool = Arc::new(SessionPool::new(PoolConfig::default()));
+            let conn = Arc::new(FakeConn {
+                id: "broken".to_string(),
+                healthy: true,
+                reset_fails: true,
+                ..Default::default()
+            });
+            checkout_id(&pool, &conn).await;
+            assert!(conn.closed.load(Ordering::Relaxed));
+            let stats = pool.stats();
+            assert_eq!((stats.idle, stats.evictions), (0, 1));
+        });
+    }
+
+    #[test]
+    fn evict_idle_sessions() {
+        GLOBAL_RUNTIME.block_on(async {
+            let config = PoolConfig::default().with_idle_timeout(Duration::ZERO);
+            let pool = Arc::new(SessionPool::new(config));
+            let first = FakeConn::new("first");
+            checkout_id(&pool, &first).await;
+            let second = FakeConn::new("second");
+            assert_eq!(checkout_id(&pool, &second).await, "second");
+            assert!(first.closed.load(Ordering::Relaxed));
+            let stats = pool.stats();
+            assert_eq!((stats.hits, stats.creates, stats.evictions), (0, 2, 1));
+        });
+    }
+
+    #[test]
+    fn evict_session_failing_health_check() {
+        GLOBAL_RUNTIME.block_on(async {
+            let config = PoolConfig::default().with_health_check_interval(Duration::ZERO);
+            let pool = Arc::new(SessionPool::new(config));
+            let expired = Arc::new(FakeConn {
+                id: "expired".to_string(),
+                healthy: false,
+                ..Default::default()
+            });
+            checkout_id(&pool, &expired).await;
+            let fresh = FakeConn::new("fresh");
+            assert_eq!(checkout_id(&pool, &fresh).await, "fresh");
+            assert!(expired.closed.load(Ordering::Relaxed));
+            assert_eq!(pool.stats().evictions, 1);
+
+            // healthy sessions are reused after the check
+            assert_eq!(checkout_id(&pool, &FakeConn::new("other")).await, "fresh");
+        });
+    }
+}
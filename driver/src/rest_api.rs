@@ -20,17 +20,24 @@ use std::path::Path;
 use std::pin::Pin;
 use std::sync::Arc;
 use std::task::{Context, Poll};
-use std::time::Instant;
+use std::time::{Duration, Instant};
 use tokio::fs::File;
 use tokio::io::BufReader;
-use tokio_stream::Stream;
+use tokio_stream::{Stream, StreamExt};
 
 use crate::client::LoadMethod;
 use crate::conn::{ConnectionInfo, IConnection, Reader};
-use databend_client::schema::{Schema, SchemaRef};
-use databend_client::Pages;
-use databend_client::{APIClient, ResultFormatSettings};
+use crate::timing::QueryClock;
+use arrow::datatypes::SchemaRef as ArrowSchemaRef;
+use arrow::record_batch::RecordBatch;
+use databend_client::schema::SchemaRef;
+use databend_client::{APIClient, JsonRows, ResultFormatSettings};
+use databend_client::{Page, Pages};
+use databend_driver_core::batches::{
+    arrow_schema_from, record_batch_from_strings, ArrowBatchIterator,
+};
 use databend_driver_core::error::{Error, Result};
+use databend_driver_core::lazy_rows::{LazyRow, LazyRowIterator, LazyRowWithStats};
 use databend_driver_core::raw_rows::{RawRow, RawRowIterator, RawRowWithStats};
 use databend_driver_core::rows::{
     Row, RowIterator, RowStatsIterator, RowWithStats, Rows, ServerStats,
@@ -95,6 +102,8 @@ impl RestAPIConnection {
             running_time_ms: start.elapsed().as_millis() as f64,
             spill_file_nums: 0,
             spill_bytes: 0,
+            max_rows_per_page: None,
+            client: Default::default(),
         })
     }
     async fn load_data_with_options(
@@ -167,6 +176,27 @@ impl IConnection for RestAPIConnection {
         Ok(())
     }
 
+    async fn reset_session(&self) -> Result<()> {
+        if self.client.in_active_transaction() {
+            self.exec("ROLLBACK").await?;
+        }
+        self.client.reset_session_state();
+        Ok(())
+    }
+
+    async fn check_health(&self) -> Result<()> {
+        self.client.check_health().await?;
+        Ok(())
+    }
+
+    fn supports_streaming_load(&self) -> bool {
+        self.client.capability().streaming_load
+    }
+
+    fn session_pinned(&self) -> bool {
+        self.client.in_active_transaction() || self.client.need_sticky()
+    }
+
     fn supports_server_side_params(&self) -> bool {
         self.client.capability().server_side_params
     }
@@ -198,7 +228,7 @@ impl IConnection for RestAPIConnection {
         info!("query iter ext: {}", sql);
         let pages = self.client.start_query(sql, true, None).await?;
         let (schema, rows) = RestAPIRows::<RowWithStats>::from_pages(pages).await?;
-        Ok(RowStatsIterator::new(Arc::new(schema), Box::pin(rows)))
+        Ok(RowStatsIterator::new(schema, Box::pin(rows)))
     }
 
     async fn query_iter_with_params(
@@ -220,7 +250,63 @@ impl IConnection for RestAPIConnection {
         info!("query iter ext with params: {}", sql);
         let pages = self.client.start_query(sql, true, params).await?;
         let (schema, rows) = RestAPIRows::<RowWithStats>::from_pages(pages).await?;
-        Ok(RowStatsIterator::new(Arc::new(schema), Box::pin(rows)))
+        Ok(RowStatsIterator::new(schema, Box::pin(rows)))
+    }
+
+    async fn query_iter_lazy(&self, sql: &str) -> Result<LazyRowIterator> {
+        info!("query iter lazy: {}", sql);
+        let pages = self.client.start_query(sql, true, None).await?;
+        let (schema, rows) = RestAPIRows::<LazyRowWithStats>::from_pages(pages).await?;
+        let rows = rows.filter_map(|row| match row {
+            Ok(LazyRowWithStats::Row(row)) => Some(Ok(row)),
+            Ok(_) => None,
+            Err(err) => Some(Err(err)),
+        });
+        Ok(LazyRowIterator::new(schema, Box::pin(rows)))
+    }
+
+    async fn query_arrow_iter(&self, sql: &str) -> Result<ArrowBatchIterator> {
+        info!("query arrow iter: {}", sql);
+        let pages = self.client.start_query(sql, false, None).await?;
+        RestAPIBatches::from_pages(pages).await
+    }
+
+    async fn query_spooled(&self, sql: &str) -> Result<RowIterator> {
+        info!("query spooled: {}", sql);
+        let pages = self.client.start_query(sql, false, None).await?;
+        let (mut pages, mut schema, settings) =
+            pages.with_borrowed_rows().wait_for_schema(false).await?;
+        let mut spool = BatchSpool::new(
+            self.client.spool_memory_bytes(),
+            self.client.spool_dir().map(Path::new),
+        );
+        // JSON pages are spooled as the strings sent by the server, and
+        // decoded like the rows of `query_iter` when read back
+        while let Some(page) = pages.next().await {
+            let page = page?;
+            if !page.batches.is_empty() {
+                for batch in page.batches {
+                    spool.push(batch).await?;
+                }
+            } else if !page.json_rows.is_empty() {
+                if schema.fields().is_empty() {
+                    schema = pages.page_schema(&page)?;
+                }
+                spool.push_json(&page.json_rows, &schema).await?;
+            }
+        }
+        let rows = spool.finish().await?.into_rows(schema.clone(), settings);
+        Ok(RowIterator::new(schema, Box::pin(rows)))
+    }
+
+    async fn query_arrow_iter_with_params(
+        &self,
+        sql: &str,
+        params: Option<serde_json::Value>,
+    ) -> Result<ArrowBatchIterator> {
+        info!("query arrow iter with params: {}", sql);
+        let pages = self.client.start_query(sql, false, params).await?;
+        RestAPIBatches::from_pages(pages).await
     }
 
     // raw data response query, only for test
@@ -228,7 +314,7 @@ impl IConnection for RestAPIConnection {
         info!("query raw iter: {}", sql);
         let pages = self.client.start_query(sql, true, None).await?;
         let (schema, rows) = RestAPIRows::<RawRowWithStats>::from_pages(pages).await?;
-        Ok(RawRowIterator::new(Arc::new(schema), Box::pin(rows)))
+        Ok(RawRowIterator::new(schema, Box::pin(rows)))
     }
 
     async fn upload_to_stage(&self, stage: &str, data: Reader, size: u64) -> Result<()> {
@@ -347,30 +433,81 @@ pub struct RestAPIRows<T> {
     pages: Pages,
 
     schema: SchemaRef,
-    settings: ResultFormatSettings,
+    settings: Arc<ResultFormatSettings>,
 
-    data: VecDeque<Vec<Option<String>>>,
-    rows: VecDeque<Row>,
+    data: JsonRowQueue,
+    rows: VecDeque<T>,
 
     stats: Option<ServerStats>,
+    // server stats of the last page, reported again with the final timing
+    last_stats: Option<ServerStats>,
+    clock: QueryClock,
+    // JSON rows decoded since the last page was done, and their decode time,
+    // recorded to the process metrics once per page
+    decoded_rows: usize,
+    decode_time: Duration,
 
     _phantom: std::marker::PhantomData<T>,
 }
 
 impl<T> RestAPIRows<T> {
-    async fn from_pages(pages: Pages) -> Result<(Schema, Self)> {
-        let (pages, schema, settings) = pages.wait_for_schema(true).await?;
+    async fn from_pages(pages: Pages) -> Result<(SchemaRef, Self)> {
+        let (pages, schema, settings) = pages.with_borrowed_rows().wait_for_schema(true).await?;
+        let mut clock = QueryClock::new(pages.started(), pages.timing().query_start);
+        clock.schema_known();
         let rows = Self {
             pages,
-            schema: Arc::new(schema.clone()),
-            settings,
+            schema: schema.clone(),
+            settings: Arc::new(settings),
             data: Default::default(),
             rows: Default::default(),
             stats: None,
+            last_stats: None,
+            clock,
+            decoded_rows: 0,
+            decode_time: Duration::ZERO,
             _phantom: PhantomData,
         };
         Ok((schema, rows))
     }
+
+    fn stats_with_timing(&self, mut ss: ServerStats) -> ServerStats {
+        let timing = self.pages.timing();
+        ss.client = self.clock.timing(timing.page_wait, timing.received_bytes);
+        ss
+    }
+
+    fn record_decode(&mut self) {
+        if self.decoded_rows > 0 {
+            databend_client::record_decode(self.decoded_rows, self.decode_time);
+            self.decoded_rows = 0;
+            self.decode_time = Duration::ZERO;
+        }
+    }
+}
+
+impl<T> Drop for RestAPIRows<T> {
+    fn drop(&mut self) {
+        self.record_decode();
+    }
+}
+
+impl<T: FromRowStats> RestAPIRows<T> {
+    fn decode_next_row(&mut self) -> Option<Result<T>> {
+        let start = Instant::now();
+        let row = self.data.pop_front(|rows, index| {
+            T::try_from_json_row(rows, index, self.schema.clone(), &self.settings)
+        })?;
+        let elapsed = start.elapsed();
+        self.clock.decoded(elapsed);
+        self.clock.row_returned();
+        self.decoded_rows += 1;
+        self.decode_time += elapsed;
+        if self.data.at_page_start() {
+            self.record_decode();
+        }
+        Some(row)
+    }
 }
 
 impl<T: FromRowStats + std::marker::Unpin> Stream for RestAPIRows<T> {
@@ -383,45 +520,54 @@ impl<T: FromRowStats + std::marker::Unpin> Stream for RestAPIRows<T> {
         // Skip to fetch next page if there is only one row left in buffer.
         // Therefore, we could guarantee the `/final` called before the last row.
         if self.data.len() > 1 {
-            if let Some(row) = self.data.pop_front() {
-                let row = T::try_from_raw_row(row, self.schema.clone(), &self.settings)?;
-                return Poll::Ready(Some(Ok(row)));
+            if let Some(row) = self.decode_next_row() {
+                return Poll::Ready(Some(row));
             }
         } else if self.rows.len() > 1 {
             if let Some(row) = self.rows.pop_front() {
-                let row = T::from_row(row);
+                self.clock.row_returned();
                 return Poll::Ready(Some(Ok(row)));
             }
         }
 
         match Pin::new(&mut self.pages).poll_next(cx) {
             Poll::Ready(Some(Ok(page))) => {
-                if self.schema.fields().is_empty() {
-                    if !page.raw_schema.is_empty() {
-                        self.schema = Arc::new(page.raw_schema.try_into()?);
-                    } else if !page.batches.is_empty() {
-                        self.schema = Arc::new(page.batches[0].schema().clone().try_into()?);
-                    }
+                if self.schema.fields().is_empty()
+                    && (!page.raw_schema.is_empty() || !page.batches.is_empty())
+                {
+                    self.schema = self.pages.page_schema(&page)?;
                 }
                 if page.batches.is_empty() {
-                    let mut new_data = page.data.into();
-                    self.data.append(&mut new_data);
+                    self.data.push(page.json_rows);
                 } else {
+                    let start = Instant::now();
                     for batch in page.batches.into_iter() {
-                        let rows = Rows::try_from((batch, self.settings.clone()))?;
+                        let rows = T::try_from_batch(batch, self.schema.clone(), &self.settings)?;
                         self.rows.extend(rows);
                     }
+                    self.clock.decoded(start.elapsed());
+                }
+                let mut ss = ServerStats::from(page.stats);
+                // only the first page knows the page size asked for
+                if ss.max_rows_per_page.is_none() {
+                    ss.max_rows_per_page =
+                        self.last_stats.as_ref().and_then(|s| s.max_rows_per_page);
                 }
-                Poll::Ready(Some(Ok(T::from_stats(page.stats.into()))))
+                self.last_stats = Some(ss.clone());
+                let ss = self.stats_with_timing(ss);
+                Poll::Ready(Some(Ok(T::from_stats(ss))))
             }
             Poll::Ready(Some(Err(e))) => Poll::Ready(Some(Err(e.into()))),
             Poll::Ready(None) => {
                 if let Some(row) = self.rows.pop_front() {
-                    let row = T::from_row(row);
-                    Poll::Ready(Some(Ok(row)))
-                } else if let Some(row) = self.data.pop_front() {
-                    let row = T::try_from_raw_row(row, self.schema.clone(), &self.settings)?;
+                    self.clock.row_returned();
                     Poll::Ready(Some(Ok(row)))
+                } else if let Some(row) = self.decode_next_row() {
+                    Poll::Ready(Some(row))
+                } else if let Some(ss) = self.last_stats.take() {
+                    // the timing is complete once all rows are returned
+                    let ss = self.stats_with_timing(ss);
+                    Poll::Ready(Some(Ok(T::from_stats(ss))))
                 } else {
                     Poll::Ready(None)
                 }
@@ -431,14 +577,152 @@ impl<T: FromRowStats + std::marker::Unpin> Stream for RestAPIRows<T> {
     }
 }
 
+/// Rows of the JSON pages not returned yet, decoded from the response bodies
+/// one at a time.
+#[derive(Default)]
+struct JsonRowQueue {
+    pages: VecDeque<Arc<JsonRows>>,
+    // next row in the front page
+    next: usize,
+    len: usize,
+}
+
+impl JsonRowQueue {
+    fn push(&mut self, rows: JsonRows) {
+        if !rows.is_empty() {
+            self.len += rows.len();
+            self.pages.push_back(Arc::new(rows));
+        }
+    }
+
+    fn len(&self) -> usize {
+        self.len
+    }
+
+    /// Whether no row of the front page has been returned yet.
+    fn at_page_start(&self) -> bool {
+        self.next == 0
+    }
+
+    /// Call `f` with the front page and the index of the next row in it.
+    fn pop_front<R>(&mut self, f: impl FnOnce(&Arc<JsonRows>, usize) -> R) -> Option<R> {
+        let rows = self.pages.front()?;
+        let result = f(rows, self.next);
+        let page_done = self.next + 1 == rows.len();
+        self.len -= 1;
+        if page_done {
+            self.pages.pop_front();
+            self.next = 0;
+        } else {
+            self.next += 1;
+        }
+        Some(result)
+    }
+}
+
+/// Yields arrow pages as they are, and builds batches from JSON pages when the
+/// server falls back to JSON.
+struct RestAPIBatches {
+    pages: Pages,
+
+    schema: SchemaRef,
+    arrow_schema: ArrowSchemaRef,
+    settings: ResultFormatSettings,
+
+    batches: VecDeque<RecordBatch>,
+}
+
+impl RestAPIBatches {
+    async fn from_pages(pages: Pages) -> Result<ArrowBatchIterator> {
+        let (mut pages, schema, settings) = pages.wait_for_schema(false).await?;
+        // the first page is put back by `wait_for_schema`, take it to get the
+        // arrow schema sent by the server with the extension metadata
+        let first_page = pages.next().await.transpose()?;
+        let arrow_schema = match &first_page {
+            Some(page) if !page.batches.is_empty() => page.batches[0].schema(),
+            _ => Arc::new(arrow_schema_from(&schema)),
+        };
+        let mut batches = Self {
+            pages,
+            schema,
+            arrow_schema: arrow_schema.clone(),
+            settings,
+            batches: Default::default(),
+        };
+        if let Some(page) = first_page {
+            batches.push_page(page)?;
+        }
+        Ok(ArrowBatchIterator::new(arrow_schema, Box::pin(batches)))
+    }
+
+    fn push_page(&mut self, page: Page) -> Result<()> {
+        // the iterator is created with the schema of the first page, a page
+        // bringing another schema can not be carried by it
+        if !page.batches.is_empty() {
+            if page.batches[0].schema().fields() != self.arrow_schema.fields() {
+                return Err(schema_changed());
+            }
+            self.batches.extend(page.batches);
+        } else if !page.data.is_empty() {
+            if !page.raw_schema.is_empty() {
+                let schema = self.pages.page_schema(&page)?;
+                if !Arc::ptr_eq(&schema, &self.schema)
+                    && arrow_schema_from(&schema).fields() != self.arrow_schema.fields()
+                {
+                    return Err(schema_changed());
+                }
+            }
+            let batch = record_batch_from_strings(
+                self.arrow_schema.clone(),
+                &self.schema,
+                page.data,
+                &self.settings,
+            )?;
+            self.batches.push_back(batch);
+        }
+        Ok(())
+    }
+}
+
+fn schema_changed() -> Error {
+    Error::InvalidResponse("result schema changed between pages".to_string())
+}
+
+impl Stream for RestAPIBatches {
+    type Item = Result<RecordBatch>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        loop {
+            if let Some(batch) = self.batches.pop_front() {
+                return Poll::Ready(Some(Ok(batch)));
+            }
+            match Pin::new(&mut self.pages).poll_next(cx) {
+                Poll::Ready(Some(Ok(page))) => {
+                    if let Err(e) = self.push_page(page) {
+                        return Poll::Ready(Some(Err(e)));
+                    }
+                }
+                Poll::Ready(Some(Err(e))) => return Poll::Ready(Some(Err(e.into()))),
+                Poll::Ready(None) => return Poll::Ready(None),
+                Poll::Pending => return Poll::Pending,
+            }
+        }
+    }
+}
+
 trait FromRowStats: Send + Sync + Clone {
     fn from_stats(stats: ServerStats) -> Self;
-    fn try_from_raw_row(
-        row: Vec<Option<String>>,
+    fn try_from_json_row(
+        rows: &Arc<JsonRows>,
+        index: usize,
         schema: SchemaRef,
-        tz: &ResultFormatSettings,
+        settings: &Arc<ResultFormatSettings>,
     ) -> Result<Self>;
-    fn from_row(row: Row) -> Self;
+    fn try_from_batch(
+        batch: RecordBatch,
+        schema: SchemaRef,
+        settings: &Arc<ResultFormatSettings>,
+    ) -> Result<Vec<Self>>;
 }
 
 impl FromRowStats for RowWithStats {
@@ -446,15 +730,23 @@ impl FromRowStats for RowWithStats {
         RowWithStats::Stats(stats)
     }
 
-    fn try_from_raw_row(
-        row: Vec<Option<String>>,
+    fn try_from_json_row(
+        rows: &Arc<JsonRows>,
+        index: usize,
         schema: SchemaRef,
-        settings: &ResultFormatSettings,
+        settings: &Arc<ResultFormatSettings>,
     ) -> Result<Self> {
-        Ok(RowWithStats::Row(Row::try_from((schema, row, settings))?))
+        let row = Row::try_from((schema, rows.row(index), settings.as_ref()))?;
+        Ok(RowWithStats::Row(row))
     }
-    fn from_row(row: Row) -> Self {
-        RowWithStats::Row(row)
+
+    fn try_from_batch(
+        batch: RecordBatch,
+        schema: SchemaRef,
+        settings: &Arc<ResultFormatSettings>,
+    ) -> Result<Vec<Self>> {
+        let rows = Rows::try_from_batch(&batch, schema, settings)?;
+        Ok(rows.into_iter().map(RowWithStats::Row).collect())
     }
 }
 
@@ -463,16 +755,55 @@ impl FromRowStats for RawRowWithStats {
         RawRowWithStats::Stats(stats)
     }
 
-    fn try_from_raw_row(
-        row: Vec<Option<String>>,
+    fn try_from_json_row(
+        rows: &Arc<JsonRows>,
+        index: usize,
         schema: SchemaRef,
-        tz: &ResultFormatSettings,
+        settings: &Arc<ResultFormatSettings>,
     ) -> Result<Self> {
-        let rows = Row::try_from((schema, row.clone(), tz))?;
-        Ok(RawRowWithStats::Row(RawRow::new(rows, row)))
+        let row = RawRow::try_from((schema, rows.row(index), settings.as_ref()))?;
+        Ok(RawRowWithStats::Row(row))
     }
 
-    fn from_row(row: Row) -> Self {
-        RawRowWithStats::Row(RawRow::from(row))
+    fn try_from_batch(
+        batch: RecordBatch,
+        schema: SchemaRef,
+        settings: &Arc<ResultFormatSettings>,
+    ) -> Result<Vec<Self>> {
+        let rows = Rows::try_from_batch(&batch, schema, settings)?;
+        Ok(rows
+            .into_iter()
+            .map(|row| RawRowWithStats::Row(RawRow::from(row)))
+            .collect())
+    }
+}
+
+impl FromRowStats for LazyRowWithStats {
+    fn from_stats(stats: ServerStats) -> Self {
+        LazyRowWithStats::Stats(stats)
+    }
+
+    fn try_from_json_row(
+        rows: &Arc<JsonRows>,
+        index: usize,
+        schema: SchemaRef,
+        settings: &Arc<ResultFormatSettings>,
+    ) -> Result<Self> {
+        let row = LazyRow::from_json(rows.clone(), index, schema, settings.clone());
+        Ok(LazyRowWithStats::Row(row))
+    }
+
+    fn try_from_batch(
+        batch: RecordBatch,
+        schema: SchemaRef,
+        settings: &Arc<ResultFormatSettings>,
+    ) -> Result<Vec<Self>> {
+        let batch = Arc::new(batch);
+        Ok((0..batch.num_rows())
+            .map(|i| {
+                let row = LazyRow::from_batch(batch.clone(), i, schema.clone(), settings.clone());
+                LazyRowWithStats::Row(row)
+            })
+            .collect())
     }
 }
@@ -0,0 +1,92 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::time::{Duration, Instant};
+
+use databend_driver_core::rows::ClientTiming;
+
+/// Phases of a query as seen by the client, reported in the stats of the
+/// result as `ClientTiming`.
+pub(crate) struct QueryClock {
+    started: Instant,
+    query_start: Duration,
+    schema: Duration,
+    first_row: Option<Duration>,
+    decode: Duration,
+}
+
+impl QueryClock {
+    /// `query_start` is the time from `started` to the response to the query
+    /// request.
+    pub(crate) fn new(started: Instant, query_start: Duration) -> Self {
+        Self {
+            started,
+            query_start,
+            schema: Duration::ZERO,
+            first_row: None,
+            decode: Duration::ZERO,
+        }
+    }
+
+    pub(crate) fn schema_known(&mut self) {
+        self.schema = self.started.elapsed();
+    }
+
+    pub(crate) fn row_returned(&mut self) {
+        if self.first_row.is_none() {
+            self.first_row = Some(self.started.elapsed());
+        }
+    }
+
+    pub(crate) fn decoded(&mut self, elapsed: Duration) {
+        self.decode += elapsed;
+    }
+
+    pub(crate) fn timing(&self, page_wait: Duration, received_bytes: u64) -> ClientTiming {
+        ClientTiming {
+            query_start_ms: millis(self.query_start),
+            schema_ms: millis(self.schema),
+            first_row_ms: self.first_row.map(millis).unwrap_or_default(),
+            page_wait_ms: millis(page_wait),
+            decode_ms: millis(self.decode),
+            received_bytes: received_bytes as usize,
+        }
+    }
+}
+
+fn millis(d: Duration) -> f64 {
+    d.as_secs_f64() * 1000.0
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn first_row_is_kept() {
+        let started = Instant::now() - Duration::from_millis(30);
+        let mut clock = QueryClock::new(started, Duration::from_millis(10));
+        clock.schema_known();
+        clock.row_returned();
+        let first = clock.timing(Duration::ZERO, 0).first_row_ms;
+        std::thread::sleep(Duration::from_millis(2));
+        clock.row_returned();
+        let timing = clock.timing(Duration::from_millis(5), 100);
+        assert_eq!(timing.first_row_ms, first);
+        assert!(timing.first_row_ms >= 30.0);
+        assert_eq!(timing.query_start_ms, 10.0);
+        assert_eq!(timing.page_wait_ms, 5.0);
+        assert_eq!(timing.received_bytes, 100);
+    }
+}
@@ -214,3 +214,94 @@ fn test_field_exclusion() {
     let default_fields = UserRow::field_names();
     assert_eq!(default_fields, insert_fields);
 }
+
+#[tokio::test]
+async fn test_orm_insert_in_chunks() -> databend_driver::Result<()> {
+    let connection = prepare().await;
+    connection
+        .exec(
+            "CREATE OR REPLACE TABLE users_chunks (
+                id INT NOT NULL,
+                user_name STRING NOT NULL,
+                email STRING NOT NULL,
+                dt Date NOT NULL
+            )",
+        )
+        .await?;
+
+    let n = 2500;
+    let mut insert = connection
+        .insert::<UserRow>("users_chunks")
+        .await?
+        .with_max_rows(1000);
+    for i in 0..n {
+        let user = UserRow {
+            id: i,
+            username: format!("user{i}"),
+            email: format!("user{i}@example.com"),
+            dt: NaiveDate::from_ymd_opt(2011, 3, 6).unwrap(),
+            ..Default::default()
+        };
+        insert.write(&user).await?;
+    }
+    let rows_inserted = insert.end().await?;
+    assert_eq!(rows_inserted, n as i64);
+
+    let row = connection
+        .query_row("SELECT count(*), sum(id) FROM users_chunks")
+        .await?
+        .unwrap();
+    let (count, sum): (u64, i64) = row.try_into().unwrap();
+    assert_eq!(count, n as u64);
+    assert_eq!(sum, (0..n as i64).sum::<i64>());
+    Ok(())
+}
+
+#[derive(serde_bend, Clone, Debug, PartialEq, Default)]
+struct EventRow {
+    id: i32,
+    payload: serde_json::Value,
+    raw: Vec<u8>,
+}
+
+#[tokio::test]
+async fn test_orm_insert_variant() -> databend_driver::Result<()> {
+    let connection = prepare().await;
+    connection
+        .exec(
+            "CREATE OR REPLACE TABLE events (
+                id INT NOT NULL,
+                payload VARIANT NOT NULL,
+                raw BINARY NOT NULL
+            )",
+        )
+        .await?;
+
+    let event = EventRow {
+        id: 1,
+        payload: serde_json::json!({"k": [1, 2.5, "x"], "n": null}),
+        raw: vec![0xab, 0x01],
+    };
+    let mut insert = connection.insert::<EventRow>("events").await?;
+    insert.write(&event).await?;
+    assert_eq!(insert.end().await?, 1);
+
+    // the document is stored as an object, not as a JSON string
+    let row = connection
+        .query_row("SELECT payload:k[2], json_typeof(payload) FROM events")
+        .await?
+        .unwrap();
+    let (elem, ty): (String, String) = row.try_into().unwrap();
+    assert_eq!(elem, r#""x""#);
+    assert_eq!(ty, "object");
+
+    let rows = connection
+        .query_as::<EventRow>("SELECT * FROM events")
+        .await?
+        .fetch_all()
+        .await?;
+    assert_eq!(rows, vec![event]);
+
+    connection.exec("DROP TABLE events").await?;
+    Ok(())
+}
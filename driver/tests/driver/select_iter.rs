@@ -14,7 +14,7 @@
 
 use tokio_stream::StreamExt;
 
-use databend_driver::{Client, Connection};
+use databend_driver::{Client, Connection, RowWithStats};
 
 use crate::common::{DEFAULT_DSN, INIT_LOG};
 
@@ -229,3 +229,93 @@ async fn select_sleep() {
     }
     assert_eq!(result, vec![0]);
 }
+
+#[tokio::test]
+async fn select_arrow_batches() {
+    let (conn, _) = prepare("select_arrow_batches").await;
+    let n = 25000;
+    let sql = format!("select number from NUMBERS({n}) order by number");
+    let batches = conn.query_arrow_iter(&sql).await.unwrap();
+    assert_eq!(batches.schema().fields().len(), 1);
+    let batches = batches.collect().await.unwrap();
+    let mut ret = vec![];
+    for batch in batches {
+        let column = batch
+            .column(0)
+            .as_any()
+            .downcast_ref::<arrow::array::UInt64Array>()
+            .unwrap();
+        ret.extend(column.values().iter().copied());
+    }
+    assert_eq!(ret, (0..n).collect::<Vec<u64>>());
+}
+
+#[tokio::test]
+async fn select_spooled() {
+    let dsn = option_env!("TEST_DATABEND_DSN").unwrap_or(DEFAULT_DSN);
+    let sql = "SELECT number, [number, number + 1], (number, 'x'), to_timestamp(number), \
+        number::String FROM numbers(3000) ORDER BY number";
+    for format in ["json", "arrow"] {
+        // kept in memory, and all spilled to the file
+        for spool_memory_bytes in [268435456, 1] {
+            let client = Client::new(format!(
+                "{dsn}&query_result_format={format}&spool_memory_bytes={spool_memory_bytes}"
+            ));
+            let conn = client.get_conn().await.unwrap();
+            let expected = conn
+                .query_iter(sql)
+                .await
+                .unwrap()
+                .map(|r| r.map(|r| r.values().to_vec()))
+                .collect::<databend_driver::Result<Vec<_>>>()
+                .await
+                .unwrap();
+            let rows = conn
+                .query_spooled(sql)
+                .await
+                .unwrap()
+                .map(|r| r.map(|r| r.values().to_vec()))
+                .collect::<databend_driver::Result<Vec<_>>>()
+                .await
+                .unwrap();
+            assert_eq!(expected.len(), 3000);
+            assert_eq!(rows, expected, "{format}, {spool_memory_bytes}");
+        }
+    }
+}
+
+#[tokio::test]
+async fn select_partitioned() {
+    let (conn, _) = prepare("select_partitioned").await;
+    let n = 25000;
+    let sql = format!("select number from NUMBERS({n})");
+    let rows = conn.query_partitioned(&sql, "number", 4).await.unwrap();
+    let mut ret: Vec<u64> = rows
+        .filter_map(|r| match r.unwrap() {
+            RowWithStats::Row(row) => Some(row.try_into().unwrap()),
+            RowWithStats::Stats(_) => None,
+        })
+        .collect::<Vec<(u64,)>>()
+        .await
+        .into_iter()
+        .map(|r| r.0)
+        .collect();
+    ret.sort();
+    assert_eq!(ret, (0..n).collect::<Vec<u64>>());
+}
+
+#[tokio::test]
+async fn select_partitioned_in_transaction() {
+    let (conn, _) = prepare("select_partitioned_in_transaction").await;
+    conn.exec("BEGIN").await.unwrap();
+    let ret = conn
+        .query_partitioned("select number from NUMBERS(10)", "number", 2)
+        .await;
+    assert!(ret.is_err());
+    conn.exec("ROLLBACK").await.unwrap();
+    // a single partition is the query itself
+    let rows = conn
+        .query_partitioned("select number from NUMBERS(10)", "number", 1)
+        .await;
+    assert!(rows.is_ok());
+}
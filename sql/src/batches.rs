@@ -0,0 +1,457 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::HashMap;
+use std::pin::Pin;
+use std::sync::Arc;
+use std::task::{Context, Poll};
+
+use arrow::datatypes::i256;
+use arrow::record_batch::RecordBatch;
+use arrow_array::builder::{
+    BinaryBuilder, BooleanBuilder, Date32Builder, Decimal128Builder, Decimal256Builder,
+    Decimal64Builder, Float32Builder, Float64Builder, Int16Builder, Int32Builder, Int64Builder,
+    Int8Builder, StringBuilder, TimestampMicrosecondBuilder, UInt16Builder, UInt32Builder,
+    UInt64Builder, UInt8Builder,
+};
+use arrow_array::{ArrayRef, NullArray, RecordBatchOptions};
+use arrow_schema::{
+    DataType as ArrowDataType, Field as ArrowField, Schema as ArrowSchema,
+    SchemaRef as ArrowSchemaRef, TimeUnit,
+};
+use databend_client::schema::{
+    DataType, DecimalDataType, Field, NumberDataType, Schema, ARROW_EXT_TYPE_ARRAY,
+    ARROW_EXT_TYPE_BITMAP, ARROW_EXT_TYPE_GEOGRAPHY, ARROW_EXT_TYPE_GEOMETRY,
+    ARROW_EXT_TYPE_INTERVAL, ARROW_EXT_TYPE_MAP, ARROW_EXT_TYPE_TIMESTAMP_TIMEZONE,
+    ARROW_EXT_TYPE_TUPLE, ARROW_EXT_TYPE_VARIANT, EXTENSION_KEY,
+};
+use databend_client::ResultFormatSettings;
+use tokio_stream::{Stream, StreamExt};
+
+use crate::error::{Error, Result};
+use crate::value::{NumberValue, Value};
+
+/// A stream of arrow `RecordBatch`es, bypassing the `Row`/`Value` conversion.
+pub struct ArrowBatchIterator {
+    schema: ArrowSchemaRef,
+    it: Option<Pin<Box<dyn Stream<Item = Result<RecordBatch>> + Send>>>,
+}
+
+impl ArrowBatchIterator {
+    pub fn new(
+        schema: ArrowSchemaRef,
+        it: Pin<Box<dyn Stream<Item = Result<RecordBatch>> + Send>>,
+    ) -> Self {
+        Self {
+            schema,
+            it: Some(it),
+        }
+    }
+
+    pub fn schema(&self) -> ArrowSchemaRef {
+        self.schema.clone()
+    }
+
+    pub async fn collect(mut self) -> Result<Vec<RecordBatch>> {
+        if let Some(it) = &mut self.it {
+            let mut ret = Vec::new();
+            while let Some(batch) = it.next().await {
+                ret.push(batch?);
+            }
+            Ok(ret)
+        } else {
+            Err(Error::BadArgument(
+                "ArrowBatchIterator already closed".to_owned(),
+            ))
+        }
+    }
+
+    pub fn close(&mut self) {
+        self.it = None;
+    }
+}
+
+impl Stream for ArrowBatchIterator {
+    type Item = Result<RecordBatch>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        if let Some(it) = self.it.as_mut() {
+            Pin::new(it).poll_next(cx)
+        } else {
+            Poll::Ready(Some(Err(Error::BadArgument(
+                "ArrowBatchIterator already closed".to_owned(),
+            ))))
+        }
+    }
+}
+
+/// Arrow schema used for batches built from JSON pages.
+///
+/// Scalar types map to their native arrow types. Databend specific and nested
+/// types are kept as `Utf8` in the server's text representation, tagged with
+/// the Databend extension metadata so they are not taken for plain strings.
+pub fn arrow_schema_from(schema: &Schema) -> ArrowSchema {
+    ArrowSchema::new(
+        schema
+            .fields()
+            .iter()
+            .map(arrow_field_from)
+            .collect::<Vec<_>>(),
+    )
+}
+
+fn arrow_field_from(field: &Field) -> ArrowField {
+    let (data_type, nullable) = match &field.data_type {
+        DataType::Nullable(inner) => (inner.as_ref(), true),
+        DataType::Null => (&field.data_type, true),
+        data_type => (data_type, false),
+    };
+    let arrow_type = match data_type {
+        DataType::Null => ArrowDataType::Null,
+        DataType::Boolean => ArrowDataType::Boolean,
+        DataType::Binary => ArrowDataType::Binary,
+        DataType::Number(n) => match n {
+            NumberDataType::UInt8 => ArrowDataType::UInt8,
+            NumberDataType::UInt16 => ArrowDataType::UInt16,
+            NumberDataType::UInt32 => ArrowDataType::UInt32,
+            NumberDataType::UInt64 => ArrowDataType::UInt64,
+            NumberDataType::Int8 => ArrowDataType::Int8,
+            NumberDataType::Int16 => ArrowDataType::Int16,
+            NumberDataType::Int32 => ArrowDataType::Int32,
+            NumberDataType::Int64 => ArrowDataType::Int64,
+            NumberDataType::Float32 => ArrowDataType::Float32,
+            NumberDataType::Float64 => ArrowDataType::Float64,
+        },
+        DataType::Decimal(DecimalDataType::Decimal64(size)) => {
+            ArrowDataType::Decimal64(size.precision, size.scale as i8)
+        }
+        DataType::Decimal(DecimalDataType::Decimal128(size)) => {
+            ArrowDataType::Decimal128(size.precision, size.scale as i8)
+        }
+        DataType::Decimal(DecimalDataType::Decimal256(size)) => {
+            ArrowDataType::Decimal256(size.precision, size.scale as i8)
+        }
+        DataType::Date => ArrowDataType::Date32,
+        DataType::Timestamp => ArrowDataType::Timestamp(TimeUnit::Microsecond, None),
+        _ => ArrowDataType::Utf8,
+    };
+    let arrow_field = ArrowField::new(&field.name, arrow_type, nullable);
+    match extension_type(data_type) {
+        Some(ext) => arrow_field.with_metadata(HashMap::from([(
+            EXTENSION_KEY.to_string(),
+            ext.to_string(),
+        )])),
+        None => arrow_field,
+    }
+}
+
+fn extension_type(data_type: &DataType) -> Option<&'static str> {
+    match data_type {
+        DataType::Variant => Some(ARROW_EXT_TYPE_VARIANT),
+        DataType::TimestampTz => Some(ARROW_EXT_TYPE_TIMESTAMP_TIMEZONE),
+        DataType::Interval => Some(ARROW_EXT_TYPE_INTERVAL),
+        DataType::Geometry => Some(ARROW_EXT_TYPE_GEOMETRY),
+        DataType::Geography => Some(ARROW_EXT_TYPE_GEOGRAPHY),
+        DataType::Bitmap => Some(ARROW_EXT_TYPE_BITMAP),
+        DataType::Array(_) => Some(ARROW_EXT_TYPE_ARRAY),
+        DataType::Map(_) => Some(ARROW_EXT_TYPE_MAP),
+        DataType::Tuple(_) => Some(ARROW_EXT_TYPE_TUPLE),
+        _ => None,
+    }
+}
+
+/// Builds a `RecordBatch` from the row-major string cells of a JSON page.
+/// `arrow_schema` must be produced by [`arrow_schema_from`] for `schema`.
+pub fn record_batch_from_strings(
+    arrow_schema: ArrowSchemaRef,
+    schema: &Schema,
+    mut data: Vec<Vec<Option<String>>>,
+    settings: &ResultFormatSettings,
+) -> Result<RecordBatch> {
+    let num_rows = data.len();
+    let mut columns = Vec::with_capacity(schema.fields().len());
+    for (i, field) in schema.fields().iter().enumerate() {
+        let cells = data
+            .iter_mut()
+            .map(|row| row.get_mut(i).and_then(Option::take))
+            .collect::<Vec<_>>();
+        columns.push(build_column(&field.data_type, cells, settings)?);
+    }
+    let options = RecordBatchOptions::new().with_row_count(Some(num_rows));
+    RecordBatch::try_new_with_options(arrow_schema, columns, &options)
+        .map_err(|e| Error::InvalidResponse(format!("failed to build record batch: {e}")))
+}
+
+macro_rules! build_array {
+    ($builder:expr, $data_type:expr, $cells:expr, $settings:expr, $($pat:pat => $v:expr),+) => {{
+        let mut builder = $builder;
+        for cell in $cells {
+            match Value::try_from(($data_type, cell, $settings))? {
+                Value::Null => builder.append_null(),
+                $($pat => builder.append_value($v),)+
+                other => return Err(unexpected_value($data_type, &other)),
+            }
+        }
+        Arc::new(builder.finish()) as ArrayRef
+    }};
+}
+
+fn build_column(
+    data_type: &DataType,
+    cells: Vec<Option<String>>,
+    settings: &ResultFormatSettings,
+) -> Result<ArrayRef> {
+    let inner = match data_type {
+        DataType::Nullable(inner) => inner.as_ref(),
+        _ => data_type,
+    };
+    let len = cells.len();
+    let array = match inner {
+        DataType::Null => Arc::new(NullArray::new(len)) as ArrayRef,
+        DataType::Boolean => build_array!(
+            BooleanBuilder::with_capacity(len), data_type, cells, settings,
+            Value::Boolean(v) => v
+        ),
+        DataType::Binary => build_array!(
+            BinaryBuilder::with_capacity(len, 0), data_type, cells, settings,
+            Value::Binary(v) => v
+        ),
+        DataType::Number(NumberDataType::UInt8) => build_array!(
+            UInt8Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::UInt8(v)) => v
+        ),
+        DataType::Number(NumberDataType::UInt16) => build_array!(
+            UInt16Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::UInt16(v)) => v
+        ),
+        DataType::Number(NumberDataType::UInt32) => build_array!(
+            UInt32Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::UInt32(v)) => v
+        ),
+        DataType::Number(NumberDataType::UInt64) => build_array!(
+            UInt64Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::UInt64(v)) => v
+        ),
+        DataType::Number(NumberDataType::Int8) => build_array!(
+            Int8Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::Int8(v)) => v
+        ),
+        DataType::Number(NumberDataType::Int16) => build_array!(
+            Int16Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::Int16(v)) => v
+        ),
+        DataType::Number(NumberDataType::Int32) => build_array!(
+            Int32Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::Int32(v)) => v
+        ),
+        DataType::Number(NumberDataType::Int64) => build_array!(
+            Int64Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::Int64(v)) => v
+        ),
+        DataType::Number(NumberDataType::Float32) => build_array!(
+            Float32Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::Float32(v)) => v
+        ),
+        DataType::Number(NumberDataType::Float64) => build_array!(
+            Float64Builder::with_capacity(len), data_type, cells, settings,
+            Value::Number(NumberValue::Float64(v)) => v
+        ),
+        DataType::Decimal(DecimalDataType::Decimal64(size)) => build_array!(
+            Decimal64Builder::with_capacity(len)
+                .with_precision_and_scale(size.precision, size.scale as i8)
+                .map_err(|e| Error::InvalidResponse(e.to_string()))?,
+            data_type, cells, settings,
+            Value::Number(NumberValue::Decimal64(v, _)) => v
+        ),
+        DataType::Decimal(DecimalDataType::Decimal128(size)) => build_array!(
+            Decimal128Builder::with_capacity(len)
+                .with_precision_and_scale(size.precision, size.scale as i8)
+                .map_err(|e| Error::InvalidResponse(e.to_string()))?,
+            data_type, cells, settings,
+            Value::Number(NumberValue::Decimal64(v, _)) => v as i128,
+            Value::Number(NumberValue::Decimal128(v, _)) => v
+        ),
+        DataType::Decimal(DecimalDataType::Decimal256(size)) => build_array!(
+            Decimal256Builder::with_capacity(len)
+                .with_precision_and_scale(size.precision, size.scale as i8)
+                .map_err(|e| Error::InvalidResponse(e.to_string()))?,
+            data_type, cells, settings,
+            Value::Number(NumberValue::Decimal64(v, _)) => i256::from_i128(v as i128),
+            Value::Number(NumberValue::Decimal128(v, _)) => i256::from_i128(v),
+            Value::Number(NumberValue::Decimal256(v, _)) => i256::from_le_bytes(v.to_le_bytes())
+        ),
+        DataType::Date => build_array!(
+            Date32Builder::with_capacity(len), data_type, cells, settings,
+            Value::Date(v) => v
+        ),
+        DataType::Timestamp => build_array!(
+            TimestampMicrosecondBuilder::with_capacity(len), data_type, cells, settings,
+            Value::Timestamp(v) => v.timestamp().as_microsecond()
+        ),
+        _ => {
+            let mut builder = StringBuilder::with_capacity(len, 0);
+            for cell in cells {
+                match cell {
+                    Some(v) if !is_null_text(data_type, &v) => builder.append_value(v),
+                    _ => builder.append_null(),
+                }
+            }
+            Arc::new(builder.finish()) as ArrayRef
+        }
+    };
+    Ok(array)
+}
+
+// old servers send `NULL` text for nullable non-string columns
+fn is_null_text(data_type: &DataType, v: &str) -> bool {
+    matches!(data_type, DataType::Nullable(inner) if !matches!(inner.as_ref(), DataType::String))
+        && v == "NULL"
+}
+
+fn unexpected_value(data_type: &DataType, value: &Value) -> Error {
+    Error::InvalidResponse(format!(
+        "unexpected value {value:?} for column of type {data_type}"
+    ))
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use arrow_array::{Array, Decimal128Array, Int32Array, StringArray};
+    use databend_client::schema::DecimalSize;
+
+    fn field(name: &str, data_type: DataType) -> Field {
+        Field {
+            name: name.to_string(),
+            data_type,
+        }
+    }
+
+    #[test]
+    fn build_batch_from_json_page() -> Result<()> {
+        let schema = Schema::from_vec(vec![
+            field("a", DataType::Number(NumberDataType::Int32)),
+            field("b", DataType::Nullable(Box::new(DataType::String))),
+            field(
+                "c",
+                DataType::Decimal(DecimalDataType::Decimal128(DecimalSize {
+                    precision: 10,
+                    scale: 2,
+                })),
+            ),
+            field("d", DataType::Nullable(Box::new(DataType::Variant))),
+        ]);
+        let arrow_schema = Arc::new(arrow_schema_from(&schema));
+        assert_eq!(
+            arrow_schema.field(3).metadata().get(EXTENSION_KEY),
+            Some(&ARROW_EXT_TYPE_VARIANT.to_string())
+        );
+
+        let data = vec![
+            vec![
+                Some("1".to_string()),
+                Some("x".to_string()),
+                Some("1.50".to_string()),
+                Some("{\"k\":1}".to_string()),
+            ],
+            vec![Some("2".to_string()), None, Some("-2.25".to_string()), None],
+        ];
+        let batch = record_batch_from_strings(
+            arrow_schema,
+            &schema,
+            data,
+            &ResultFormatSettings::default(),
+        )?;
+        assert_eq!(batch.num_rows(), 2);
+
+        let a = batch.column(0).as_any().downcast_ref::<Int32Array>().unwrap();
+        assert_eq!(a.values(), &[1, 2]);
+        let b = batch.column(1).as_any().downcast_ref::<StringArray>().unwrap();
+        assert_eq!(b.value(0), "x");
+        assert!(b.is_null(1));
+        let c = batch
+            .column(2)
+            .as_any()
+            .downcast_ref::<Decimal128Array>()
+            .unwrap();
+        assert_eq!(c.value(0), 150);
+        assert_eq!(c.value(1), -225);
+        let d = batch.column(3).as_any().downcast_ref::<StringArray>().unwrap();
+        assert_eq!(d.value(0), "{\"k\":1}");
+        assert!(d.is_null(1));
+        Ok(())
+    }
+
+    #[test]
+    fn tag_text_columns_with_extension() {
+        let schema = Schema::from_vec(vec![
+            field("a", DataType::String),
+            field("b", DataType::Nullable(Box::new(DataType::TimestampTz))),
+            field("c", DataType::Interval),
+            field("d", DataType::Geometry),
+            field("e", DataType::Geography),
+            field("f", DataType::Bitmap),
+            field(
+                "g",
+                DataType::Array(Box::new(DataType::Number(NumberDataType::Int32))),
+            ),
+            field(
+                "h",
+                DataType::Map(Box::new(DataType::Tuple(vec![
+                    DataType::String,
+                    DataType::String,
+                ]))),
+            ),
+            field("i", DataType::Tuple(vec![DataType::Boolean, DataType::Date])),
+        ]);
+        let arrow_schema = arrow_schema_from(&schema);
+        let extensions = arrow_schema
+            .fields()
+            .iter()
+            .map(|f| f.metadata().get(EXTENSION_KEY).map(String::as_str))
+            .collect::<Vec<_>>();
+        assert_eq!(
+            extensions,
+            vec![
+                None,
+                Some(ARROW_EXT_TYPE_TIMESTAMP_TIMEZONE),
+                Some(ARROW_EXT_TYPE_INTERVAL),
+                Some(ARROW_EXT_TYPE_GEOMETRY),
+                Some(ARROW_EXT_TYPE_GEOGRAPHY),
+                Some(ARROW_EXT_TYPE_BITMAP),
+                Some(ARROW_EXT_TYPE_ARRAY),
+                Some(ARROW_EXT_TYPE_MAP),
+                Some(ARROW_EXT_TYPE_TUPLE),
+            ]
+        );
+        assert!(arrow_schema.field(1).is_nullable());
+        assert!(arrow_schema
+            .fields()
+            .iter()
+            .all(|f| f.data_type() == &ArrowDataType::Utf8));
+    }
+
+    #[test]
+    fn build_batch_rejects_null_for_non_nullable() {
+        let schema = Schema::from_vec(vec![field("a", DataType::Number(NumberDataType::Int64))]);
+        let arrow_schema = Arc::new(arrow_schema_from(&schema));
+        let res = record_batch_from_strings(
+            arrow_schema,
+            &schema,
+            vec![vec![None]],
+            &ResultFormatSettings::default(),
+        );
+        assert!(res.is_err());
+    }
+}
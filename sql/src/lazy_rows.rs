@@ -0,0 +1,285 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::pin::Pin;
+use std::sync::{Arc, OnceLock};
+use std::task::{Context, Poll};
+
+use arrow::record_batch::RecordBatch;
+use databend_client::schema::SchemaRef;
+use databend_client::{JsonRows, ResultFormatSettings};
+use tokio_stream::Stream;
+
+use crate::error::{Error, Result};
+use crate::rows::{Row, ServerStats};
+use crate::value::{ColumnDecoder, Value};
+
+#[derive(Clone, Debug)]
+pub enum LazyRowWithStats {
+    Row(LazyRow),
+    Stats(ServerStats),
+}
+
+#[derive(Clone, Debug)]
+enum LazySource {
+    Json(Arc<JsonRows>, usize),
+    Arrow(Arc<RecordBatch>, usize),
+    /// Decoded already, all values are set.
+    Decoded,
+}
+
+/// A row decoding its columns on first access, keeping the page it comes
+/// from until then: the JSON page or the arrow batch. Reading a few columns
+/// of a wide result this way skips decoding the others.
+#[derive(Clone, Debug)]
+pub struct LazyRow {
+    schema: SchemaRef,
+    settings: Arc<ResultFormatSettings>,
+    source: LazySource,
+    values: Vec<OnceLock<Value>>,
+}
+
+impl LazyRow {
+    pub fn from_json(
+        rows: Arc<JsonRows>,
+        index: usize,
+        schema: SchemaRef,
+        settings: Arc<ResultFormatSettings>,
+    ) -> Self {
+        Self::new(schema, settings, LazySource::Json(rows, index))
+    }
+
+    pub fn from_batch(
+        batch: Arc<RecordBatch>,
+        index: usize,
+        schema: SchemaRef,
+        settings: Arc<ResultFormatSettings>,
+    ) -> Self {
+        Self::new(schema, settings, LazySource::Arrow(batch, index))
+    }
+
+    fn new(schema: SchemaRef, settings: Arc<ResultFormatSettings>, source: LazySource) -> Self {
+        let values = (0..schema.fields().len())
+            .map(|_| OnceLock::new())
+            .collect();
+        Self {
+            schema,
+            settings,
+            source,
+            values,
+        }
+    }
+
+    pub fn len(&self) -> usize {
+        self.values.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.values.is_empty()
+    }
+
+    pub fn schema(&self) -> SchemaRef {
+        self.schema.clone()
+    }
+
+    /// Value of the column, decoded on the first call.
+    pub fn get(&self, index: usize) -> Result<&Value> {
+        let cell = self.values.get(index).ok_or_else(|| {
+            Error::BadArgument(format!(
+                "column index {index} out of {} columns",
+                self.values.len()
+            ))
+        })?;
+        if let Some(value) = cell.get() {
+            return Ok(value);
+        }
+        let value = self.decode(index)?;
+        Ok(cell.get_or_init(|| value))
+    }
+
+    pub fn get_by_name(&self, name: &str) -> Result<&Value> {
+        let index = self
+            .schema
+            .fields()
+            .iter()
+            .position(|f| f.name == name)
+            .ok_or_else(|| Error::BadArgument(format!("no column named {name}")))?;
+        self.get(index)
+    }
+
+    /// Decode the remaining columns.
+    pub fn into_row(self) -> Result<Row> {
+        for i in 0..self.values.len() {
+            self.get(i)?;
+        }
+        let values = self
+            .values
+            .into_iter()
+            .map(|v| v.into_inner().unwrap_or(Value::Null))
+            .collect();
+        Ok(Row::new(self.schema, values))
+    }
+
+    fn decode(&self, index: usize) -> Result<Value> {
+        match &self.source {
+            LazySource::Json(rows, row) => {
+                let data_type = &self.schema.fields()[index].data_type;
+                let cell = rows.row(*row).get(index);
+                Value::try_from((data_type, cell, self.settings.as_ref()))
+            }
+            LazySource::Arrow(batch, row) => {
+                let arrow_schema = batch.schema();
+                let decoder = ColumnDecoder::new(
+                    arrow_schema.field(index),
+                    batch.column(index),
+                    &self.settings,
+                );
+                decoder.decode(*row)
+            }
+            LazySource::Decoded => Err(Error::Decode(format!("column {index} is not decoded"))),
+        }
+    }
+}
+
+impl From<Row> for LazyRow {
+    fn from(row: Row) -> Self {
+        let schema = row.schema();
+        let values = row.into_iter().map(OnceLock::from).collect();
+        Self {
+            schema,
+            settings: Default::default(),
+            source: LazySource::Decoded,
+            values,
+        }
+    }
+}
+
+impl TryFrom<LazyRow> for Row {
+    type Error = Error;
+
+    fn try_from(row: LazyRow) -> Result<Self> {
+        row.into_row()
+    }
+}
+
+pub struct LazyRowIterator {
+    schema: SchemaRef,
+    it: Option<Pin<Box<dyn Stream<Item = Result<LazyRow>> + Send>>>,
+}
+
+impl LazyRowIterator {
+    pub fn new(schema: SchemaRef, it: Pin<Box<dyn Stream<Item = Result<LazyRow>> + Send>>) -> Self {
+        Self {
+            schema,
+            it: Some(it),
+        }
+    }
+
+    pub fn schema(&self) -> SchemaRef {
+        self.schema.clone()
+    }
+
+    pub fn close(&mut self) {
+        self.it = None;
+    }
+}
+
+impl Stream for LazyRowIterator {
+    type Item = Result<LazyRow>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        if let Some(it) = self.it.as_mut() {
+            Pin::new(it).poll_next(cx)
+        } else {
+            Poll::Ready(Some(Err(Error::BadArgument(
+                "LazyRowIterator already closed".to_owned(),
+            ))))
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use arrow::array::{ArrayRef, Int32Array, StringArray};
+    use arrow::datatypes::{DataType as ArrowDataType, Field as ArrowField, Schema as ArrowSchema};
+    use databend_client::schema::{DataType, Field, NumberDataType, Schema};
+
+    #[test]
+    fn decode_arrow_columns_on_access() {
+        let arrow_schema = Arc::new(ArrowSchema::new(vec![
+            ArrowField::new("a", ArrowDataType::Int32, false),
+            ArrowField::new("b", ArrowDataType::Utf8, false),
+        ]));
+        let columns: Vec<ArrayRef> = vec![
+            Arc::new(Int32Array::from(vec![1, 2])),
+            Arc::new(StringArray::from(vec!["x", "y"])),
+        ];
+        let batch = Arc::new(RecordBatch::try_new(arrow_schema, columns).unwrap());
+        let schema = Arc::new(Schema::from_vec(vec![
+            Field {
+                name: "a".to_string(),
+                data_type: DataType::Number(NumberDataType::Int32),
+            },
+            Field {
+                name: "b".to_string(),
+                data_type: DataType::String,
+            },
+        ]));
+        let row = LazyRow::from_batch(batch, 1, schema, Default::default());
+        assert_eq!(row.get_by_name("b").unwrap(), &Value::String("y".to_string()));
+        assert!(row.values[0].get().is_none());
+        assert!(row.get(2).is_err());
+        assert!(row.get_by_name("c").is_err());
+
+        let row = row.into_row().unwrap();
+        assert_eq!(
+            row.values(),
+            &[
+                Value::Number(crate::value::NumberValue::Int32(2)),
+                Value::String("y".to_string())
+            ]
+        );
+        let row = LazyRow::from(row);
+        assert_eq!(row.get(1).unwrap(), &Value::String("y".to_string()));
+    }
+
+    #[test]
+    fn decode_json_columns_on_access() {
+        let rows: JsonRows = serde_json::from_str(r#"[["1","x"],[null,"y"]]"#).unwrap();
+        let rows = Arc::new(rows);
+        let schema = Arc::new(Schema::from_vec(vec![
+            Field {
+                name: "a".to_string(),
+                data_type: DataType::Nullable(Box::new(DataType::Number(NumberDataType::Int32))),
+            },
+            Field {
+                name: "b".to_string(),
+                data_type: DataType::String,
+            },
+        ]));
+        let first = LazyRow::from_json(rows.clone(), 0, schema.clone(), Default::default());
+        assert_eq!(
+            first.get_by_name("a").unwrap(),
+            &Value::Number(crate::value::NumberValue::Int32(1))
+        );
+        assert!(first.values[1].get().is_none());
+
+        let second = LazyRow::from_json(rows, 1, schema, Default::default());
+        assert_eq!(second.get(1).unwrap(), &Value::String("y".to_string()));
+        assert!(second.values[0].get().is_none());
+        let row = second.into_row().unwrap();
+        assert_eq!(row.values(), &[Value::Null, Value::String("y".to_string())]);
+    }
+}
@@ -12,10 +12,13 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+pub mod batches;
 mod cursor_ext;
 pub mod error;
+pub mod lazy_rows;
 pub mod raw_rows;
 pub mod rows;
+pub mod spool;
 pub mod value;
 
 #[doc(hidden)]
@@ -19,7 +19,7 @@ use crate::rows::ServerStats;
 use crate::value::FormatOptions;
 use crate::value::Value;
 use databend_client::schema::SchemaRef;
-use databend_client::ResultFormatSettings;
+use databend_client::{JsonRow, ResultFormatSettings};
 use lexical_core::WriteFloatOptionsBuilder;
 use std::pin::Pin;
 use std::task::Context;
@@ -85,6 +85,17 @@ impl TryFrom<(SchemaRef, Vec<Option<String>>, &ResultFormatSettings)> for RawRow
     }
 }
 
+impl TryFrom<(SchemaRef, JsonRow<'_>, &ResultFormatSettings)> for RawRow {
+    type Error = Error;
+
+    fn try_from(
+        (schema, data, settings): (SchemaRef, JsonRow<'_>, &ResultFormatSettings),
+    ) -> Result<Self> {
+        let row = Row::try_from((schema, data, settings))?;
+        Ok(RawRow::new(row, data.to_vec()))
+    }
+}
+
 impl From<Row> for RawRow {
     fn from(row: Row) -> Self {
         let mut raw_row: Vec<Option<String>> = Vec::with_capacity(row.values().len());
@@ -15,15 +15,16 @@
 use std::pin::Pin;
 use std::task::Context;
 use std::task::Poll;
+use std::time::Instant;
 
 use serde::Deserialize;
 use tokio_stream::{Stream, StreamExt};
 
 use crate::error::{Error, Result};
-use crate::value::Value;
+use crate::value::{ColumnDecoder, Value};
 use arrow::record_batch::RecordBatch;
 use databend_client::schema::SchemaRef;
-use databend_client::ResultFormatSettings;
+use databend_client::{JsonRow, ResultFormatSettings};
 
 #[derive(Clone, Debug)]
 pub enum RowWithStats {
@@ -56,6 +57,48 @@ pub struct ServerStats {
 
     #[serde(default)]
     pub spill_bytes: usize,
+
+    /// `max_rows_per_page` requested for the query when page sizing is
+    /// adaptive, not sent by the server.
+    #[serde(skip)]
+    pub max_rows_per_page: Option<i64>,
+
+    /// Measured by the driver, not sent by the server.
+    #[serde(skip)]
+    pub client: ClientTiming,
+}
+
+/// Where the client spent the time of a query, in milliseconds from the
+/// start of the query request.
+#[derive(Clone, Debug, Default)]
+pub struct ClientTiming {
+    /// Until the response to the query request.
+    pub query_start_ms: f64,
+    /// Until the schema of the result is known.
+    pub schema_ms: f64,
+    /// Until the first row is returned, 0 before that.
+    pub first_row_ms: f64,
+    /// Spent waiting for result pages.
+    pub page_wait_ms: f64,
+    /// Spent decoding rows.
+    pub decode_ms: f64,
+    pub received_bytes: usize,
+}
+
+impl ClientTiming {
+    /// Combine the timing of sources of one result read in parallel.
+    pub fn merge(&mut self, other: &ClientTiming) {
+        self.query_start_ms = self.query_start_ms.max(other.query_start_ms);
+        self.schema_ms = self.schema_ms.max(other.schema_ms);
+        if self.first_row_ms == 0.0
+            || (other.first_row_ms > 0.0 && other.first_row_ms < self.first_row_ms)
+        {
+            self.first_row_ms = other.first_row_ms;
+        }
+        self.page_wait_ms += other.page_wait_ms;
+        self.decode_ms += other.decode_ms;
+        self.received_bytes += other.received_bytes;
+    }
 }
 
 impl ServerStats {
@@ -78,6 +121,8 @@ impl ServerStats {
         self.running_time_ms += other.running_time_ms;
         self.spill_file_nums += other.spill_file_nums;
         self.spill_bytes += other.spill_bytes;
+        self.max_rows_per_page = self.max_rows_per_page.or(other.max_rows_per_page);
+        self.client.merge(&other.client);
     }
 }
 
@@ -93,6 +138,8 @@ impl From<databend_client::QueryStats> for ServerStats {
             spill_file_nums: stats.progresses.spill_progress.file_nums,
             spill_bytes: stats.progresses.spill_progress.bytes,
             running_time_ms: stats.running_time_ms,
+            max_rows_per_page: stats.max_rows_per_page,
+            client: ClientTiming::default(),
         };
         if let Some(total) = stats.progresses.total_scan {
             p.total_rows = total.rows;
@@ -148,6 +195,20 @@ impl TryFrom<(SchemaRef, Vec<Option<String>>, &ResultFormatSettings)> for Row {
     }
 }
 
+impl TryFrom<(SchemaRef, JsonRow<'_>, &ResultFormatSettings)> for Row {
+    type Error = Error;
+
+    fn try_from(
+        (schema, data, settings): (SchemaRef, JsonRow<'_>, &ResultFormatSettings),
+    ) -> Result<Self> {
+        let mut values: Vec<Value> = Vec::with_capacity(data.len());
+        for (field, val) in schema.fields().iter().zip(data.iter()) {
+            values.push(Value::try_from((&field.data_type, val, settings))?);
+        }
+        Ok(Self::new(schema, values))
+    }
+}
+
 impl IntoIterator for Row {
     type Item = Value;
     type IntoIter = std::vec::IntoIter<Self::Item>;
@@ -182,28 +243,43 @@ impl Rows {
     pub fn is_empty(&self) -> bool {
         self.rows.is_empty()
     }
-}
 
-impl TryFrom<(RecordBatch, ResultFormatSettings)> for Rows {
-    type Error = Error;
-    fn try_from((batch, settings): (RecordBatch, ResultFormatSettings)) -> Result<Self> {
+    /// Decode a batch with an already converted `schema`, which lets callers
+    /// reuse one schema for all batches of a result.
+    pub fn try_from_batch(
+        batch: &RecordBatch,
+        schema: SchemaRef,
+        settings: &ResultFormatSettings,
+    ) -> Result<Self> {
+        let start = Instant::now();
         let batch_schema = batch.schema();
-        let schema = SchemaRef::new(batch_schema.clone().try_into()?);
-        let mut rows: Vec<Row> = Vec::new();
+        let decoders = batch_schema
+            .fields()
+            .iter()
+            .zip(batch.columns())
+            .map(|(field, array)| ColumnDecoder::new(field, array, settings))
+            .collect::<Vec<_>>();
+        let mut rows: Vec<Row> = Vec::with_capacity(batch.num_rows());
         for i in 0..batch.num_rows() {
-            let mut values: Vec<Value> = Vec::new();
-            for j in 0..batch_schema.fields().len() {
-                let v = batch.column(j);
-                let field = batch_schema.field(j);
-                let value = Value::try_from((field, v, i, &settings))?;
-                values.push(value);
+            let mut values: Vec<Value> = Vec::with_capacity(decoders.len());
+            for decoder in &decoders {
+                values.push(decoder.decode(i)?);
             }
             rows.push(Row::new(schema.clone(), values));
         }
+        databend_client::record_decode(rows.len(), start.elapsed());
         Ok(Self::new(rows))
     }
 }
 
+impl TryFrom<(RecordBatch, ResultFormatSettings)> for Rows {
+    type Error = Error;
+    fn try_from((batch, settings): (RecordBatch, ResultFormatSettings)) -> Result<Self> {
+        let schema = SchemaRef::new(batch.schema().try_into()?);
+        Self::try_from_batch(&batch, schema, &settings)
+    }
+}
+
 impl IntoIterator for Rows {
     type Item = Row;
     type IntoIter = std::vec::IntoIter<Self::Item>;
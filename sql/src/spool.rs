@@ -0,0 +1,474 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use std::collections::VecDeque;
+use std::fs::File;
+use std::future::Future;
+use std::io::{BufReader, BufWriter};
+use std::path::{Path, PathBuf};
+use std::pin::Pin;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::Arc;
+use std::task::{Context, Poll};
+use std::time::{SystemTime, UNIX_EPOCH};
+
+use arrow::array::{Array, ArrayRef, AsArray, StringArray};
+use arrow::datatypes::{DataType as ArrowDataType, Field as ArrowField, Schema as ArrowSchema};
+use arrow::ipc::reader::FileReader;
+use arrow::ipc::writer::FileWriter;
+use arrow::record_batch::RecordBatch;
+use databend_client::schema::{Schema, SchemaRef};
+use databend_client::{JsonRows, ResultFormatSettings};
+use tokio::task::JoinHandle;
+use tokio_stream::Stream;
+
+use crate::error::{Error, Result};
+use crate::rows::{Row, Rows};
+use crate::value::Value;
+
+static SPILL_FILE_SEQ: AtomicU64 = AtomicU64::new(0);
+
+/// How the spooled batches hold the rows of the result.
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub enum SpoolFormat {
+    /// Arrow pages as sent by the server.
+    Arrow,
+    /// The cells of JSON pages as nullable strings, decoded like JSON results
+    /// when read back.
+    Strings,
+}
+
+/// Collects the batches of a whole result, in memory up to a byte budget and
+/// in a temporary Arrow IPC file beyond it. The file is written and read on
+/// the blocking thread pool of the runtime.
+pub struct BatchSpool {
+    max_memory_bytes: usize,
+    spill_dir: PathBuf,
+    format: Option<SpoolFormat>,
+    memory: VecDeque<RecordBatch>,
+    memory_bytes: usize,
+    spill: Option<Spill>,
+}
+
+impl BatchSpool {
+    pub fn new(max_memory_bytes: usize, spill_dir: Option<&Path>) -> Self {
+        Self {
+            max_memory_bytes,
+            spill_dir: spill_dir
+                .map(Path::to_path_buf)
+                .unwrap_or_else(std::env::temp_dir),
+            format: None,
+            memory: VecDeque::new(),
+            memory_bytes: 0,
+            spill: None,
+        }
+    }
+
+    /// Add a batch of an arrow page.
+    pub async fn push(&mut self, batch: RecordBatch) -> Result<()> {
+        self.push_batch(batch, SpoolFormat::Arrow).await
+    }
+
+    /// Add the rows of a JSON page, keeping the cells as they are.
+    pub async fn push_json(&mut self, rows: &JsonRows, schema: &Schema) -> Result<()> {
+        if rows.is_empty() {
+            return Ok(());
+        }
+        let batch = strings_batch(rows, schema)?;
+        self.push_batch(batch, SpoolFormat::Strings).await
+    }
+
+    async fn push_batch(&mut self, batch: RecordBatch, format: SpoolFormat) -> Result<()> {
+        match self.format {
+            None => self.format = Some(format),
+            Some(f) if f != format => {
+                return Err(Error::InvalidResponse(
+                    "result mixes arrow and JSON pages".to_string(),
+                ))
+            }
+            Some(_) => {}
+        }
+        let size = batch.get_array_memory_size();
+        if self.spill.is_none() && self.memory_bytes + size <= self.max_memory_bytes {
+            self.memory_bytes += size;
+            self.memory.push_back(batch);
+            return Ok(());
+        }
+        // once spilled, later batches go to the file too to keep the order
+        let spill = self.spill.take();
+        let dir = self.spill_dir.clone();
+        let spill = blocking(move || {
+            let mut spill = match spill {
+                Some(spill) => spill,
+                None => Spill::create(&dir, &batch.schema())?,
+            };
+            spill.writer.write(&batch)?;
+            Ok(spill)
+        })
+        .await?;
+        self.spill = Some(spill);
+        Ok(())
+    }
+
+    pub fn spilled(&self) -> bool {
+        self.spill.is_some()
+    }
+
+    pub async fn finish(self) -> Result<SpooledBatches> {
+        let reader = match self.spill {
+            Some(spill) => Some(blocking(move || spill.into_reader()).await?),
+            None => None,
+        };
+        Ok(SpooledBatches {
+            format: self.format.unwrap_or(SpoolFormat::Arrow),
+            memory: self.memory,
+            reader,
+            reading: None,
+        })
+    }
+}
+
+/// Batches read back from a `BatchSpool`, the spill file is removed on drop.
+pub struct SpooledBatches {
+    format: SpoolFormat,
+    memory: VecDeque<RecordBatch>,
+    reader: Option<SpillReader>,
+    // the next batch being read from the spill file, with the reader
+    reading: Option<JoinHandle<(SpillReader, Option<Result<RecordBatch>>)>>,
+}
+
+impl SpooledBatches {
+    pub fn format(&self) -> SpoolFormat {
+        self.format
+    }
+
+    pub fn into_rows(self, schema: SchemaRef, settings: ResultFormatSettings) -> SpooledRows {
+        SpooledRows {
+            batches: self,
+            schema,
+            settings,
+            rows: VecDeque::new(),
+        }
+    }
+}
+
+impl Stream for SpooledBatches {
+    type Item = Result<RecordBatch>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        if let Some(batch) = self.memory.pop_front() {
+            return Poll::Ready(Some(Ok(batch)));
+        }
+        if self.reading.is_none() {
+            let mut reader = match self.reader.take() {
+                Some(reader) => reader,
+                None => return Poll::Ready(None),
+            };
+            self.reading = Some(tokio::task::spawn_blocking(move || {
+                let batch = reader.reader.next().map(|b| b.map_err(Into::into));
+                (reader, batch)
+            }));
+        }
+        let reading = self.reading.as_mut().unwrap();
+        match Pin::new(reading).poll(cx) {
+            Poll::Ready(Ok((reader, batch))) => {
+                self.reading = None;
+                // the file is removed with the reader once drained
+                if batch.is_some() {
+                    self.reader = Some(reader);
+                }
+                Poll::Ready(batch)
+            }
+            Poll::Ready(Err(e)) => {
+                self.reading = None;
+                Poll::Ready(Some(Err(Error::IO(format!("spool read failed: {e}")))))
+            }
+            Poll::Pending => Poll::Pending,
+        }
+    }
+}
+
+/// Rows decoded from the spooled batches one batch at a time.
+pub struct SpooledRows {
+    batches: SpooledBatches,
+    schema: SchemaRef,
+    settings: ResultFormatSettings,
+    rows: VecDeque<Row>,
+}
+
+impl SpooledRows {
+    fn decode(&self, batch: &RecordBatch) -> Result<Vec<Row>> {
+        match self.batches.format {
+            SpoolFormat::Arrow => {
+                let rows = Rows::try_from_batch(batch, self.schema.clone(), &self.settings)?;
+                Ok(rows.into_iter().collect())
+            }
+            SpoolFormat::Strings => rows_from_strings(batch, &self.schema, &self.settings),
+        }
+    }
+}
+
+impl Stream for SpooledRows {
+    type Item = Result<Row>;
+
+    fn poll_next(mut self: Pin<&mut Self>, cx: &mut Context<'_>) -> Poll<Option<Self::Item>> {
+        loop {
+            if let Some(row) = self.rows.pop_front() {
+                return Poll::Ready(Some(Ok(row)));
+            }
+            match Pin::new(&mut self.batches).poll_next(cx) {
+                Poll::Ready(Some(Ok(batch))) => match self.decode(&batch) {
+                    Ok(rows) => self.rows.extend(rows),
+                    Err(e) => return Poll::Ready(Some(Err(e))),
+                },
+                Poll::Ready(Some(Err(e))) => return Poll::Ready(Some(Err(e))),
+                Poll::Ready(None) => return Poll::Ready(None),
+                Poll::Pending => return Poll::Pending,
+            }
+        }
+    }
+}
+
+/// The cells of a JSON page as a batch of nullable strings, one column per
+/// field of `schema`.
+fn strings_batch(rows: &JsonRows, schema: &Schema) -> Result<RecordBatch> {
+    let fields = schema
+        .fields()
+        .iter()
+        .map(|f| ArrowField::new(&f.name, ArrowDataType::Utf8, true))
+        .collect::<Vec<_>>();
+    let columns = (0..rows.num_columns())
+        .map(|c| Arc::new(rows.iter().map(|row| row.get(c)).collect::<StringArray>()) as ArrayRef)
+        .collect();
+    Ok(RecordBatch::try_new(
+        Arc::new(ArrowSchema::new(fields)),
+        columns,
+    )?)
+}
+
+fn rows_from_strings(
+    batch: &RecordBatch,
+    schema: &SchemaRef,
+    settings: &ResultFormatSettings,
+) -> Result<Vec<Row>> {
+    let columns = batch
+        .columns()
+        .iter()
+        .map(|c| c.as_string::<i32>())
+        .collect::<Vec<_>>();
+    (0..batch.num_rows())
+        .map(|i| {
+            let values = schema
+                .fields()
+                .iter()
+                .zip(&columns)
+                .map(|(field, column)| {
+                    let cell = (!column.is_null(i)).then(|| column.value(i));
+                    Value::try_from((&field.data_type, cell, settings))
+                })
+                .collect::<Result<Vec<_>>>()?;
+            Ok(Row::new(schema.clone(), values))
+        })
+        .collect()
+}
+
+/// Run file I/O on the blocking thread pool.
+async fn blocking<T, F>(f: F) -> Result<T>
+where
+    T: Send + 'static,
+    F: FnOnce() -> Result<T> + Send + 'static,
+{
+    tokio::task::spawn_blocking(f)
+        .await
+        .map_err(|e| Error::IO(format!("spool task failed: {e}")))?
+}
+
+struct Spill {
+    file: SpillFile,
+    writer: FileWriter<BufWriter<File>>,
+}
+
+impl Spill {
+    fn create(dir: &Path, schema: &ArrowSchema) -> Result<Self> {
+        let file = SpillFile::create(dir)?;
+        let writer = FileWriter::try_new_buffered(file.create_file()?, schema)?;
+        Ok(Self { file, writer })
+    }
+
+    fn into_reader(self) -> Result<SpillReader> {
+        let Spill { file, mut writer } = self;
+        writer.finish()?;
+        drop(writer);
+        let reader = FileReader::try_new_buffered(File::open(&file.path)?, None)?;
+        Ok(SpillReader { _file: file, reader })
+    }
+}
+
+struct SpillReader {
+    _file: SpillFile,
+    reader: FileReader<BufReader<File>>,
+}
+
+struct SpillFile {
+    path: PathBuf,
+}
+
+impl SpillFile {
+    fn create(dir: &Path) -> Result<Self> {
+        std::fs::create_dir_all(dir)?;
+        let nanos = SystemTime::now()
+            .duration_since(UNIX_EPOCH)
+            .map(|d| d.as_nanos())
+            .unwrap_or_default();
+        let seq = SPILL_FILE_SEQ.fetch_add(1, Ordering::Relaxed);
+        let name = format!("databend-spool-{}-{nanos}-{seq}.arrow", std::process::id());
+        Ok(Self {
+            path: dir.join(name),
+        })
+    }
+
+    fn create_file(&self) -> Result<File> {
+        Ok(File::create_new(&self.path)?)
+    }
+}
+
+impl Drop for SpillFile {
+    fn drop(&mut self) {
+        let path = std::mem::take(&mut self.path);
+        match tokio::runtime::Handle::try_current() {
+            Ok(handle) => {
+                handle.spawn_blocking(move || std::fs::remove_file(path));
+            }
+            Err(_) => {
+                let _ = std::fs::remove_file(path);
+            }
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::value::NumberValue;
+    use arrow_array::Int32Array;
+    use arrow_schema::SchemaRef as ArrowSchemaRef;
+    use databend_client::schema::{DataType, Field, NumberDataType};
+    use tokio_stream::StreamExt;
+
+    fn batch(schema: &ArrowSchemaRef, values: Vec<i32>) -> RecordBatch {
+        let array: ArrayRef = Arc::new(Int32Array::from(values));
+        RecordBatch::try_new(schema.clone(), vec![array]).unwrap()
+    }
+
+    fn block_on<F: Future>(f: F) -> F::Output {
+        tokio::runtime::Builder::new_current_thread()
+            .build()
+            .unwrap()
+            .block_on(f)
+    }
+
+    #[test]
+    fn spool_spills_past_budget() -> Result<()> {
+        block_on(async {
+            let schema = Arc::new(ArrowSchema::new(vec![ArrowField::new(
+                "a",
+                ArrowDataType::Int32,
+                false,
+            )]));
+            let first = batch(&schema, vec![1, 2, 3]);
+            let budget = first.get_array_memory_size();
+            let mut spool = BatchSpool::new(budget, None);
+            spool.push(first).await?;
+            assert!(!spool.spilled());
+            spool.push(batch(&schema, vec![4, 5])).await?;
+            spool.push(batch(&schema, vec![6])).await?;
+            assert!(spool.spilled());
+
+            let values = spool
+                .finish()
+                .await?
+                .map(|batch| {
+                    let batch = batch?;
+                    let array = batch.column(0).as_any().downcast_ref::<Int32Array>().unwrap();
+                    Ok(array.values().to_vec())
+                })
+                .collect::<Result<Vec<_>>>()
+                .await?;
+            assert_eq!(values, vec![vec![1, 2, 3], vec![4, 5], vec![6]]);
+            Ok(())
+        })
+    }
+
+    #[test]
+    fn spool_json_pages_as_strings() -> Result<()> {
+        block_on(async {
+            let int64 = DataType::Number(NumberDataType::Int64);
+            let schema = Arc::new(Schema::from_vec(vec![
+                Field {
+                    name: "a".to_string(),
+                    data_type: DataType::Nullable(Box::new(int64.clone())),
+                },
+                Field {
+                    name: "b".to_string(),
+                    data_type: DataType::Array(Box::new(int64)),
+                },
+            ]));
+            let first: JsonRows = serde_json::from_str(r#"[["1","[1,2]"],[null,"[]"]]"#).unwrap();
+            let second: JsonRows = serde_json::from_str(r#"[["3","[3]"]]"#).unwrap();
+            // spill the second page
+            let mut spool = BatchSpool::new(1, None);
+            spool.push_json(&first, &schema).await?;
+            spool.push_json(&second, &schema).await?;
+            assert!(spool.spilled());
+
+            let rows = spool
+                .finish()
+                .await?
+                .into_rows(schema, ResultFormatSettings::default())
+                .map(|row| row.map(|row| row.values().to_vec()))
+                .collect::<Result<Vec<_>>>()
+                .await?;
+            let int = |v| Value::Number(NumberValue::Int64(v));
+            assert_eq!(
+                rows,
+                vec![
+                    vec![int(1), Value::Array(vec![int(1), int(2)])],
+                    vec![Value::Null, Value::Array(vec![])],
+                    vec![int(3), Value::Array(vec![int(3)])],
+                ]
+            );
+            Ok(())
+        })
+    }
+
+    #[test]
+    fn reject_mixed_pages() -> Result<()> {
+        block_on(async {
+            let schema = Arc::new(ArrowSchema::new(vec![ArrowField::new(
+                "a",
+                ArrowDataType::Int32,
+                false,
+            )]));
+            let rows: JsonRows = serde_json::from_str(r#"[["1"]]"#).unwrap();
+            let json_schema = Schema::from_vec(vec![Field {
+                name: "a".to_string(),
+                data_type: DataType::Number(NumberDataType::Int32),
+            }]);
+            let mut spool = BatchSpool::new(usize::MAX, None);
+            spool.push(batch(&schema, vec![1])).await?;
+            assert!(spool.push_json(&rows, &json_schema).await.is_err());
+            Ok(())
+        })
+    }
+}
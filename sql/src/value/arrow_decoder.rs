@@ -478,6 +478,185 @@ impl
     }
 }
 
+/// Decodes the cells of one arrow column into `Value`s.
+///
+/// The extension type, the concrete array type and the settings are resolved
+/// once per column, so decoding a cell is a single match on an already
+/// downcast array. Types without a specialized path fall back to the per-cell
+/// `Value::try_from`.
+pub(crate) struct ColumnDecoder<'a> {
+    field: &'a ArrowField,
+    array: &'a Arc<dyn ArrowArray>,
+    settings: &'a ResultFormatSettings,
+    kind: ColumnDecoderKind<'a>,
+}
+
+enum ColumnDecoderKind<'a> {
+    Null,
+    Boolean(&'a BooleanArray),
+    Int8(&'a Int8Array),
+    Int16(&'a Int16Array),
+    Int32(&'a Int32Array),
+    Int64(&'a Int64Array),
+    UInt8(&'a UInt8Array),
+    UInt16(&'a UInt16Array),
+    UInt32(&'a UInt32Array),
+    UInt64(&'a UInt64Array),
+    Float32(&'a Float32Array),
+    Float64(&'a Float64Array),
+    Decimal64(&'a Decimal64Array, DecimalSize),
+    Decimal128(&'a Decimal128Array, DecimalSize),
+    Decimal256(&'a Decimal256Array, DecimalSize),
+    Binary(&'a BinaryArray),
+    LargeBinary(&'a LargeBinaryArray),
+    String(&'a StringArray),
+    LargeString(&'a LargeStringArray),
+    StringView(&'a StringViewArray),
+    Timestamp(&'a TimestampMicrosecondArray),
+    Date(&'a Date32Array),
+    VariantString(&'a StringArray),
+    VariantLargeString(&'a LargeStringArray),
+    VariantJsonb(&'a LargeBinaryArray),
+    VariantText(&'a LargeBinaryArray),
+    Fallback,
+}
+
+impl<'a> ColumnDecoder<'a> {
+    pub(crate) fn new(
+        field: &'a ArrowField,
+        array: &'a Arc<dyn ArrowArray>,
+        settings: &'a ResultFormatSettings,
+    ) -> Self {
+        let kind = Self::resolve(field, array, settings).unwrap_or(ColumnDecoderKind::Fallback);
+        Self {
+            field,
+            array,
+            settings,
+            kind,
+        }
+    }
+
+    fn resolve(
+        field: &ArrowField,
+        array: &'a Arc<dyn ArrowArray>,
+        settings: &ResultFormatSettings,
+    ) -> Option<ColumnDecoderKind<'a>> {
+        let any = array.as_any();
+        if let Some(extend_type) = field.metadata().get(EXTENSION_KEY) {
+            if extend_type.as_str() != ARROW_EXT_TYPE_VARIANT {
+                return None;
+            }
+            return match array.data_type() {
+                ArrowDataType::Utf8 => any.downcast_ref().map(ColumnDecoderKind::VariantString),
+                ArrowDataType::LargeUtf8 => any
+                    .downcast_ref()
+                    .map(ColumnDecoderKind::VariantLargeString),
+                ArrowDataType::LargeBinary => {
+                    if settings.arrow_result_version.unwrap_or_default() > 1 {
+                        any.downcast_ref().map(ColumnDecoderKind::VariantText)
+                    } else {
+                        any.downcast_ref().map(ColumnDecoderKind::VariantJsonb)
+                    }
+                }
+                _ => None,
+            };
+        }
+        let decimal_size = |p: u8, s: i8| DecimalSize {
+            precision: p,
+            scale: s as u8,
+        };
+        match field.data_type() {
+            ArrowDataType::Null => Some(ColumnDecoderKind::Null),
+            ArrowDataType::Boolean => any.downcast_ref().map(ColumnDecoderKind::Boolean),
+            ArrowDataType::Int8 => any.downcast_ref().map(ColumnDecoderKind::Int8),
+            ArrowDataType::Int16 => any.downcast_ref().map(ColumnDecoderKind::Int16),
+            ArrowDataType::Int32 => any.downcast_ref().map(ColumnDecoderKind::Int32),
+            ArrowDataType::Int64 => any.downcast_ref().map(ColumnDecoderKind::Int64),
+            ArrowDataType::UInt8 => any.downcast_ref().map(ColumnDecoderKind::UInt8),
+            ArrowDataType::UInt16 => any.downcast_ref().map(ColumnDecoderKind::UInt16),
+            ArrowDataType::UInt32 => any.downcast_ref().map(ColumnDecoderKind::UInt32),
+            ArrowDataType::UInt64 => any.downcast_ref().map(ColumnDecoderKind::UInt64),
+            ArrowDataType::Float32 => any.downcast_ref().map(ColumnDecoderKind::Float32),
+            ArrowDataType::Float64 => any.downcast_ref().map(ColumnDecoderKind::Float64),
+            ArrowDataType::Decimal64(p, s) => any
+                .downcast_ref()
+                .map(|a| ColumnDecoderKind::Decimal64(a, decimal_size(*p, *s))),
+            ArrowDataType::Decimal128(p, s) => any
+                .downcast_ref()
+                .map(|a| ColumnDecoderKind::Decimal128(a, decimal_size(*p, *s))),
+            ArrowDataType::Decimal256(p, s) => any
+                .downcast_ref()
+                .map(|a| ColumnDecoderKind::Decimal256(a, decimal_size(*p, *s))),
+            ArrowDataType::Binary => any.downcast_ref().map(ColumnDecoderKind::Binary),
+            ArrowDataType::LargeBinary => any.downcast_ref().map(ColumnDecoderKind::LargeBinary),
+            ArrowDataType::Utf8 => any.downcast_ref().map(ColumnDecoderKind::String),
+            ArrowDataType::LargeUtf8 => any.downcast_ref().map(ColumnDecoderKind::LargeString),
+            ArrowDataType::Utf8View => any.downcast_ref().map(ColumnDecoderKind::StringView),
+            ArrowDataType::Timestamp(TimeUnit::Microsecond, None) => {
+                any.downcast_ref().map(ColumnDecoderKind::Timestamp)
+            }
+            ArrowDataType::Date32 => any.downcast_ref().map(ColumnDecoderKind::Date),
+            _ => None,
+        }
+    }
+
+    pub(crate) fn decode(&self, seq: usize) -> std::result::Result<Value, Error> {
+        if matches!(self.kind, ColumnDecoderKind::Fallback) {
+            return Value::try_from((self.field, self.array, seq, self.settings));
+        }
+        if self.field.is_nullable() && self.array.is_null(seq) {
+            return Ok(Value::Null);
+        }
+        let value = match &self.kind {
+            ColumnDecoderKind::Null => Value::Null,
+            ColumnDecoderKind::Boolean(a) => Value::Boolean(a.value(seq)),
+            ColumnDecoderKind::Int8(a) => Value::Number(NumberValue::Int8(a.value(seq))),
+            ColumnDecoderKind::Int16(a) => Value::Number(NumberValue::Int16(a.value(seq))),
+            ColumnDecoderKind::Int32(a) => Value::Number(NumberValue::Int32(a.value(seq))),
+            ColumnDecoderKind::Int64(a) => Value::Number(NumberValue::Int64(a.value(seq))),
+            ColumnDecoderKind::UInt8(a) => Value::Number(NumberValue::UInt8(a.value(seq))),
+            ColumnDecoderKind::UInt16(a) => Value::Number(NumberValue::UInt16(a.value(seq))),
+            ColumnDecoderKind::UInt32(a) => Value::Number(NumberValue::UInt32(a.value(seq))),
+            ColumnDecoderKind::UInt64(a) => Value::Number(NumberValue::UInt64(a.value(seq))),
+            ColumnDecoderKind::Float32(a) => Value::Number(NumberValue::Float32(a.value(seq))),
+            ColumnDecoderKind::Float64(a) => Value::Number(NumberValue::Float64(a.value(seq))),
+            ColumnDecoderKind::Decimal64(a, size) => {
+                Value::Number(NumberValue::Decimal64(a.value(seq), *size))
+            }
+            ColumnDecoderKind::Decimal128(a, size) => {
+                Value::Number(NumberValue::Decimal128(a.value(seq), *size))
+            }
+            ColumnDecoderKind::Decimal256(a, size) => {
+                let v = i256::from_le_bytes(a.value(seq).to_le_bytes());
+                Value::Number(NumberValue::Decimal256(v, *size))
+            }
+            ColumnDecoderKind::Binary(a) => Value::Binary(a.value(seq).to_vec()),
+            ColumnDecoderKind::LargeBinary(a) => Value::Binary(a.value(seq).to_vec()),
+            ColumnDecoderKind::String(a) => Value::String(a.value(seq).to_string()),
+            ColumnDecoderKind::LargeString(a) => Value::String(a.value(seq).to_string()),
+            ColumnDecoderKind::StringView(a) => Value::String(a.value(seq).to_string()),
+            ColumnDecoderKind::Timestamp(a) => {
+                let ts = clamp_ts(a.value(seq));
+                let timestamp = Timestamp::from_microsecond(ts).map_err(|e| {
+                    Error::Parsing(format!("Invalid timestamp_micros {ts}: {e}"))
+                })?;
+                Value::Timestamp(timestamp.to_zoned(self.settings.timezone.clone()))
+            }
+            ColumnDecoderKind::Date(a) => Value::Date(a.value(seq)),
+            ColumnDecoderKind::VariantString(a) => Value::Variant(a.value(seq).to_string()),
+            ColumnDecoderKind::VariantLargeString(a) => Value::Variant(a.value(seq).to_string()),
+            ColumnDecoderKind::VariantJsonb(a) => {
+                Value::Variant(RawJsonb::new(a.value(seq)).to_string())
+            }
+            ColumnDecoderKind::VariantText(a) => {
+                Value::Variant(String::from_utf8_lossy(a.value(seq)).into_owned())
+            }
+            ColumnDecoderKind::Fallback => unreachable!(),
+        };
+        Ok(value)
+    }
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -524,4 +703,66 @@ mod tests {
 
         assert_eq!(value, Value::Variant("{\"c\":3}".to_string()));
     }
+
+    #[test]
+    fn column_decoder_matches_per_cell_decoding() {
+        let settings = ResultFormatSettings::default();
+        let cases: Vec<(ArrowField, ArrayRef)> = vec![
+            (
+                ArrowField::new("i", ArrowDataType::Int64, true),
+                Arc::new(Int64Array::from(vec![Some(1), None, Some(-3)])),
+            ),
+            (
+                ArrowField::new("s", ArrowDataType::Utf8, false),
+                Arc::new(StringArray::from(vec!["a", "b", "c"])),
+            ),
+            (
+                ArrowField::new(
+                    "t",
+                    ArrowDataType::Timestamp(TimeUnit::Microsecond, None),
+                    true,
+                ),
+                Arc::new(TimestampMicrosecondArray::from(vec![Some(0), None, Some(1)])),
+            ),
+            (
+                ArrowField::new("d", ArrowDataType::Decimal128(10, 2), false),
+                Arc::new(
+                    Decimal128Array::from(vec![1, 2, 3])
+                        .with_precision_and_scale(10, 2)
+                        .unwrap(),
+                ),
+            ),
+            (
+                variant_field(ArrowDataType::Utf8),
+                Arc::new(StringArray::from(vec!["1", "[]", "{}"])),
+            ),
+            (
+                ArrowField::new(
+                    "l",
+                    ArrowDataType::List(Arc::new(ArrowField::new(
+                        "item",
+                        ArrowDataType::Int32,
+                        true,
+                    ))),
+                    false,
+                ),
+                Arc::new(ListArray::from_iter_primitive::<
+                    arrow_array::types::Int32Type,
+                    _,
+                    _,
+                >(vec![
+                    Some(vec![Some(1)]),
+                    Some(vec![]),
+                    Some(vec![None, Some(2)]),
+                ])),
+            ),
+        ];
+        for (field, array) in cases.iter() {
+            let decoder = ColumnDecoder::new(field, array, &settings);
+            for i in 0..array.len() {
+                let expected = Value::try_from((field, array, i, &settings)).unwrap();
+                assert_eq!(decoder.decode(i).unwrap(), expected, "field {field:?}");
+            }
+        }
+    }
 }
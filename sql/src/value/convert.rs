@@ -201,6 +201,18 @@ where
     }
 }
 
+impl TryFrom<Value> for serde_json::Value {
+    type Error = Error;
+    fn try_from(val: Value) -> Result<Self> {
+        match val {
+            Value::Variant(s) => serde_json::from_str(&s)
+                .map_err(|e| ConvertError::new("json", s).with_message(e.to_string()).into()),
+            Value::Null => Ok(serde_json::Value::Null),
+            _ => Err(ConvertError::new("json", format!("{val}")).into()),
+        }
+    }
+}
+
 macro_rules! replace_expr {
     ($_t:tt $sub:expr) => {
         $sub
@@ -495,3 +507,21 @@ impl From<&f64> for Value {
         Value::Number(NumberValue::Float64(*n))
     }
 }
+
+impl From<&serde_json::Value> for Value {
+    fn from(v: &serde_json::Value) -> Self {
+        Value::Variant(v.to_string())
+    }
+}
+
+impl From<serde_json::Value> for Value {
+    fn from(v: serde_json::Value) -> Self {
+        Value::Variant(v.to_string())
+    }
+}
+
+impl From<&Vec<u8>> for Value {
+    fn from(v: &Vec<u8>) -> Self {
+        Value::Binary(v.clone())
+    }
+}
@@ -14,7 +14,9 @@
 
 mod display;
 mod into_string;
+mod ndjson;
 mod result_encode;
 mod to_sql_string;
 
+pub use ndjson::NdjsonRow;
 pub use result_encode::FormatOptions;
@@ -0,0 +1,130 @@
+// Copyright 2021 Datafuse Labs
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+use crate::_macro_internal::Value;
+use serde::ser::{Error as _, SerializeMap, SerializeSeq};
+use serde::{Serialize, Serializer};
+use serde_json::value::RawValue;
+
+/// One row encoded as an NDJSON object, in the shape the NDJSON loader of
+/// `INSERT ... FROM @_databend_load` reads back into the table columns.
+pub struct NdjsonRow<'a> {
+    names: &'a [&'a str],
+    values: &'a [Value],
+}
+
+impl<'a> NdjsonRow<'a> {
+    pub fn new(names: &'a [&'a str], values: &'a [Value]) -> Self {
+        Self { names, values }
+    }
+}
+
+impl Serialize for NdjsonRow<'_> {
+    fn serialize<S: Serializer>(&self, serializer: S) -> Result<S::Ok, S::Error> {
+        let mut map = serializer.serialize_map(Some(self.names.len()))?;
+        for (name, value) in self.names.iter().zip(self.values) {
+            map.serialize_entry(name, &NdjsonValue(value))?;
+        }
+        map.end()
+    }
+}
+
+struct NdjsonValue<'a>(&'a Value);
+
+impl Serialize for NdjsonValue<'_> {
+    fn serialize<S: Serializer>(&self, serializer: S) -> Result<S::Ok, S::Error> {
+        match self.0 {
+            // embed the document itself, a JSON string would be loaded as a string variant
+            Value::Variant(v) => {
+                let raw: &RawValue = serde_json::from_str(v).map_err(S::Error::custom)?;
+                raw.serialize(serializer)
+            }
+            // the loader decodes binary columns from hex strings
+            Value::Binary(b) => serializer.serialize_str(&hex::encode(b)),
+            Value::Array(items) | Value::Tuple(items) => {
+                let mut seq = serializer.serialize_seq(Some(items.len()))?;
+                for item in items {
+                    seq.serialize_element(&NdjsonValue(item))?;
+                }
+                seq.end()
+            }
+            Value::Map(kvs) => {
+                let mut map = serializer.serialize_map(Some(kvs.len()))?;
+                for (k, v) in kvs {
+                    map.serialize_entry(&map_key(k), &NdjsonValue(v))?;
+                }
+                map.end()
+            }
+            other => other.to_json_value().serialize(serializer),
+        }
+    }
+}
+
+// object keys are always strings, the loader parses them with the key type,
+// so they carry the bare text of the key without SQL quoting
+fn map_key(key: &Value) -> String {
+    match NdjsonValue(key).serialize(serde_json::value::Serializer) {
+        Ok(serde_json::Value::String(s)) => s,
+        Ok(other) => other.to_string(),
+        Err(_) => key.to_sql_string(),
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::value::NumberValue;
+
+    fn encode(values: &[Value]) -> String {
+        let names = (0..values.len())
+            .map(|i| ["a", "b", "c", "d"][i])
+            .collect::<Vec<_>>();
+        serde_json::to_string(&NdjsonRow::new(&names, values)).unwrap()
+    }
+
+    #[test]
+    fn embed_variant_documents() {
+        let values = vec![
+            Value::Number(NumberValue::Int32(1)),
+            Value::Variant(r#"{"k":[1,2.50,"x"]}"#.to_string()),
+            Value::Variant("12345678901234567890123".to_string()),
+        ];
+        assert_eq!(
+            encode(&values),
+            r#"{"a":1,"b":{"k":[1,2.50,"x"]},"c":12345678901234567890123}"#
+        );
+
+        let invalid = vec![Value::Variant("{".to_string())];
+        assert!(serde_json::to_string(&NdjsonRow::new(&["a"], &invalid)).is_err());
+    }
+
+    #[test]
+    fn encode_binary_and_map_keys() {
+        let values = vec![
+            Value::Binary(vec![0xab, 0x01]),
+            Value::Map(vec![
+                (Value::String("x".to_string()), Value::Binary(vec![0xff])),
+                (
+                    Value::Number(NumberValue::Int64(7)),
+                    Value::Variant("[true]".to_string()),
+                ),
+            ]),
+            Value::Map(vec![(Value::Date(0), Value::Null)]),
+        ];
+        assert_eq!(
+            encode(&values),
+            r#"{"a":"ab01","b":{"x":"ff","7":[true]},"c":{"1970-01-01":null}}"#
+        );
+    }
+}
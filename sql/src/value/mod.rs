@@ -19,9 +19,10 @@ mod format;
 mod interval;
 mod string_decoder;
 
+pub(crate) use arrow_decoder::ColumnDecoder;
 pub use base::{GeoValue, NumberValue, Value};
 pub use convert::{zoned_to_chrono_datetime, zoned_to_chrono_fixed_offset};
 pub use interval::Interval;
 
 use base::{DAYS_FROM_CE, TIMESTAMP_FORMAT, TIMESTAMP_TIMEZONE_FORMAT};
-pub use format::FormatOptions;
+pub use format::{FormatOptions, NdjsonRow};
@@ -25,9 +25,12 @@ use databend_client::schema::{DataType, DecimalDataType, DecimalSize, NumberData
 use databend_client::ResultFormatSettings;
 use ethnum::i256;
 use hex;
-use jiff::{civil::DateTime as JiffDateTime, tz::TimeZone, Zoned};
+use jiff::civil::DateTime as JiffDateTime;
+use jiff::tz::{AmbiguousOffset, Offset, TimeZone};
+use jiff::{SignedDuration, Zoned};
 use serde::Deserialize;
 use serde_json::{value::RawValue, Deserializer};
+use std::cell::RefCell;
 use std::io::{BufRead, Cursor};
 use std::str::FromStr;
 
@@ -58,13 +61,68 @@ impl TryFrom<(&DataType, String, &ResultFormatSettings)> for Value {
     type Error = Error;
 
     fn try_from((t, v, settings): (&DataType, String, &ResultFormatSettings)) -> Result<Self> {
+        // keep the string for the types holding it, the others are parsed
+        // from the slice
+        match t {
+            DataType::String => Ok(Self::String(v)),
+            DataType::Bitmap => Ok(Self::Bitmap(v)),
+            DataType::Variant => Ok(Self::Variant(v)),
+            DataType::Geometry => Ok(Self::Geometry(GeoValue::from_string(
+                v,
+                settings.geometry_output_format,
+            )?)),
+            DataType::Geography => Ok(Self::Geography(GeoValue::from_string(
+                v,
+                settings.geometry_output_format,
+            )?)),
+            DataType::Interval => Ok(Self::Interval(v)),
+            DataType::Nullable(inner) => match inner.as_ref() {
+                DataType::String => Ok(Self::String(v)),
+                _ => {
+                    // not string type, try to check if it is NULL
+                    // for compatible with old version server
+                    if v == NULL_VALUE {
+                        Ok(Self::Null)
+                    } else {
+                        Self::try_from((inner.as_ref(), v, settings))
+                    }
+                }
+            },
+            _ => Self::try_from((t, v.as_str(), settings)),
+        }
+    }
+}
+
+impl TryFrom<(&DataType, Option<&str>, &ResultFormatSettings)> for Value {
+    type Error = Error;
+
+    fn try_from(
+        (t, v, settings): (&DataType, Option<&str>, &ResultFormatSettings),
+    ) -> Result<Self> {
+        match v {
+            Some(v) => Self::try_from((t, v, settings)),
+            None => match t {
+                DataType::Null => Ok(Self::Null),
+                DataType::Nullable(_) => Ok(Self::Null),
+                _ => Err(Error::InvalidResponse(
+                    "NULL value for non-nullable field".to_string(),
+                )),
+            },
+        }
+    }
+}
+
+impl TryFrom<(&DataType, &str, &ResultFormatSettings)> for Value {
+    type Error = Error;
+
+    fn try_from((t, v, settings): (&DataType, &str, &ResultFormatSettings)) -> Result<Self> {
         match t {
             DataType::Null => Ok(Self::Null),
             DataType::EmptyArray => Ok(Self::EmptyArray),
             DataType::EmptyMap => Ok(Self::EmptyMap),
             DataType::Boolean => Ok(Self::Boolean(v == "1")),
             DataType::Binary => Ok(Self::Binary(hex::decode(v)?)),
-            DataType::String => Ok(Self::String(v)),
+            DataType::String => Ok(Self::String(v.to_string())),
             DataType::Number(NumberDataType::Int8) => {
                 Ok(Self::Number(NumberValue::Int8(v.parse()?)))
             }
@@ -96,39 +154,33 @@ impl TryFrom<(&DataType, String, &ResultFormatSettings)> for Value {
                 Ok(Self::Number(NumberValue::Float64(v.parse()?)))
             }
             DataType::Decimal(DecimalDataType::Decimal64(size)) => {
-                let d = parse_decimal(v.as_str(), *size)?;
+                let d = parse_decimal(v, *size)?;
                 Ok(Self::Number(d))
             }
             DataType::Decimal(DecimalDataType::Decimal128(size)) => {
-                let d = parse_decimal(v.as_str(), *size)?;
+                let d = parse_decimal(v, *size)?;
                 Ok(Self::Number(d))
             }
             DataType::Decimal(DecimalDataType::Decimal256(size)) => {
-                let d = parse_decimal(v.as_str(), *size)?;
+                let d = parse_decimal(v, *size)?;
                 Ok(Self::Number(d))
             }
-            DataType::Timestamp => parse_timestamp(v.as_str(), &settings.timezone),
-            DataType::TimestampTz => {
-                let t = Zoned::strptime(TIMESTAMP_TIMEZONE_FORMAT, v.as_str())?;
-                Ok(Self::TimestampTz(t))
-            }
-            DataType::Date => Ok(Self::Date(
-                NaiveDate::parse_from_str(v.as_str(), "%Y-%m-%d")?.num_days_from_ce()
-                    - DAYS_FROM_CE,
-            )),
-            DataType::Bitmap => Ok(Self::Bitmap(v)),
-            DataType::Variant => Ok(Self::Variant(v)),
+            DataType::Timestamp => parse_timestamp(v, &settings.timezone),
+            DataType::TimestampTz => parse_timestamp_tz(v),
+            DataType::Date => Ok(Self::Date(parse_date(v)?)),
+            DataType::Bitmap => Ok(Self::Bitmap(v.to_string())),
+            DataType::Variant => Ok(Self::Variant(v.to_string())),
             DataType::Geometry => Ok(Self::Geometry(GeoValue::from_string(
-                v,
+                v.to_string(),
                 settings.geometry_output_format,
             )?)),
             DataType::Geography => Ok(Self::Geography(GeoValue::from_string(
-                v,
+                v.to_string(),
                 settings.geometry_output_format,
             )?)),
-            DataType::Interval => Ok(Self::Interval(v)),
+            DataType::Interval => Ok(Self::Interval(v.to_string())),
             DataType::Array(_) | DataType::Map(_) | DataType::Tuple(_) | DataType::Vector(_) => {
-                let mut reader = Cursor::new(v.as_str());
+                let mut reader = Cursor::new(v);
                 let decoder = ValueDecoder {
                     settings: settings.clone(),
                 };
@@ -313,8 +365,7 @@ impl ValueDecoder {
             reader.read_quoted_text(&mut buf, b'\'')?;
         }
         let v = unsafe { std::str::from_utf8_unchecked(&buf) };
-        let days = NaiveDate::parse_from_str(v, "%Y-%m-%d")?.num_days_from_ce() - DAYS_FROM_CE;
-        Ok(Value::Date(days))
+        Ok(Value::Date(parse_date(v)?))
     }
 
     fn read_timestamp<R: AsRef<[u8]>>(&self, reader: &mut Cursor<R>) -> Result<Value> {
@@ -332,8 +383,7 @@ impl ValueDecoder {
             reader.read_quoted_text(&mut buf, b'\'')?;
         }
         let v = unsafe { std::str::from_utf8_unchecked(&buf) };
-        let t = Zoned::strptime(TIMESTAMP_TIMEZONE_FORMAT, v)?;
-        Ok(Value::TimestampTz(t))
+        parse_timestamp_tz(v)
     }
 
     fn read_interval<R: AsRef<[u8]>>(&self, reader: &mut Cursor<R>) -> Result<Value> {
@@ -502,8 +552,149 @@ impl ValueDecoder {
     }
 }
 
+// spans kept by `local_offset`, enough for a column crossing a few transitions
+const OFFSET_SPANS_CAPACITY: usize = 4;
+
+thread_local! {
+    // offset spans resolved by `parse_timestamp`, the oldest one first
+    static OFFSET_SPANS: RefCell<Vec<OffsetSpan>> = const { RefCell::new(Vec::new()) };
+}
+
+/// The civil datetimes `[start, end)` of the timezone named `name` that map to
+/// `offset` alone, between two transitions of the timezone.
+struct OffsetSpan {
+    name: String,
+    start: JiffDateTime,
+    end: JiffDateTime,
+    offset: Offset,
+}
+
+// The parsers below read the layouts Databend outputs by hand, and fall back
+// to the format strings for anything else.
+
+fn parse_digits(bytes: &[u8]) -> Option<u32> {
+    bytes.iter().try_fold(0u32, |acc, b| {
+        b.is_ascii_digit().then(|| acc * 10 + (b - b'0') as u32)
+    })
+}
+
+/// `%Y-%m-%d`, with a 4 digit year.
+fn parse_ymd(bytes: &[u8]) -> Option<(i32, u32, u32)> {
+    if bytes.len() < 10 || bytes[4] != b'-' || bytes[7] != b'-' {
+        return None;
+    }
+    Some((
+        parse_digits(&bytes[..4])? as i32,
+        parse_digits(&bytes[5..7])?,
+        parse_digits(&bytes[8..10])?,
+    ))
+}
+
+/// `%Y-%m-%d %H:%M:%S` with up to 9 fraction digits, returning the length
+/// read.
+fn parse_datetime_prefix(bytes: &[u8]) -> Option<(JiffDateTime, usize)> {
+    let (year, month, day) = parse_ymd(bytes)?;
+    if bytes.len() < 19 || bytes[10] != b' ' || bytes[13] != b':' || bytes[16] != b':' {
+        return None;
+    }
+    let hour = parse_digits(&bytes[11..13])?;
+    let minute = parse_digits(&bytes[14..16])?;
+    let second = parse_digits(&bytes[17..19])?;
+    let mut end = 19;
+    let mut nanos = 0;
+    if bytes.get(19) == Some(&b'.') {
+        let n = bytes[20..].iter().take_while(|b| b.is_ascii_digit()).count();
+        if n == 0 || n > 9 {
+            return None;
+        }
+        nanos = parse_digits(&bytes[20..20 + n])? * 10u32.pow(9 - n as u32);
+        end = 20 + n;
+    }
+    let dt = JiffDateTime::new(
+        year as i16,
+        month as i8,
+        day as i8,
+        hour as i8,
+        minute as i8,
+        second as i8,
+        nanos as i32,
+    )
+    .ok()?;
+    Some((dt, end))
+}
+
+fn parse_date(v: &str) -> Result<i32> {
+    let date = match parse_ymd(v.as_bytes()) {
+        Some((year, month, day)) if v.len() == 10 => NaiveDate::from_ymd_opt(year, month, day),
+        _ => None,
+    };
+    let date = match date {
+        Some(date) => date,
+        None => NaiveDate::parse_from_str(v, "%Y-%m-%d")?,
+    };
+    Ok(date.num_days_from_ce() - DAYS_FROM_CE)
+}
+
+/// The offset of `tz` at the civil datetime `dt`, `None` if it is ambiguous or
+/// does not exist. Resolved once for all the datetimes between two transitions.
+fn local_offset(tz: &TimeZone, dt: JiffDateTime) -> Option<Offset> {
+    let name = tz.iana_name()?;
+    OFFSET_SPANS.with(|spans| {
+        let mut spans = spans.borrow_mut();
+        let cached = spans
+            .iter()
+            .find(|span| span.start <= dt && dt < span.end && span.name == name);
+        if let Some(span) = cached {
+            return Some(span.offset);
+        }
+        let span = offset_span(tz, name, dt)?;
+        let offset = span.offset;
+        if spans.len() >= OFFSET_SPANS_CAPACITY {
+            spans.remove(0);
+        }
+        spans.push(span);
+        Some(offset)
+    })
+}
+
+fn offset_span(tz: &TimeZone, name: &str, dt: JiffDateTime) -> Option<OffsetSpan> {
+    let offset = match tz.to_ambiguous_timestamp(dt).offset() {
+        AmbiguousOffset::Unambiguous { offset } => offset,
+        _ => return None,
+    };
+    let ts = offset.to_timestamp(dt).ok()?;
+    let nanosecond = SignedDuration::from_nanos(1);
+    // the span stops where the civil times of the offsets around a transition
+    // overlap, when the clocks go back
+    let start = match tz.preceding(ts.checked_add(nanosecond).ok()?).next() {
+        Some(prev) => {
+            let before = tz.to_offset(prev.timestamp().checked_sub(nanosecond).ok()?);
+            before.max(offset).to_datetime(prev.timestamp())
+        }
+        None => JiffDateTime::MIN,
+    };
+    let end = match tz.following(ts).next() {
+        Some(next) => next.offset().min(offset).to_datetime(next.timestamp()),
+        None => JiffDateTime::MAX,
+    };
+    Some(OffsetSpan {
+        name: name.to_string(),
+        start,
+        end,
+        offset,
+    })
+}
+
 fn parse_timestamp(ts_string: &str, tz: &TimeZone) -> Result<Value> {
-    let local = JiffDateTime::strptime(TIMESTAMP_FORMAT, ts_string)?;
+    let local = match parse_datetime_prefix(ts_string.as_bytes()) {
+        Some((dt, end)) if end == ts_string.len() => dt,
+        _ => JiffDateTime::strptime(TIMESTAMP_FORMAT, ts_string)?,
+    };
+    if let Some(offset) = local_offset(tz, local) {
+        if let Ok(ts) = offset.to_timestamp(local) {
+            return Ok(Value::Timestamp(ts.to_zoned(tz.clone())));
+        }
+    }
     let dt_with_tz = local.to_zoned(tz.clone()).map_err(|e| {
         Error::Parsing(format!(
             "time {ts_string} not exists in timezone {tz:?}: {e}"
@@ -512,7 +703,74 @@ fn parse_timestamp(ts_string: &str, tz: &TimeZone) -> Result<Value> {
     Ok(Value::Timestamp(dt_with_tz))
 }
 
+/// `TIMESTAMP_FORMAT` followed by an offset like `+0800`.
+fn parse_timestamp_tz_fast(v: &str) -> Option<Zoned> {
+    let bytes = v.as_bytes();
+    let (dt, end) = parse_datetime_prefix(bytes)?;
+    let tail = &bytes[end..];
+    if tail.len() != 6 || tail[0] != b' ' {
+        return None;
+    }
+    let sign = match tail[1] {
+        b'+' => 1,
+        b'-' => -1,
+        _ => return None,
+    };
+    let hours = parse_digits(&tail[2..4])? as i32;
+    let minutes = parse_digits(&tail[4..6])? as i32;
+    let offset = Offset::from_seconds(sign * (hours * 3600 + minutes * 60)).ok()?;
+    let ts = offset.to_timestamp(dt).ok()?;
+    Some(ts.to_zoned(TimeZone::fixed(offset)))
+}
+
+fn parse_timestamp_tz(v: &str) -> Result<Value> {
+    let t = match parse_timestamp_tz_fast(v) {
+        Some(t) => t,
+        None => Zoned::strptime(TIMESTAMP_TIMEZONE_FORMAT, v)?,
+    };
+    Ok(Value::TimestampTz(t))
+}
+
+/// Plain decimals fitting in an `i128`, read without building the digit
+/// string.
+fn parse_decimal_fast(text: &str, size: DecimalSize) -> Option<NumberValue> {
+    if size.precision > 38 {
+        return None;
+    }
+    let (is_negative, bytes) = match text.as_bytes().split_first() {
+        Some((&b'-', rest)) => (true, rest),
+        _ => (false, text.as_bytes()),
+    };
+    let mut value: i128 = 0;
+    let mut digits = 0;
+    let mut point = false;
+    for &b in bytes {
+        match b {
+            b'0'..=b'9' => {
+                value = value.checked_mul(10)?.checked_add((b - b'0') as i128)?;
+                digits += 1;
+            }
+            b'.' if !point => point = true,
+            _ => return None,
+        }
+    }
+    if digits == 0 {
+        return None;
+    }
+    if is_negative {
+        value = -value;
+    }
+    if size.precision > 19 {
+        Some(NumberValue::Decimal128(value, size))
+    } else {
+        Some(NumberValue::Decimal64(i64::try_from(value).ok()?, size))
+    }
+}
+
 fn parse_decimal(text: &str, size: DecimalSize) -> Result<NumberValue> {
+    if let Some(d) = parse_decimal_fast(text, size) {
+        return Ok(d);
+    }
     let mut start = 0;
     let bytes = text.as_bytes();
     let mut is_negative = false;
@@ -580,3 +838,96 @@ fn parse_decimal(text: &str, size: DecimalSize) -> Result<NumberValue> {
         }
     }
 }
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use jiff::civil::{Date as JiffDate, Time as JiffTime};
+
+    #[test]
+    fn fast_paths_match_format_strings() {
+        for v in ["2024-02-29", "0001-01-01", "9999-12-31"] {
+            let expected = NaiveDate::parse_from_str(v, "%Y-%m-%d")
+                .unwrap()
+                .num_days_from_ce()
+                - DAYS_FROM_CE;
+            assert_eq!(parse_date(v).unwrap(), expected);
+        }
+        assert!(parse_date("2023-02-29").is_err());
+
+        for v in [
+            "2024-01-01 10:20:30.123456",
+            "2024-01-01 10:20:30",
+            "2024-01-01 23:59:59.999999",
+        ] {
+            let expected = JiffDateTime::strptime(TIMESTAMP_FORMAT, v).unwrap();
+            assert_eq!(parse_datetime_prefix(v.as_bytes()), Some((expected, v.len())));
+        }
+        assert!(parse_timestamp("2024-01-01T10:20:30", &TimeZone::UTC).is_err());
+
+        for v in [
+            "2024-01-01 10:20:30.123456 +0800",
+            "2024-01-01 10:20:30.000000 -0330",
+        ] {
+            let expected = Zoned::strptime(TIMESTAMP_TIMEZONE_FORMAT, v).unwrap();
+            let t = parse_timestamp_tz_fast(v).unwrap();
+            assert_eq!(t.timestamp(), expected.timestamp());
+            assert_eq!(t.offset(), expected.offset());
+        }
+
+        let size = DecimalSize {
+            precision: 10,
+            scale: 2,
+        };
+        assert_eq!(
+            parse_decimal("-12.34", size).unwrap(),
+            NumberValue::Decimal64(-1234, size)
+        );
+        let size = DecimalSize {
+            precision: 38,
+            scale: 10,
+        };
+        assert_eq!(
+            parse_decimal("1.5e3", size).unwrap(),
+            NumberValue::Decimal128(1500, size)
+        );
+        assert_eq!(
+            parse_decimal("0.0000000001", size).unwrap(),
+            NumberValue::Decimal128(1, size)
+        );
+    }
+
+    #[test]
+    fn cache_offset_spans() {
+        let tz = TimeZone::get("America/New_York").unwrap();
+        // unsorted, around the clocks going back at 2:00 on 2024-11-03
+        for v in [
+            "2024-11-04 00:30:00.000000",
+            "2024-07-01 12:00:00.000000",
+            "2024-11-03 12:00:00.000000",
+            "2024-11-03 00:30:00.000000",
+            "2024-11-03 01:30:00.000000",
+            "2024-08-15 08:00:00.000000",
+        ] {
+            let expected = JiffDateTime::strptime(TIMESTAMP_FORMAT, v)
+                .unwrap()
+                .to_zoned(tz.clone())
+                .unwrap();
+            match parse_timestamp(v, &tz).unwrap() {
+                Value::Timestamp(t) => assert_eq!(t.timestamp(), expected.timestamp()),
+                v => panic!("unexpected {v:?}"),
+            }
+        }
+        // one span on each side of the transition
+        OFFSET_SPANS.with(|spans| assert_eq!(spans.borrow().len(), 2));
+
+        let at = |h, m| {
+            JiffDate::new(2024, 11, 3)
+                .unwrap()
+                .to_datetime(JiffTime::constant(h, m, 0, 0))
+        };
+        assert_eq!(local_offset(&tz, at(1, 30)), None);
+        assert_eq!(local_offset(&tz, at(0, 59)), Some(Offset::from_seconds(-4 * 3600).unwrap()));
+        assert_eq!(local_offset(&tz, at(2, 0)), Some(Offset::from_seconds(-5 * 3600).unwrap()));
+    }
+}